@@ -15,12 +15,22 @@ import java.io.IOException;
 
 import java.nio.charset.Charset;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -64,6 +74,12 @@ class App
     public static final     String  LONG_NAME   = "Onda lossless audio compressor";
     public static final     String  NAME_KEY    = "onda";
 
+    public static final     int MIN_NUM_CONCURRENT_FILES        = 1;
+    public static final     int MAX_NUM_CONCURRENT_FILES        = 64;
+    public static final     int DEFAULT_NUM_CONCURRENT_FILES    = 1;
+
+    private static final    int NUM_PENDING_JOBS_PER_WORKER = 2;
+
     private static final    String  DEBUG_PROPERTY_KEY      = "app.debug";
     private static final    String  VERSION_PROPERTY_KEY    = "version";
     private static final    String  BUILD_PROPERTY_KEY      = "build";
@@ -144,6 +160,17 @@ class App
         "            file (ie, excludes none) (the default);\n" +
         "        --wave-chunk-filter=+  discards all the ancillary chunks in a WAVE\n" +
         "            file (ie, includes none).\n" +
+        "  --concurrent-files=number\n" +
+        "      The number of files that will be processed concurrently (" + MIN_NUM_CONCURRENT_FILES +
+            " to " + MAX_NUM_CONCURRENT_FILES + ").\n" +
+        "      The log output of each file is kept together, and files are reported in\n" +
+        "      the order in which they are found.  If this option is not specified, the\n" +
+        "      value in the configuration file is used.\n" +
+        "  --high-ratio\n" +
+        "      When compressing, compute a linear predictor for each block to reduce\n" +
+        "      the size of the compressed file at the cost of a slower compression.\n" +
+        "      Decompression is not slowed significantly.  If this option is not\n" +
+        "      specified, the value in the configuration file is used.\n" +
         "  --output-directory=pathname\n" +
         "      The directory to which output files will be written.  If an input\n" +
         "      pathname is a directory and the --recursive option is specified, the\n" +
@@ -212,8 +239,10 @@ class App
 
         AIFF_CHUNK_FILTER   ( "aiff-chunk-filter", true ),
         COMPRESS            ( "compress",          false ),
+        CONCURRENT_FILES    ( "concurrent-files",  true ),
         EXPAND              ( "expand",            false ),
         HELP                ( "help",              false ),
+        HIGH_RATIO          ( "high-ratio",        false ),
         OUTPUT_DIRECTORY    ( "output-directory",  true ),
         OVERWRITE           ( "overwrite",         false ),
         RECURSIVE           ( "recursive",         false ),
@@ -301,6 +330,10 @@ class App
         INVALID_OUTPUT_DIRECTORY
         ( "The output directory is invalid." ),
 
+        INVALID_NUM_CONCURRENT_FILES
+        ( "The number of concurrent files must be an integer between " + MIN_NUM_CONCURRENT_FILES +
+            " and " + MAX_NUM_CONCURRENT_FILES + "." ),
+
         INVALID_AIFF_CHUNK_FILTER
         ( "The AIFF chunk filter is invalid." ),
 
@@ -411,56 +444,815 @@ class App
     // COMMAND-LINE USAGE EXCEPTION CLASS
 
 
-    private static class UsageException
-        extends AppException
-    {
+    private static class UsageException
+        extends AppException
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private UsageException( ErrorId id )
+        {
+            super( id );
+            suffix = "\n" + USAGE_STR;
+        }
+
+        //--------------------------------------------------------------
+
+        private UsageException( ErrorId   id,
+                                String... strs )
+        {
+            super( id, strs );
+            suffix = "\n" + USAGE_STR;
+        }
+
+        //--------------------------------------------------------------
+
+        private UsageException( ErrorId                     id,
+                                CommandLine.Element<Option> element )
+        {
+            this( id );
+            prefix = element.getOptionString( ) + " " + element.getValue( ) + "\n";
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : overriding methods
+    ////////////////////////////////////////////////////////////////////
+
+        @Override
+        protected String getPrefix( )
+        {
+            return prefix;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected String getSuffix( )
+        {
+            return suffix;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private String  prefix;
+        private String  suffix;
+
+    }
+
+    //==================================================================
+
+////////////////////////////////////////////////////////////////////////
+//  Member classes : inner classes
+////////////////////////////////////////////////////////////////////////
+
+
+    // FILE JOB CLASS
+
+
+    /**
+     * A file job compresses, expands or validates a single file of a batch.  The job is prepared in the task
+     * thread, where any questions are put to the user, and the file is then processed by a worker thread of
+     * the job queue.
+     */
+
+    private abstract class FileJob
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private FileJob( )
+        {
+            logLines = new ArrayList<>( );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Abstract methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Runs in the task thread.
+         *
+         * @return {@code true} if the file is to be processed, {@code false} if it is to be skipped.
+         */
+
+        protected abstract boolean prepare( )
+            throws AppException;
+
+        //--------------------------------------------------------------
+
+        /**
+         * Runs in a worker thread of the job queue, or in the task thread if files are not processed
+         * concurrently.
+         */
+
+        protected abstract void process( FileProcessor fileProcessor )
+            throws AppException;
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Returns the output file of the job, or {@code null} if the job has no output file.
+         */
+
+        protected File getOutFile( )
+        {
+            return null;
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Runs in the task thread when the job has finished, in the order in which jobs were submitted.
+         */
+
+        protected void finish( )
+        {
+            // do nothing
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Runs in the task thread after {@link #finish()} if the job failed.
+         */
+
+        protected void handleException( AppException exception )
+            throws TaskCancelledException
+        {
+            confirmContinue( exception );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private List<Log.Line>  logLines;
+        private Future<?>       future;
+        private AppException    exception;
+        private File            reservedFile;
+
+    }
+
+    //==================================================================
+
+
+    // COMPRESS JOB CLASS
+
+
+    private class CompressJob
+        extends FileJob
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CompressJob( InputOutput   inputOutput,
+                             ChunkFilter[] chunkFilters )
+        {
+            this.inputOutput = inputOutput;
+            this.chunkFilters = chunkFilters;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : overriding methods
+    ////////////////////////////////////////////////////////////////////
+
+        @Override
+        protected boolean prepare( )
+            throws AppException
+        {
+            // Test for input file
+            inFile = inputOutput.input;
+            if ( !inFile.isFile( ) )
+                throw new FileException( ErrorId.FILE_DOES_NOT_EXIST, inFile );
+
+            // Generate name of output file
+            File outDirectory = inputOutput.getOutputDirectory( );
+            outFile = new File( outDirectory, inFile.getName( ) + AppConstants.COMPRESSED_FILE_SUFFIX );
+
+            // Write name of task to log
+            Log.getInstance( ).appendLine( COMPRESSING_STR + Util.getPathname( inFile ) + ARROW_STR +
+                                                                            Util.getPathname( outFile ) );
+
+            // Create output directory
+            if ( (outDirectory != null) && !outDirectory.exists( ) && !outDirectory.mkdirs( ) )
+                throw new FileException( ErrorId.FAILED_TO_CREATE_DIRECTORY, outDirectory );
+
+            // Finish any pending job that writes the same output file
+            if ( isReservedOutFile( outFile ) )
+                flushJobs( );
+
+            // Test whether file is to be compressed
+            if ( outFile.exists( ) && !confirmReplace( COMPRESS_FILE_STR, outFile ) )
+                return false;
+            addFileLength( inFile );
+            return true;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected File getOutFile( )
+        {
+            return outFile;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected void process( FileProcessor fileProcessor )
+            throws AppException
+        {
+            fileProcessor.compress( inFile, outFile, chunkFilters );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private InputOutput     inputOutput;
+        private ChunkFilter[]   chunkFilters;
+        private File            inFile;
+        private File            outFile;
+
+    }
+
+    //==================================================================
+
+
+    // EXPAND JOB CLASS
+
+
+    private class ExpandJob
+        extends FileJob
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private ExpandJob( InputOutput inputOutput )
+        {
+            this.inputOutput = inputOutput;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : overriding methods
+    ////////////////////////////////////////////////////////////////////
+
+        @Override
+        protected boolean prepare( )
+            throws AppException
+        {
+            boolean process = false;
+            try
+            {
+                process = prepareFiles( );
+            }
+            finally
+            {
+                // Close any open input file if the job is not to be processed
+                if ( !process )
+                    closeReader( );
+            }
+            return process;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected File getOutFile( )
+        {
+            return outFile;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected void process( FileProcessor fileProcessor )
+            throws AppException
+        {
+            OndaFileReader reader = ondaFile;
+            ondaFile = null;
+            fileProcessor.expand( inFile, reader, outFile, audioFileKind );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        private boolean prepareFiles( )
+            throws AppException
+        {
+            // Test for input file
+            inFile = inputOutput.input;
+            if ( !inFile.isFile( ) )
+                throw new FileException( ErrorId.FILE_DOES_NOT_EXIST, inFile );
+
+            // Generate name of output file
+            File outDirectory = inputOutput.getOutputDirectory( );
+            String filename = inFile.getName( );
+            if ( filename.endsWith( AppConstants.COMPRESSED_FILE_SUFFIX ) )
+            {
+                filename = StringUtilities.removeSuffix( filename, AppConstants.COMPRESSED_FILE_SUFFIX );
+                outFile = new File( outDirectory, filename );
+            }
+            else
+            {
+                String[] filenameParts = StringUtilities.splitAtFirst( filename, '.',
+                                                                       StringUtilities.SplitMode.SUFFIX );
+                filename = filenameParts[0];
+                int index = 1;
+                while ( true )
+                {
+                    outFile = new File( outDirectory, filename + "-" + index + filenameParts[1] );
+                    if ( !outFile.exists( ) && !isReservedOutFile( outFile ) )
+                        break;
+                    ++index;
+                }
+            }
+
+            // Determine kind of output file
+            audioFileKind = AudioFileKind.forFilename( filename );
+            if ( audioFileKind == null )
+            {
+                // Open input file to get source file kind from private data.  The reader is kept open and
+                // is passed to the file processor.
+                ondaFile = OndaFileIff.openReader( inFile );
+                PrivateData privateData = ondaFile.readPrivateData( );
+                if ( privateData != null )
+                    audioFileKind = privateData.getSourceKind( );
+                if ( audioFileKind == null )
+                {
+                    // Ask user for kind of output file
+                    flushJobs( );
+                    audioFileKind = hasGui ? AudioFileKindDialog.showDialog( mainWindow )
+                                           : AudioFileKindDialog.showPrompt( );
+                    if ( audioFileKind == null )
+                        throw new TaskCancelledException( );
+                }
+            }
+
+            // Write name of task to log
+            Log.getInstance( ).appendLine( EXPANDING_STR + Util.getPathname( inFile ) + ARROW_STR +
+                                                                            Util.getPathname( outFile ) );
+
+            // Create output directory
+            if ( (outDirectory != null) && !outDirectory.exists( ) && !outDirectory.mkdirs( ) )
+                throw new FileException( ErrorId.FAILED_TO_CREATE_DIRECTORY, outDirectory );
+
+            // Finish any pending job that writes the same output file
+            if ( isReservedOutFile( outFile ) )
+                flushJobs( );
+
+            // Test whether file is to be expanded
+            if ( outFile.exists( ) && !confirmReplace( EXPAND_FILE_STR, outFile ) )
+                return false;
+            addFileLength( inFile );
+            return true;
+        }
+
+        //--------------------------------------------------------------
+
+        private void closeReader( )
+        {
+            if ( ondaFile != null )
+            {
+                ondaFile.closeIgnoreException( );
+                ondaFile = null;
+            }
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private InputOutput     inputOutput;
+        private File            inFile;
+        private File            outFile;
+        private AudioFileKind   audioFileKind;
+        private OndaFileReader  ondaFile;
+
+    }
+
+    //==================================================================
+
+
+    // VALIDATE JOB CLASS
+
+
+    private class ValidateJob
+        extends FileJob
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private ValidateJob( File                           file,
+                             FileProcessor.ValidationResult validationResult )
+        {
+            this.file = file;
+            this.validationResult = validationResult;
+            jobValidationResult = new FileProcessor.ValidationResult( );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : overriding methods
+    ////////////////////////////////////////////////////////////////////
+
+        @Override
+        protected boolean prepare( )
+        {
+            // Write name of task to log
+            Log.getInstance( ).appendLine( VALIDATING_STR + Util.getPathname( file ) );
+
+            addFileLength( file );
+            return true;
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected void process( FileProcessor fileProcessor )
+            throws AppException
+        {
+            fileProcessor.validate( file, jobValidationResult );
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Adds the result of this job to the result of the batch.  Each job has its own result so that the
+         * counts are not updated concurrently.
+         */
+
+        @Override
+        protected void finish( )
+        {
+            validationResult.add( jobValidationResult );
+        }
+
+        //--------------------------------------------------------------
+
+        @Override
+        protected void handleException( AppException exception )
+        {
+            Log.getInstance( ).appendException( exception );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private File                            file;
+        private FileProcessor.ValidationResult  validationResult;
+        private FileProcessor.ValidationResult  jobValidationResult;
+
+    }
+
+    //==================================================================
+
+
+    // JOB QUEUE CLASS
+
+
+    /**
+     * A job queue processes the files of a batch on a pool of worker threads.  Jobs are prepared in the task
+     * thread in the order in which they are submitted, and they are finished in the same order: the log
+     * lines of a job that runs concurrently with other jobs are held back until all the jobs that were
+     * submitted before it have finished, so that the log of a batch is the same as if its files had been
+     * processed one after another.  Before a question is put to the user, all pending jobs are finished.
+     * <p>
+     * The output file of a job that is processed concurrently is reserved until the job has finished.  A
+     * reserved file is treated as an existing file by the jobs that are prepared after it: a job that would
+     * write the same file first finishes the pending jobs, so that the user is asked whether to replace it
+     * once it exists, and the search for an unused name of an expanded file passes over it.
+     * </p>
+     * <p>
+     * If the maximum number of concurrent jobs is 1, each job is processed in the task thread as soon as it
+     * has been prepared, and its log lines are not held back.
+     * </p>
+     * <p>
+     * The threads that write output files, compress blocks of sample data and decode slices of compressed
+     * data run on executors that are shared by all the jobs of a batch, and each thread that processes jobs
+     * reuses one file processor for all its jobs, so the fixed cost of a job is small even when a batch
+     * consists of many small files.  The encoder and decoder executors have the configured numbers of
+     * threads, and each concurrent job may use an equal share of them, so the number of threads that
+     * compress or decode sample data does not grow with the number of concurrent jobs.
+     * </p>
+     */
+
+    private class JobQueue
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private JobQueue( int maxNumJobs )
+        {
+            this.maxNumJobs = maxNumJobs;
+            jobs = new ArrayDeque<>( );
+            reservedFiles = new HashSet<>( );
+
+            // Create executors
+            writerExecutor = Executors.newCachedThreadPool( );
+            AppConfig config = AppConfig.getInstance( );
+            int numEncoderThreads = config.getNumEncoderThreads( );
+            int numDecoderThreads = config.getNumDecoderThreads( );
+            encoderExecutor = Executors.newFixedThreadPool( numEncoderThreads );
+            decoderExecutor = Executors.newFixedThreadPool( numDecoderThreads );
+
+            // Divide threads of encoder and decoder between concurrent jobs
+            final int numJobEncoderThreads = Math.max( 1, numEncoderThreads / maxNumJobs );
+            final int numJobDecoderThreads = Math.max( 1, numDecoderThreads / maxNumJobs );
+
+            // Create file processors
+            if ( maxNumJobs > 1 )
+            {
+                executor = Executors.newFixedThreadPool( maxNumJobs );
+                fileProcessors = new ThreadLocal<FileProcessor>( )
+                {
+                    @Override
+                    protected FileProcessor initialValue( )
+                    {
+                        return new FileProcessor( writerExecutor, encoderExecutor, numJobEncoderThreads,
+                                                  decoderExecutor, numJobDecoderThreads );
+                    }
+                };
+            }
+            else
+                fileProcessor = new FileProcessor( writerExecutor, encoderExecutor, numJobEncoderThreads,
+                                                   decoderExecutor, numJobDecoderThreads );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Runs in the task thread.  Prepares the specified job and starts to process it.  An exception that
+         * is thrown while the job is prepared or processed is handled by the job when it is finished.
+         *
+         * @throws TaskCancelledException
+         *           if the task was cancelled while the job was prepared, or while an earlier job was
+         *           finished.
+         */
+
+        public void submit( final FileJob job )
+            throws TaskCancelledException
+        {
+            // Prepare job
+            boolean process = false;
+            currentJob = job;
+            if ( executor != null )
+                Log.getInstance( ).startCapture( job.logLines );
+            try
+            {
+                process = job.prepare( );
+            }
+            catch ( TaskCancelledException e )
+            {
+                throw e;
+            }
+            catch ( AppException e )
+            {
+                job.exception = e;
+            }
+            finally
+            {
+                if ( executor != null )
+                    Log.getInstance( ).endCapture( );
+                currentJob = null;
+            }
+
+            // Process job in task thread
+            if ( executor == null )
+            {
+                if ( process )
+                {
+                    try
+                    {
+                        job.process( fileProcessor );
+                    }
+                    catch ( TaskCancelledException e )
+                    {
+                        throw e;
+                    }
+                    catch ( AppException e )
+                    {
+                        job.exception = e;
+                    }
+                }
+                finish( job );
+            }
+
+            // Process job in worker thread
+            else
+            {
+                // Finish oldest jobs to limit number of pending jobs
+                while ( jobs.size( ) >= maxNumJobs * NUM_PENDING_JOBS_PER_WORKER )
+                    finish( jobs.removeFirst( ) );
 
-    ////////////////////////////////////////////////////////////////////
-    //  Constructors
-    ////////////////////////////////////////////////////////////////////
+                // Submit job to executor, reserving its output file until it has finished
+                if ( process )
+                {
+                    File outFile = job.getOutFile( );
+                    if ( outFile != null )
+                    {
+                        job.reservedFile = outFile.getAbsoluteFile( );
+                        reservedFiles.add( job.reservedFile );
+                    }
 
-        private UsageException( ErrorId id )
-        {
-            super( id );
-            suffix = "\n" + USAGE_STR;
+                    job.future = executor.submit( new Callable<Void>( )
+                    {
+                        public Void call( )
+                            throws AppException
+                        {
+                            Log.getInstance( ).startCapture( job.logLines );
+                            try
+                            {
+                                job.process( fileProcessors.get( ) );
+                            }
+                            finally
+                            {
+                                Log.getInstance( ).endCapture( );
+                            }
+                            return null;
+                        }
+                    } );
+                }
+                jobs.addLast( job );
+            }
         }
 
         //--------------------------------------------------------------
 
-        private UsageException( ErrorId   id,
-                                String... strs )
+        /**
+         * Runs in the task thread.  Returns {@code true} if the specified file is the output file of a job
+         * that has not yet finished.
+         */
+
+        public boolean isReserved( File file )
         {
-            super( id, strs );
-            suffix = "\n" + USAGE_STR;
+            return reservedFiles.contains( file.getAbsoluteFile( ) );
         }
 
         //--------------------------------------------------------------
 
-        private UsageException( ErrorId                     id,
-                                CommandLine.Element<Option> element )
+        /**
+         * Runs in the task thread.  Finishes all pending jobs, and appends to the log any lines of the job
+         * that is being prepared.  This method is called before a question is put to the user.  It does
+         * nothing if it is called while a job is being finished.
+         */
+
+        public void flush( )
+            throws TaskCancelledException
         {
-            this( id );
-            prefix = element.getOptionString( ) + " " + element.getValue( ) + "\n";
+            if ( !finishing )
+            {
+                while ( !jobs.isEmpty( ) )
+                    finish( jobs.removeFirst( ) );
+                if ( currentJob != null )
+                {
+                    Log.getInstance( ).appendLines( currentJob.logLines );
+                    currentJob.logLines.clear( );
+                }
+            }
         }
 
         //--------------------------------------------------------------
 
-    ////////////////////////////////////////////////////////////////////
-    //  Instance methods : overriding methods
-    ////////////////////////////////////////////////////////////////////
+        /**
+         * Runs in the task thread.  Waits for the worker threads to terminate, and shuts down the executors
+         * of the writer, encoder and decoder threads.  If the task was cancelled, pending jobs are abandoned
+         * without being finished.
+         */
 
-        @Override
-        protected String getPrefix( )
+        public void close( )
         {
-            return prefix;
+            if ( executor != null )
+            {
+                executor.shutdown( );
+                while ( true )
+                {
+                    try
+                    {
+                        if ( executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+                            break;
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        // ignore
+                    }
+                }
+            }
+            writerExecutor.shutdown( );
+            encoderExecutor.shutdown( );
+            decoderExecutor.shutdown( );
+            jobs.clear( );
+            reservedFiles.clear( );
         }
 
         //--------------------------------------------------------------
 
-        @Override
-        protected String getSuffix( )
+        private void finish( FileJob job )
+            throws TaskCancelledException
         {
-            return suffix;
+            // Wait for job to be processed
+            AppException exception = job.exception;
+            if ( job.future != null )
+            {
+                while ( true )
+                {
+                    try
+                    {
+                        job.future.get( );
+                        break;
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        // ignore
+                    }
+                    catch ( ExecutionException e )
+                    {
+                        Throwable cause = e.getCause( );
+                        if ( cause instanceof AppException )
+                        {
+                            exception = (AppException)cause;
+                            break;
+                        }
+                        if ( cause instanceof RuntimeException )
+                            throw (RuntimeException)cause;
+                        if ( cause instanceof Error )
+                            throw (Error)cause;
+                        throw new RuntimeException( cause );
+                    }
+                }
+            }
+
+            // Release output file of job
+            if ( job.reservedFile != null )
+            {
+                reservedFiles.remove( job.reservedFile );
+                job.reservedFile = null;
+            }
+
+            // Append log lines of job to log, and handle any exception.  Lines of a job that is being
+            // prepared continue to be captured after the lines of this job have been appended.
+            List<Log.Line> capturedLines = Log.getInstance( ).endCapture( );
+            finishing = true;
+            try
+            {
+                Log.getInstance( ).appendLines( job.logLines );
+                job.finish( );
+                if ( exception instanceof TaskCancelledException )
+                    throw (TaskCancelledException)exception;
+                if ( exception != null )
+                    job.handleException( exception );
+            }
+            finally
+            {
+                finishing = false;
+                if ( capturedLines != null )
+                    Log.getInstance( ).startCapture( capturedLines );
+            }
         }
 
         //--------------------------------------------------------------
@@ -469,8 +1261,17 @@ class App
     //  Instance variables
     ////////////////////////////////////////////////////////////////////
 
-        private String  prefix;
-        private String  suffix;
+        private int                         maxNumJobs;
+        private Deque<FileJob>              jobs;
+        private Set<File>                   reservedFiles;
+        private ExecutorService             executor;
+        private ExecutorService             writerExecutor;
+        private ExecutorService             encoderExecutor;
+        private ExecutorService             decoderExecutor;
+        private FileProcessor               fileProcessor;
+        private ThreadLocal<FileProcessor>  fileProcessors;
+        private FileJob                     currentJob;
+        private boolean                     finishing;
 
     }
 
@@ -588,6 +1389,13 @@ class App
 
     //------------------------------------------------------------------
 
+    public boolean isHighRatio( )
+    {
+        return ( highRatio || AppConfig.getInstance( ).isHighRatio( ) );
+    }
+
+    //------------------------------------------------------------------
+
     public String getVersionString( )
     {
         StringBuilder buffer = new StringBuilder( 32 );
@@ -685,6 +1493,7 @@ class App
                                                                     recursive ) );
             }
 
+            openJobQueue( );
             for ( InputOutput inputOutput : inputsOutputs )
             {
                 if ( inputOutput.input.isDirectory( ) )
@@ -693,28 +1502,21 @@ class App
                     compressDirectory( inputOutput, chunkFilters, recursive );
                 }
                 else
-                {
-                    try
-                    {
-                        compressFile( inputOutput, chunkFilters );
-                    }
-                    catch ( TaskCancelledException e )
-                    {
-                        throw e;
-                    }
-                    catch ( AppException e )
-                    {
-                        confirmContinue( e );
-                    }
-                }
+                    jobQueue.submit( new CompressJob( inputOutput, chunkFilters ) );
             }
+            jobQueue.flush( );
         }
         catch ( TaskCancelledException e )
         {
+            Task.setCancelled( true );
             Log.getInstance( ).appendLine( CANCELLED_STR );
             if ( hasGui )
                 throw e;
         }
+        finally
+        {
+            closeJobQueue( );
+        }
     }
 
     //------------------------------------------------------------------
@@ -733,6 +1535,7 @@ class App
                                                                 recursive ) );
             }
 
+            openJobQueue( );
             for ( InputOutput inputOutput : inputsOutputs )
             {
                 if ( inputOutput.input.isDirectory( ) )
@@ -741,28 +1544,21 @@ class App
                     expandDirectory( inputOutput, recursive );
                 }
                 else
-                {
-                    try
-                    {
-                        expandFile( inputOutput );
-                    }
-                    catch ( TaskCancelledException e )
-                    {
-                        throw e;
-                    }
-                    catch ( AppException e )
-                    {
-                        confirmContinue( e );
-                    }
-                }
+                    jobQueue.submit( new ExpandJob( inputOutput ) );
             }
+            jobQueue.flush( );
         }
         catch ( TaskCancelledException e )
         {
+            Task.setCancelled( true );
             Log.getInstance( ).appendLine( CANCELLED_STR );
             if ( hasGui )
                 throw e;
         }
+        finally
+        {
+            closeJobQueue( );
+        }
     }
 
     //------------------------------------------------------------------
@@ -782,31 +1578,25 @@ class App
                                                                 recursive ) );
             }
 
+            openJobQueue( );
             for ( InputOutput inputOutput : inputsOutputs )
             {
                 if ( inputOutput.input.isDirectory( ) )
                     validateDirectory( inputOutput.input, recursive, result );
                 else
-                {
-                    try
-                    {
-                        validateFile( inputOutput.input, result );
-                    }
-                    catch ( TaskCancelledException e )
-                    {
-                        throw e;
-                    }
-                    catch ( AppException e )
-                    {
-                        Log.getInstance( ).appendException( e );
-                    }
-                }
+                    jobQueue.submit( new ValidateJob( inputOutput.input, result ) );
             }
+            jobQueue.flush( );
         }
         catch ( TaskCancelledException e )
         {
+            Task.setCancelled( true );
             Log.getInstance( ).appendLine( CANCELLED_STR );
         }
+        finally
+        {
+            closeJobQueue( );
+        }
 
         // Display results
         StringBuilder buffer = new StringBuilder( 256 );
@@ -989,6 +1779,26 @@ class App
                     commands.add( Command.COMPRESS );
                     break;
 
+                case CONCURRENT_FILES:
+                {
+                    int numFiles = 0;
+                    try
+                    {
+                        numFiles = Integer.parseInt( elementValue );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        throw new ArgumentException( ErrorId.INVALID_NUM_CONCURRENT_FILES, element );
+                    }
+                    if ( (numFiles < MIN_NUM_CONCURRENT_FILES) || (numFiles > MAX_NUM_CONCURRENT_FILES) )
+                        throw new ArgumentException( ErrorId.INVALID_NUM_CONCURRENT_FILES, element );
+                    if ( (numConcurrentFiles > 0) && (numConcurrentFiles != numFiles) )
+                        throw new UsageException( ErrorId.CONFLICTING_OPTION_ARGUMENTS,
+                                                  element.getOptionString( ) );
+                    numConcurrentFiles = numFiles;
+                    break;
+                }
+
                 case EXPAND:
                     commands.add( Command.EXPAND );
                     break;
@@ -997,6 +1807,10 @@ class App
                     commands.add( Command.HELP );
                     break;
 
+                case HIGH_RATIO:
+                    highRatio = true;
+                    break;
+
                 case OUTPUT_DIRECTORY:
                 {
                     if ( elementValue.isEmpty( ) )
@@ -1134,6 +1948,9 @@ class App
     private void confirmContinue( AppException exception )
         throws TaskCancelledException
     {
+        // Finish pending jobs
+        flushJobs( );
+
         // Clear exception from task
         Task.setException( null, true );
 
@@ -1182,6 +1999,9 @@ class App
         throws TaskCancelledException
     {
         String messageStr = Util.getPathname( file ) + AppConstants.ALREADY_EXISTS_STR;
+        if ( !hasGui && overwrite )
+            return true;
+        flushJobs( );
         if ( hasGui )
         {
             String[] optionStrs = Util.getOptionStrings( AppConstants.REPLACE_STR, SKIP_STR );
@@ -1200,8 +2020,6 @@ class App
         }
         else
         {
-            if ( overwrite )
-                return true;
             System.out.println( messageStr );
             while ( true )
             {
@@ -1238,17 +2056,7 @@ class App
         Task.setException( null, true );
         Task.setCancelled( false );
         task.start( );
-        while ( Task.getNumThreads( ) > 0 )
-        {
-            try
-            {
-                Thread.sleep( 200 );
-            }
-            catch ( InterruptedException e )
-            {
-                // ignore
-            }
-        }
+        task.awaitCompletion( );
         Task.throwIfException( );
     }
 
@@ -1268,20 +2076,7 @@ class App
                 throw new FileException( ErrorId.FAILED_TO_LIST_DIRECTORY_ENTRIES, directory );
             Arrays.sort( files );
             for ( File file : files )
-            {
-                try
-                {
-                    compressFile( new InputOutput( file, inputOutput ), chunkFilters );
-                }
-                catch ( TaskCancelledException e )
-                {
-                    throw e;
-                }
-                catch ( AppException e )
-                {
-                    confirmContinue( e );
-                }
-            }
+                jobQueue.submit( new CompressJob( new InputOutput( file, inputOutput ), chunkFilters ) );
         }
         catch ( TaskCancelledException e )
         {
@@ -1317,42 +2112,6 @@ class App
 
     //------------------------------------------------------------------
 
-    private void compressFile( InputOutput   inputOutput,
-                               ChunkFilter[] chunkFilters )
-        throws AppException
-    {
-        // Test for input file
-        File inFile = inputOutput.input;
-        if ( !inFile.isFile( ) )
-            throw new FileException( ErrorId.FILE_DOES_NOT_EXIST, inFile );
-
-        // Generate name of output file
-        File outDirectory = inputOutput.getOutputDirectory( );
-        File outFile = new File( outDirectory, inFile.getName( ) + AppConstants.COMPRESSED_FILE_SUFFIX );
-
-        // Write name of task to log
-        Log.getInstance( ).appendLine( COMPRESSING_STR + Util.getPathname( inFile ) + ARROW_STR +
-                                                                            Util.getPathname( outFile ) );
-
-        // Create output directory
-        if ( (outDirectory != null) && !outDirectory.exists( ) && !outDirectory.mkdirs( ) )
-            throw new FileException( ErrorId.FAILED_TO_CREATE_DIRECTORY, outDirectory );
-
-        // Compress file
-        if ( !outFile.exists( ) || confirmReplace( COMPRESS_FILE_STR, outFile ) )
-        {
-            if ( hasGui )
-            {
-                long fileLength = inFile.length( );
-                ((TaskProgressDialog)Task.getProgressView( )).setFileLength( fileLength, fileLengthOffset );
-                fileLengthOffset += fileLength;
-            }
-            new FileProcessor( ).compress( inFile, outFile, chunkFilters );
-        }
-    }
-
-    //------------------------------------------------------------------
-
     private void expandDirectory( InputOutput inputOutput,
                                   boolean     recursive )
         throws TaskCancelledException
@@ -1366,20 +2125,7 @@ class App
                 throw new FileException( ErrorId.FAILED_TO_LIST_DIRECTORY_ENTRIES, directory );
             Arrays.sort( files );
             for ( File file : files )
-            {
-                try
-                {
-                    expandFile( new InputOutput( file, inputOutput ) );
-                }
-                catch ( TaskCancelledException e )
-                {
-                    throw e;
-                }
-                catch ( AppException e )
-                {
-                    confirmContinue( e );
-                }
-            }
+                jobQueue.submit( new ExpandJob( new InputOutput( file, inputOutput ) ) );
         }
         catch ( TaskCancelledException e )
         {
@@ -1415,80 +2161,6 @@ class App
 
     //------------------------------------------------------------------
 
-    private void expandFile( InputOutput inputOutput )
-        throws AppException
-    {
-        // Test for input file
-        File inFile = inputOutput.input;
-        if ( !inFile.isFile( ) )
-            throw new FileException( ErrorId.FILE_DOES_NOT_EXIST, inFile );
-
-        // Generate name of output file
-        File outDirectory = inputOutput.getOutputDirectory( );
-        File outFile = null;
-        String filename = inFile.getName( );
-        if ( filename.endsWith( AppConstants.COMPRESSED_FILE_SUFFIX ) )
-        {
-            filename = StringUtilities.removeSuffix( filename, AppConstants.COMPRESSED_FILE_SUFFIX );
-            outFile = new File( outDirectory, filename );
-        }
-        else
-        {
-            String[] filenameParts = StringUtilities.splitAtFirst( filename, '.',
-                                                                   StringUtilities.SplitMode.SUFFIX );
-            filename = filenameParts[0];
-            int index = 1;
-            while ( true )
-            {
-                outFile = new File( outDirectory, filename + "-" + index + filenameParts[1] );
-                if ( !outFile.exists( ) )
-                    break;
-                ++index;
-            }
-        }
-
-        // Determine kind of output file
-        AudioFileKind audioFileKind = AudioFileKind.forFilename( filename );
-        if ( audioFileKind == null )
-        {
-            // Read input file to get source file kind from private data
-            PrivateData privateData =
-                                OndaFileIff.getFileKind( inFile ).createReader( inFile ).readPrivateData( );
-            if ( privateData != null )
-                audioFileKind = privateData.getSourceKind( );
-            if ( audioFileKind == null )
-            {
-                // Ask user for kind of output file
-                audioFileKind = hasGui ? AudioFileKindDialog.showDialog( mainWindow )
-                                       : AudioFileKindDialog.showPrompt( );
-                if ( audioFileKind == null )
-                    throw new TaskCancelledException( );
-            }
-        }
-
-        // Write name of task to log
-        Log.getInstance( ).appendLine( EXPANDING_STR + Util.getPathname( inFile ) + ARROW_STR +
-                                                                            Util.getPathname( outFile ) );
-
-        // Create output directory
-        if ( (outDirectory != null) && !outDirectory.exists( ) && !outDirectory.mkdirs( ) )
-            throw new FileException( ErrorId.FAILED_TO_CREATE_DIRECTORY, outDirectory );
-
-        // Expand file
-        if ( !outFile.exists( ) || confirmReplace( EXPAND_FILE_STR, outFile ) )
-        {
-            if ( hasGui )
-            {
-                long fileLength = inFile.length( );
-                ((TaskProgressDialog)Task.getProgressView( )).setFileLength( fileLength, fileLengthOffset );
-                fileLengthOffset += fileLength;
-            }
-            new FileProcessor( ).expand( inFile, outFile, audioFileKind );
-        }
-    }
-
-    //------------------------------------------------------------------
-
     private void validateDirectory( File                           directory,
                                     boolean                        recursive,
                                     FileProcessor.ValidationResult validationResult )
@@ -1502,20 +2174,7 @@ class App
                 throw new FileException( ErrorId.FAILED_TO_LIST_DIRECTORY_ENTRIES, directory );
             Arrays.sort( files );
             for ( File file : files )
-            {
-                try
-                {
-                    validateFile( file, validationResult );
-                }
-                catch ( TaskCancelledException e )
-                {
-                    throw e;
-                }
-                catch ( AppException e )
-                {
-                    Log.getInstance( ).appendException( e );
-                }
-            }
+                jobQueue.submit( new ValidateJob( file, validationResult ) );
         }
         catch ( TaskCancelledException e )
         {
@@ -1551,21 +2210,59 @@ class App
 
     //------------------------------------------------------------------
 
-    private void validateFile( File                           file,
-                               FileProcessor.ValidationResult validationResult )
-        throws AppException
+    private void openJobQueue( )
+    {
+        int numJobs = (numConcurrentFiles > 0) ? numConcurrentFiles
+                                               : AppConfig.getInstance( ).getNumConcurrentFiles( );
+        jobQueue = new JobQueue( numJobs );
+    }
+
+    //------------------------------------------------------------------
+
+    private void closeJobQueue( )
+    {
+        if ( jobQueue != null )
+        {
+            jobQueue.close( );
+            jobQueue = null;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Finishes any pending jobs of the current batch so that a question can be put to the user after the
+     * log lines of the files that precede it.
+     */
+
+    private void flushJobs( )
+        throws TaskCancelledException
+    {
+        if ( jobQueue != null )
+            jobQueue.flush( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns {@code true} if the specified file is the output file of a pending job of the current batch.
+     */
+
+    private boolean isReservedOutFile( File file )
     {
-        // Write name of task to log
-        Log.getInstance( ).appendLine( VALIDATING_STR + Util.getPathname( file ) );
+        return ( (jobQueue != null) && jobQueue.isReserved( file ) );
+    }
+
+    //------------------------------------------------------------------
 
-        // Validate file
+    private void addFileLength( File file )
+    {
         if ( hasGui )
         {
             long fileLength = file.length( );
             ((TaskProgressDialog)Task.getProgressView( )).setFileLength( fileLength, fileLengthOffset );
             fileLengthOffset += fileLength;
         }
-        new FileProcessor( ).validate( file, validationResult );
     }
 
     //------------------------------------------------------------------
@@ -1658,8 +2355,11 @@ class App
     private boolean             hasGui;
     private boolean             titleShown;
     private boolean             overwrite;
+    private boolean             highRatio;
     private Set<InfoKind>       infoKinds;
     private long                fileLengthOffset;
+    private int                 numConcurrentFiles;
+    private JobQueue            jobQueue;
 
 }
 
@@ -97,10 +97,15 @@ class AppConfig
         String  FILTER                      = "filter";
         String  FONT                        = "font";
         String  GENERAL                     = "general";
+        String  HIGH_RATIO                  = "highRatio";
         String  IGNORE_FILENAME_CASE        = "ignoreFilenameCase";
         String  INDEX                       = "index";
         String  LOOK_AND_FEEL               = "lookAndFeel";
         String  MAIN_WINDOW_LOCATION        = "mainWindowLocation";
+        String  NUM_BLOCK_BUFFERS           = "numBlockBuffers";
+        String  NUM_CONCURRENT_FILES        = "numConcurrentFiles";
+        String  NUM_DECODER_THREADS         = "numDecoderThreads";
+        String  NUM_ENCODER_THREADS         = "numEncoderThreads";
         String  PATH                        = "path";
         String  SELECT_TEXT_ON_FOCUS_GAINED = "selectTextOnFocusGained";
         String  SHOW_OVERALL_PROGRESS       = "showOverallProgress";
@@ -844,6 +849,260 @@ class AppConfig
     //==================================================================
 
 
+    // PROPERTY CLASS: COMPRESSION HIGH RATIO
+
+
+    private class CPHighRatio
+        extends Property.BooleanProperty
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CPHighRatio( )
+        {
+            super( concatenateKeys( Key.COMPRESSION, Key.HIGH_RATIO ) );
+            value = Boolean.FALSE;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance methods : associated methods in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    public boolean isHighRatio( )
+    {
+        return cpHighRatio.getValue( );
+    }
+
+    //------------------------------------------------------------------
+
+    public void setHighRatio( boolean value )
+    {
+        cpHighRatio.setValue( value );
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance variables : associated variables in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    private CPHighRatio cpHighRatio = new CPHighRatio( );
+
+    //==================================================================
+
+
+    // PROPERTY CLASS: NUMBER OF ENCODER THREADS
+
+
+    private class CPNumEncoderThreads
+        extends Property.IntegerProperty
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CPNumEncoderThreads( )
+        {
+            super( concatenateKeys( Key.COMPRESSION, Key.NUM_ENCODER_THREADS ),
+                   OndaFile.MIN_NUM_ENCODER_THREADS, OndaFile.MAX_NUM_ENCODER_THREADS );
+            value = OndaFile.DEFAULT_NUM_ENCODER_THREADS;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance methods : associated methods in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    public int getNumEncoderThreads( )
+    {
+        return cpNumEncoderThreads.getValue( );
+    }
+
+    //------------------------------------------------------------------
+
+    public void setNumEncoderThreads( int value )
+    {
+        cpNumEncoderThreads.setValue( value );
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance variables : associated variables in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    private CPNumEncoderThreads cpNumEncoderThreads = new CPNumEncoderThreads( );
+
+    //==================================================================
+
+
+    // PROPERTY CLASS: NUMBER OF DECODER THREADS
+
+
+    private class CPNumDecoderThreads
+        extends Property.IntegerProperty
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CPNumDecoderThreads( )
+        {
+            super( concatenateKeys( Key.COMPRESSION, Key.NUM_DECODER_THREADS ),
+                   OndaFile.MIN_NUM_DECODER_THREADS, OndaFile.MAX_NUM_DECODER_THREADS );
+            value = OndaFile.DEFAULT_NUM_DECODER_THREADS;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance methods : associated methods in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    public int getNumDecoderThreads( )
+    {
+        return cpNumDecoderThreads.getValue( );
+    }
+
+    //------------------------------------------------------------------
+
+    public void setNumDecoderThreads( int value )
+    {
+        cpNumDecoderThreads.setValue( value );
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance variables : associated variables in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    private CPNumDecoderThreads cpNumDecoderThreads = new CPNumDecoderThreads( );
+
+    //==================================================================
+
+
+    // PROPERTY CLASS: NUMBER OF BLOCK BUFFERS
+
+
+    private class CPNumBlockBuffers
+        extends Property.IntegerProperty
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CPNumBlockBuffers( )
+        {
+            super( concatenateKeys( Key.COMPRESSION, Key.NUM_BLOCK_BUFFERS ),
+                   BlockRing.MIN_NUM_SLOTS, BlockRing.MAX_NUM_SLOTS );
+            value = BlockRing.DEFAULT_NUM_SLOTS;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance methods : associated methods in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    public int getNumBlockBuffers( )
+    {
+        return cpNumBlockBuffers.getValue( );
+    }
+
+    //------------------------------------------------------------------
+
+    public void setNumBlockBuffers( int value )
+    {
+        cpNumBlockBuffers.setValue( value );
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance variables : associated variables in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    private CPNumBlockBuffers   cpNumBlockBuffers = new CPNumBlockBuffers( );
+
+    //==================================================================
+
+
+    // PROPERTY CLASS: NUMBER OF CONCURRENT FILES
+
+
+    private class CPNumConcurrentFiles
+        extends Property.IntegerProperty
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private CPNumConcurrentFiles( )
+        {
+            super( concatenateKeys( Key.COMPRESSION, Key.NUM_CONCURRENT_FILES ),
+                   App.MIN_NUM_CONCURRENT_FILES, App.MAX_NUM_CONCURRENT_FILES );
+            value = App.DEFAULT_NUM_CONCURRENT_FILES;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance methods : associated methods in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    public int getNumConcurrentFiles( )
+    {
+        return cpNumConcurrentFiles.getValue( );
+    }
+
+    //------------------------------------------------------------------
+
+    public void setNumConcurrentFiles( int value )
+    {
+        cpNumConcurrentFiles.setValue( value );
+    }
+
+    //------------------------------------------------------------------
+
+//--////////////////////////////////////////////////////////////////////
+//--//  Instance variables : associated variables in enclosing class
+//--////////////////////////////////////////////////////////////////////
+
+    private CPNumConcurrentFiles    cpNumConcurrentFiles = new CPNumConcurrentFiles( );
+
+    //==================================================================
+
+
     // PROPERTY CLASS: PATHNAME OF COMPRESSION DIRECTORY
 
 
@@ -18,10 +18,7 @@ import uk.org.blankaspect.audio.WaveFile;
 
 import uk.org.blankaspect.exception.AppException;
 
-import uk.org.blankaspect.iff.Chunk;
 import uk.org.blankaspect.iff.Id;
-import uk.org.blankaspect.iff.IffChunk;
-import uk.org.blankaspect.iff.RiffChunk;
 
 import uk.org.blankaspect.util.StringKeyed;
 
@@ -42,28 +39,18 @@ enum AudioFileKind
     AIFF
     (
         AudioFile.Kind.AIFF,
-        CriticalIds.AIFF
-    )
-    {
-        @Override
-        public Chunk createChunk( )
-        {
-            return new IffChunk( );
-        }
-    },
+        CriticalIds.AIFF,
+        AiffFile.AIFF_DATA_ID,
+        true
+    ),
 
     WAVE
     (
         AudioFile.Kind.WAVE,
-        CriticalIds.WAVE
-    )
-    {
-        @Override
-        public Chunk createChunk( )
-        {
-            return new RiffChunk( );
-        }
-    };
+        CriticalIds.WAVE,
+        WaveFile.WAVE_DATA_ID,
+        false
+    );
 
     //------------------------------------------------------------------
 
@@ -86,10 +73,14 @@ enum AudioFileKind
 ////////////////////////////////////////////////////////////////////////
 
     private AudioFileKind( AudioFile.Kind fileKind,
-                           Id[]           criticalIds )
+                           Id[]           criticalIds,
+                           Id             sampleDataId,
+                           boolean        bigEndian )
     {
         this.fileKind = fileKind;
         this.criticalIds = criticalIds;
+        this.sampleDataId = sampleDataId;
+        this.bigEndian = bigEndian;
     }
 
     //------------------------------------------------------------------
@@ -132,14 +123,6 @@ enum AudioFileKind
 
     //------------------------------------------------------------------
 
-////////////////////////////////////////////////////////////////////////
-//  Abstract methods
-////////////////////////////////////////////////////////////////////////
-
-    public abstract Chunk createChunk( );
-
-    //------------------------------------------------------------------
-
 ////////////////////////////////////////////////////////////////////////
 //  Instance methods : StringKeyed interface
 ////////////////////////////////////////////////////////////////////////
@@ -174,6 +157,28 @@ enum AudioFileKind
 
     //------------------------------------------------------------------
 
+    /**
+     * Returns the identifier of the chunk that contains the sample data of this kind of file.
+     */
+
+    public Id getSampleDataId( )
+    {
+        return sampleDataId;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns {@code true} if the sample values in this kind of file are big-endian.
+     */
+
+    public boolean isBigEndian( )
+    {
+        return bigEndian;
+    }
+
+    //------------------------------------------------------------------
+
     public AudioFile createFile( File file )
     {
         return fileKind.createFile( file );
@@ -197,6 +202,8 @@ enum AudioFileKind
 
     private AudioFile.Kind  fileKind;
     private Id[]            criticalIds;
+    private Id              sampleDataId;
+    private boolean         bigEndian;
 
 }
 
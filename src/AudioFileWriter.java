@@ -0,0 +1,513 @@
+/*====================================================================*\
+
+AudioFileWriter.java
+
+Audio file writer class.
+
+\*====================================================================*/
+
+
+// IMPORTS
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.blankaspect.audio.AiffFile;
+import uk.org.blankaspect.audio.WaveFile;
+
+import uk.org.blankaspect.exception.AppException;
+import uk.org.blankaspect.exception.FileException;
+
+import uk.org.blankaspect.iff.Id;
+
+//----------------------------------------------------------------------
+
+
+// AUDIO FILE WRITER CLASS
+
+
+/**
+ * This class writes a WAVE or AIFF file directly through a file channel.  Because the length of the sample
+ * data and the ancillary chunks are known before any sample data are written, the complete layout of the
+ * file is computed when the file is opened: the file is preallocated to its final length, and everything
+ * that precedes the sample data is written at once.  The sample data are then written with gathering
+ * writes, and the chunks that follow the sample data are written when the file is closed.
+ * <p>
+ * The ancillary chunks are written in the order in which they occurred in the source file, relative to the
+ * format and sample data chunks.  The sample data that are passed to {@link #write(ByteBuffer[], int, int)}
+ * must already be in the byte order of the kind of file.
+ * </p>
+ */
+
+class AudioFileWriter
+{
+
+////////////////////////////////////////////////////////////////////////
+//  Constants
+////////////////////////////////////////////////////////////////////////
+
+    private static final    Id  RIFF_ID         = new Id( "RIFF" );
+    private static final    Id  WAVE_TYPE_ID    = new Id( "WAVE" );
+    private static final    Id  FORM_ID         = new Id( "FORM" );
+    private static final    Id  AIFF_TYPE_ID    = new Id( "AIFF" );
+
+    private static final    int CHUNK_SIZE_SIZE     = 4;
+    private static final    int CHUNK_HEADER_SIZE   = Id.SIZE + CHUNK_SIZE_SIZE;
+    private static final    int FORM_HEADER_SIZE    = CHUNK_HEADER_SIZE + Id.SIZE;
+
+    private static final    int WAVE_FORMAT_PCM                 = 1;
+    private static final    int WAVE_FORMAT_CHUNK_SIZE          = 16;
+    private static final    int AIFF_COMMON_CHUNK_SIZE          = 18;
+    private static final    int AIFF_SAMPLE_DATA_HEADER_SIZE    = 8;
+
+    private static final    int EXTENDED_EXPONENT_BIAS  = 16383;
+
+    private static final    long    MAX_CHUNK_SIZE  = 0xFFFFFFFFL;
+
+    private static final    int FORMAT_CHUNK_INDEX  = -1;
+
+////////////////////////////////////////////////////////////////////////
+//  Enumerated types
+////////////////////////////////////////////////////////////////////////
+
+
+    // ERROR IDENTIFIERS
+
+
+    private enum ErrorId
+        implements AppException.Id
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constants
+    ////////////////////////////////////////////////////////////////////
+
+        FAILED_TO_OPEN_FILE
+        ( "Failed to open the file." ),
+
+        FAILED_TO_CLOSE_FILE
+        ( "Failed to close the file." ),
+
+        ERROR_WRITING_FILE
+        ( "An error occurred when writing the file." ),
+
+        FILE_ACCESS_NOT_PERMITTED
+        ( "Access to the file was not permitted." ),
+
+        FILE_TOO_LARGE
+        ( "The sample data are too large for the kind of output file." );
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private ErrorId( String message )
+        {
+            this.message = message;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : AppException.Id interface
+    ////////////////////////////////////////////////////////////////////
+
+        public String getMessage( )
+        {
+            return message;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private String  message;
+
+    }
+
+    //==================================================================
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param file             the output file.
+     * @param fileKind         the kind of the output file.
+     * @param numChannels      the number of channels.
+     * @param bitsPerSample    the number of bits per sample.
+     * @param sampleRate       the sample rate.
+     * @param numSampleFrames  the number of sample frames.
+     * @param privateData      the private data from which the ancillary chunks of the file are restored,
+     *                         which may be {@code null}.
+     */
+
+    public AudioFileWriter( File          file,
+                            AudioFileKind fileKind,
+                            int           numChannels,
+                            int           bitsPerSample,
+                            int           sampleRate,
+                            long          numSampleFrames,
+                            PrivateData   privateData )
+    {
+        this.file = file;
+        this.fileKind = fileKind;
+        this.numChannels = numChannels;
+        this.bitsPerSample = bitsPerSample;
+        this.sampleRate = sampleRate;
+        this.numSampleFrames = numSampleFrames;
+        this.privateData = privateData;
+        bytesPerSampleFrame = (bitsPerSample + 7) / 8 * numChannels;
+        dataLength = numSampleFrames * bytesPerSampleFrame;
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Class methods
+////////////////////////////////////////////////////////////////////////
+
+    private static int getPadSize( long size )
+    {
+        return (int)(size & 1);
+    }
+
+    //------------------------------------------------------------------
+
+    private static void putId( ByteBuffer buffer,
+                               Id         id )
+    {
+        byte[] bytes = new byte[Id.SIZE];
+        id.put( bytes, 0 );
+        buffer.put( bytes );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Puts a non-negative integer in the specified buffer as an 80-bit IEEE 754 extended-precision
+     * floating-point number, as required for the sample rate of an AIFF file.
+     */
+
+    private static void putExtended( ByteBuffer buffer,
+                                     long       value )
+    {
+        int exponent = 0;
+        long mantissa = 0;
+        if ( value > 0 )
+        {
+            int shift = Long.numberOfLeadingZeros( value );
+            exponent = EXTENDED_EXPONENT_BIAS + Long.SIZE - 1 - shift;
+            mantissa = value << shift;
+        }
+        buffer.putShort( (short)exponent );
+        buffer.putLong( mantissa );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the layout of the file, creates the file with its final length, and writes everything that
+     * precedes the sample data.
+     *
+     * @throws AppException
+     *           if the sample data are too large for the kind of file, or if the file could not be opened or
+     *           an error occurred when writing it.
+     */
+
+    public void open( )
+        throws AppException
+    {
+        // Divide chunks between those that precede and those that follow the sample data; the format chunk
+        // precedes the sample data unless the private data place it elsewhere
+        List<Integer> headerChunkIndices = new ArrayList<>( );
+        List<Integer> trailerChunkIndices = new ArrayList<>( );
+        List<Integer> chunkIndices = headerChunkIndices;
+        boolean hasFormatChunk = false;
+        int numChunks = (privateData == null) ? 0 : privateData.getNumChunks( );
+        for ( int i = 0; i < numChunks; ++i )
+        {
+            Id id = privateData.getChunkId( i );
+            if ( id.equals( fileKind.getSampleDataId( ) ) )
+                chunkIndices = trailerChunkIndices;
+            else if ( Util.indexOf( id, fileKind.getCriticalIds( ) ) >= 0 )
+            {
+                chunkIndices.add( FORMAT_CHUNK_INDEX );
+                hasFormatChunk = true;
+            }
+            else
+                chunkIndices.add( i );
+        }
+        if ( !hasFormatChunk )
+            headerChunkIndices.add( 0, FORMAT_CHUNK_INDEX );
+
+        // Calculate lengths of parts of file
+        int sampleDataHeaderSize = (fileKind == AudioFileKind.AIFF) ? AIFF_SAMPLE_DATA_HEADER_SIZE : 0;
+        long sampleDataChunkSize = sampleDataHeaderSize + dataLength;
+
+        long headerLength = FORM_HEADER_SIZE + CHUNK_HEADER_SIZE + sampleDataHeaderSize;
+        for ( int index : headerChunkIndices )
+            headerLength += CHUNK_HEADER_SIZE + getChunkSize( index ) + getPadSize( getChunkSize( index ) );
+
+        long trailerLength = getPadSize( sampleDataChunkSize );
+        for ( int index : trailerChunkIndices )
+            trailerLength += CHUNK_HEADER_SIZE + getChunkSize( index ) + getPadSize( getChunkSize( index ) );
+
+        long fileLength = headerLength + dataLength + trailerLength;
+        if ( (fileLength - CHUNK_HEADER_SIZE > MAX_CHUNK_SIZE) || (numSampleFrames > MAX_CHUNK_SIZE) ||
+             (headerLength + trailerLength > Integer.MAX_VALUE) )
+            throw new FileException( ErrorId.FILE_TOO_LARGE, file );
+
+        // Set the parts of the file that precede and follow the sample data
+        ByteOrder byteOrder = fileKind.isBigEndian( ) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        ByteBuffer header = ByteBuffer.allocate( (int)headerLength ).order( byteOrder );
+        putId( header, (fileKind == AudioFileKind.AIFF) ? FORM_ID : RIFF_ID );
+        header.putInt( (int)(fileLength - CHUNK_HEADER_SIZE) );
+        putId( header, (fileKind == AudioFileKind.AIFF) ? AIFF_TYPE_ID : WAVE_TYPE_ID );
+        for ( int index : headerChunkIndices )
+            putChunk( header, index );
+        putId( header, fileKind.getSampleDataId( ) );
+        header.putInt( (int)sampleDataChunkSize );
+        if ( fileKind == AudioFileKind.AIFF )
+        {
+            header.putInt( 0 );     // offset
+            header.putInt( 0 );     // block size
+        }
+        header.flip( );
+
+        trailer = ByteBuffer.allocate( (int)trailerLength ).order( byteOrder );
+        if ( getPadSize( sampleDataChunkSize ) > 0 )
+            trailer.put( (byte)0 );
+        for ( int index : trailerChunkIndices )
+            putChunk( trailer, index );
+        trailer.flip( );
+
+        // Open file
+        try
+        {
+            raFile = new RandomAccessFile( file, "rw" );
+        }
+        catch ( FileNotFoundException e )
+        {
+            throw new FileException( ErrorId.FAILED_TO_OPEN_FILE, file, e );
+        }
+        catch ( SecurityException e )
+        {
+            throw new FileException( ErrorId.FILE_ACCESS_NOT_PERMITTED, file, e );
+        }
+        channel = raFile.getChannel( );
+
+        // Set length of file and write header
+        try
+        {
+            raFile.setLength( fileLength );
+            channel.position( 0 );
+            while ( header.hasRemaining( ) )
+                channel.write( header );
+        }
+        catch ( IOException e )
+        {
+            abort( );
+            throw new FileException( ErrorId.ERROR_WRITING_FILE, file, e );
+        }
+        sampleDataOffset = headerLength;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes the remaining data of the specified buffers to the file with gathering writes.
+     *
+     * @param buffers  the buffers that contain the sample data.
+     * @param offset   the index of the first buffer in {@code buffers}.
+     * @param length   the number of buffers.
+     * @throws AppException
+     *           if an error occurred when writing the file.
+     */
+
+    public void write( ByteBuffer[] buffers,
+                       int          offset,
+                       int          length )
+        throws AppException
+    {
+        try
+        {
+            int endOffset = offset + length;
+            while ( offset < endOffset )
+            {
+                channel.write( buffers, offset, endOffset - offset );
+                while ( (offset < endOffset) && !buffers[offset].hasRemaining( ) )
+                    ++offset;
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_WRITING_FILE, file, e );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes the chunks that follow the sample data, and closes the file.
+     *
+     * @throws AppException
+     *           if an error occurred when writing or closing the file.
+     */
+
+    public void close( )
+        throws AppException
+    {
+        // Write trailer
+        try
+        {
+            long position = sampleDataOffset + dataLength;
+            while ( trailer.hasRemaining( ) )
+                position += channel.write( trailer, position );
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_WRITING_FILE, file, e );
+        }
+
+        // Close file
+        try
+        {
+            raFile.close( );
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
+        }
+        finally
+        {
+            raFile = null;
+            channel = null;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Closes the file without completing it, and deletes it.  Any exception is ignored.
+     */
+
+    public void abort( )
+    {
+        try
+        {
+            if ( raFile != null )
+                raFile.close( );
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+        finally
+        {
+            raFile = null;
+            channel = null;
+        }
+        file.delete( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the size of the data of the chunk at the specified index of the private data, or of the
+     * format chunk if the index is {@link #FORMAT_CHUNK_INDEX}.
+     */
+
+    private int getChunkSize( int index )
+    {
+        if ( index == FORMAT_CHUNK_INDEX )
+            return ( (fileKind == AudioFileKind.AIFF) ? AIFF_COMMON_CHUNK_SIZE : WAVE_FORMAT_CHUNK_SIZE );
+        return privateData.getChunkSize( index );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Puts in the specified buffer the chunk at the specified index of the private data, or the format chunk
+     * if the index is {@link #FORMAT_CHUNK_INDEX}, followed by a pad byte if the size of the chunk is odd.
+     */
+
+    private void putChunk( ByteBuffer buffer,
+                           int        index )
+    {
+        // Format chunk
+        if ( index == FORMAT_CHUNK_INDEX )
+        {
+            if ( fileKind == AudioFileKind.AIFF )
+            {
+                putId( buffer, AiffFile.AIFF_COMMON_ID );
+                buffer.putInt( AIFF_COMMON_CHUNK_SIZE );
+                buffer.putShort( (short)numChannels );
+                buffer.putInt( (int)numSampleFrames );
+                buffer.putShort( (short)bitsPerSample );
+                putExtended( buffer, sampleRate );
+            }
+            else
+            {
+                putId( buffer, WaveFile.WAVE_FORMAT_ID );
+                buffer.putInt( WAVE_FORMAT_CHUNK_SIZE );
+                buffer.putShort( (short)WAVE_FORMAT_PCM );
+                buffer.putShort( (short)numChannels );
+                buffer.putInt( sampleRate );
+                buffer.putInt( sampleRate * bytesPerSampleFrame );
+                buffer.putShort( (short)bytesPerSampleFrame );
+                buffer.putShort( (short)bitsPerSample );
+            }
+        }
+
+        // Ancillary chunk
+        else
+        {
+            putId( buffer, privateData.getChunkId( index ) );
+            buffer.putInt( privateData.getChunkSize( index ) );
+            buffer.put( privateData.getChunkData( index ) );
+            if ( getPadSize( privateData.getChunkSize( index ) ) > 0 )
+                buffer.put( (byte)0 );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private File                file;
+    private AudioFileKind       fileKind;
+    private int                 numChannels;
+    private int                 bitsPerSample;
+    private int                 sampleRate;
+    private long                numSampleFrames;
+    private PrivateData         privateData;
+    private int                 bytesPerSampleFrame;
+    private long                dataLength;
+    private RandomAccessFile    raFile;
+    private FileChannel         channel;
+    private ByteBuffer          trailer;
+    private long                sampleDataOffset;
+
+}
+
+//----------------------------------------------------------------------
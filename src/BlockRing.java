@@ -0,0 +1,341 @@
+/*====================================================================*\
+
+BlockRing.java
+
+Block ring class.
+
+\*====================================================================*/
+
+
+// IMPORTS
+
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.locks.LockSupport;
+
+import uk.org.blankaspect.exception.AppException;
+import uk.org.blankaspect.exception.TaskCancelledException;
+
+import uk.org.blankaspect.util.ByteDataSource;
+
+//----------------------------------------------------------------------
+
+
+// BLOCK RING CLASS
+
+
+/**
+ * This class implements a bounded ring of reusable block buffers through which blocks of sample data are
+ * passed from a single producer thread to a single consumer thread.  The producer fills the buffer of a free
+ * slot and puts it in the ring; the consumer takes the filled slots in the order in which they were put.  A
+ * slot that has been taken is returned to the producer when the consumer takes the next slot, so the data
+ * that is returned by {@link #take()} remains valid only until the next call to that method.  The consumer
+ * may also take all the filled slots at once with {@link #take(ByteBuffer[])}, for a gathering write.
+ * <p>
+ * The ring is lock-free: each index is written by only one of the two threads, and a thread that finds the
+ * ring full (producer) or empty (consumer) parks until the other thread wakes it.  While it is parked, the
+ * ring is registered as a cancellation listener of the task, so that the cancellation of the task wakes it
+ * immediately.  If either side fails, it aborts the ring so that the other side stops waiting.  The number
+ * of times that each side had to wait is recorded.
+ * </p>
+ */
+
+class BlockRing
+    implements Task.CancellationListener
+{
+
+////////////////////////////////////////////////////////////////////////
+//  Constants
+////////////////////////////////////////////////////////////////////////
+
+    public static final     int MIN_NUM_SLOTS       = 2;
+    public static final     int MAX_NUM_SLOTS       = 256;
+    public static final     int DEFAULT_NUM_SLOTS   = 8;
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
+////////////////////////////////////////////////////////////////////////
+
+    public BlockRing( int numSlots )
+    {
+        if ( (numSlots < MIN_NUM_SLOTS) || (numSlots > MAX_NUM_SLOTS) )
+            throw new IllegalArgumentException( );
+
+        slotData = new byte[numSlots][];
+        slotBuffers = new ByteBuffer[numSlots];
+        slotLengths = new int[numSlots];
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods : Task.CancellationListener interface
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Wakes the producer and the consumer if they are waiting, so that they detect the cancellation of the
+     * task.
+     */
+
+    public void taskCancelled( )
+    {
+        LockSupport.unpark( producerThread );
+        LockSupport.unpark( consumerThread );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    public int getNumSlots( )
+    {
+        return slotData.length;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the number of slots that have been put in the ring since it was last reset.
+     */
+
+    public long getNumBlocks( )
+    {
+        return putIndex;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the number of times that the producer found the ring full and had to wait for the consumer.
+     */
+
+    public long getNumProducerWaits( )
+    {
+        return numProducerWaits;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the number of times that the consumer found the ring empty and had to wait for the producer.
+     */
+
+    public long getNumConsumerWaits( )
+    {
+        return numConsumerWaits;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Empties the ring and clears the wait counts.  The buffers of the slots are kept for reuse.  This
+     * method must not be called while either the producer or the consumer is using the ring.
+     */
+
+    public void reset( )
+    {
+        aborted = false;
+        exception = null;
+        takeIndex = 0;
+        releaseIndex = 0;
+        putIndex = 0;
+        numProducerWaits = 0;
+        numConsumerWaits = 0;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Aborts the transfer of data through the ring and wakes both sides.  The next call to {@link
+     * #getFreeBuffer(int)} throws the specified exception (or a {@code TaskCancelledException} if it is
+     * {@code null}), and the next call to {@link #take()} throws a {@code TaskCancelledException}.
+     *
+     * @param exception  the exception that caused the transfer to be aborted, which may be {@code null}.
+     */
+
+    public void abort( AppException exception )
+    {
+        this.exception = exception;
+        aborted = true;
+        LockSupport.unpark( producerThread );
+        LockSupport.unpark( consumerThread );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the producer thread.  Waits for a free slot, and returns its buffer, which is reallocated if it
+     * is shorter than the specified length.
+     *
+     * @param  length  the minimum length of the buffer.
+     * @return the buffer of the next free slot.
+     * @throws AppException
+     *           if the ring was aborted or the task has been cancelled.
+     */
+
+    public byte[] getFreeBuffer( int length )
+        throws AppException
+    {
+        // Wait for a slot to become free
+        if ( putIndex - releaseIndex >= slotData.length )
+        {
+            ++numProducerWaits;
+            producerThread = Thread.currentThread( );
+            Task.addCancellationListener( this );
+            while ( !aborted && !Task.isCancelled( ) && (putIndex - releaseIndex >= slotData.length) )
+                LockSupport.park( this );
+            Task.removeCancellationListener( this );
+            producerThread = null;
+        }
+
+        // Test whether the ring has been aborted or the task has been cancelled
+        if ( aborted && (exception != null) )
+            throw exception;
+        if ( aborted || Task.isCancelled( ) )
+            throw new TaskCancelledException( );
+
+        // Return buffer of slot
+        int index = (int)(putIndex % slotData.length);
+        if ( (slotData[index] == null) || (slotData[index].length < length) )
+        {
+            slotData[index] = new byte[length];
+            slotBuffers[index] = null;
+        }
+        return slotData[index];
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the producer thread.  Puts the slot whose buffer was returned by the last call to {@link
+     * #getFreeBuffer(int)} in the ring, and wakes the consumer if it is waiting.
+     *
+     * @param length  the length of the data in the buffer of the slot.
+     */
+
+    public void put( int length )
+    {
+        slotLengths[(int)(putIndex % slotData.length)] = length;
+        ++putIndex;
+        LockSupport.unpark( consumerThread );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the consumer thread.  Returns the slot that was taken by the previous call to this method to
+     * the producer, then waits for a filled slot and takes it.
+     *
+     * @return the data of the slot that was taken.
+     * @throws TaskCancelledException
+     *           if the ring was aborted or the task has been cancelled.
+     */
+
+    public ByteDataSource.ByteData take( )
+        throws TaskCancelledException
+    {
+        // Return previous slot to producer, and wait for a filled slot
+        awaitFilledSlot( );
+
+        // Take slot
+        int index = (int)(takeIndex++ % slotData.length);
+        return new ByteDataSource.ByteData( slotData[index], 0, slotLengths[index] );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the consumer thread.  Returns the slots that were taken by the previous call to this method or
+     * to {@link #take()} to the producer, then waits for a filled slot and takes all the filled slots, up to
+     * the length of the specified array.  The data of each slot that was taken is set in the array as a
+     * buffer whose position is 0 and whose limit is the length of the data.  The buffers belong to the ring
+     * and remain valid only until the next call to this method.
+     *
+     * @param  buffers  the array in which the buffers of the slots that were taken will be set.
+     * @return the number of slots that were taken.
+     * @throws TaskCancelledException
+     *           if the ring was aborted or the task has been cancelled.
+     */
+
+    public int take( ByteBuffer[] buffers )
+        throws TaskCancelledException
+    {
+        // Return previous slots to producer, and wait for a filled slot
+        awaitFilledSlot( );
+
+        // Take filled slots
+        int numSlots = (int)Math.min( putIndex - takeIndex, buffers.length );
+        for ( int i = 0; i < numSlots; ++i )
+        {
+            int index = (int)(takeIndex++ % slotData.length);
+            if ( slotBuffers[index] == null )
+                slotBuffers[index] = ByteBuffer.wrap( slotData[index] );
+            slotBuffers[index].clear( );
+            slotBuffers[index].limit( slotLengths[index] );
+            buffers[i] = slotBuffers[index];
+        }
+        return numSlots;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the consumer thread.  Returns the slots that have been taken to the producer, then waits for a
+     * filled slot.
+     *
+     * @throws TaskCancelledException
+     *           if the ring was aborted or the task has been cancelled.
+     */
+
+    private void awaitFilledSlot( )
+        throws TaskCancelledException
+    {
+        // Return previous slots to producer
+        if ( releaseIndex < takeIndex )
+        {
+            releaseIndex = takeIndex;
+            LockSupport.unpark( producerThread );
+        }
+
+        // Wait for a filled slot
+        if ( takeIndex == putIndex )
+        {
+            ++numConsumerWaits;
+            consumerThread = Thread.currentThread( );
+            Task.addCancellationListener( this );
+            while ( !aborted && !Task.isCancelled( ) && (takeIndex == putIndex) )
+                LockSupport.park( this );
+            Task.removeCancellationListener( this );
+            consumerThread = null;
+        }
+
+        // Test whether the ring has been aborted or the task has been cancelled
+        if ( aborted || Task.isCancelled( ) )
+            throw new TaskCancelledException( );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private byte[][]                slotData;
+    private ByteBuffer[]            slotBuffers;
+    private int[]                   slotLengths;
+    private long                    takeIndex;
+    private volatile long           releaseIndex;
+    private volatile long           putIndex;
+    private volatile Thread         producerThread;
+    private volatile Thread         consumerThread;
+    private volatile boolean        aborted;
+    private volatile AppException   exception;
+    private volatile long           numProducerWaits;
+    private volatile long           numConsumerWaits;
+
+}
+
+//----------------------------------------------------------------------
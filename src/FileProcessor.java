@@ -11,12 +11,18 @@ File processor class.
 
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
 
 import java.text.DecimalFormat;
 
-import java.util.ArrayList;
 import java.util.List;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
 import java.util.zip.CRC32;
 
 import uk.org.blankaspect.audio.AudioFile;
@@ -25,8 +31,10 @@ import uk.org.blankaspect.exception.AppException;
 import uk.org.blankaspect.exception.FileException;
 import uk.org.blankaspect.exception.TaskCancelledException;
 
-import uk.org.blankaspect.iff.Chunk;
+import uk.org.blankaspect.gui.ProgressView;
+
 import uk.org.blankaspect.iff.ChunkFilter;
+import uk.org.blankaspect.iff.FormFile;
 import uk.org.blankaspect.iff.Id;
 
 import uk.org.blankaspect.util.ByteDataOutputStream;
@@ -52,6 +60,12 @@ class FileProcessor
     private static final    String  VALID_STR               = "The file was valid.";
     private static final    String  SECONDS_STR             = " seconds";
     private static final    String  PRESERVED_CHUNKS_STR    = "Preserved chunks: ";
+    private static final    String  BLOCK_BUFFER_WAITS_STR  = "Block buffer waits: ";
+    private static final    String  READER_STR              = "reader ";
+    private static final    String  WRITER_STR              = ", writer ";
+    private static final    String  BLOCKS_STR              = " blocks";
+
+    private static final    int AIFF_SAMPLE_DATA_HEADER_SIZE    = 8;
 
     private static final    DecimalFormat   FORMAT  = new DecimalFormat( "0.0" );
 
@@ -74,6 +88,9 @@ class FileProcessor
         UNRECOGNISED_FILE_KIND
         ( "The input file is not a recognised kind of audio file." ),
 
+        NO_SAMPLE_DATA_CHUNK
+        ( "The file does not have a sample data chunk." ),
+
         INCONSISTENT_FILE_KINDS
         ( "The input file is a different kind of audio file from the output file." ),
 
@@ -93,8 +110,8 @@ class FileProcessor
         ( "The file has %1 bits per sample.\n" + App.SHORT_NAME + " works only with files that have " +
             "16 or 24 bits per sample." ),
 
-        TOO_MANY_SAMPLE_FRAMES
-        ( "The file contains too many sample frames for " + App.SHORT_NAME + "." );
+        UNEXPECTED_WRITER_ERROR
+        ( "An unexpected error occurred when writing the file:\n%1" );
 
     ////////////////////////////////////////////////////////////////////
     //  Constructors
@@ -149,6 +166,19 @@ class FileProcessor
 
         //--------------------------------------------------------------
 
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        public void add( ValidationResult result )
+        {
+            numFound += result.numFound;
+            numValidated += result.numValidated;
+            numValid += result.numValid;
+        }
+
+        //--------------------------------------------------------------
+
     ////////////////////////////////////////////////////////////////////
     //  Instance variables
     ////////////////////////////////////////////////////////////////////
@@ -166,100 +196,110 @@ class FileProcessor
 ////////////////////////////////////////////////////////////////////////
 
 
-    // COMPRESSOR CLASS
+    // SOURCE READER CLASS
 
 
-    private class Compressor
-        implements ByteDataOutputStream, OndaFile.CompressedDataSource
+    /**
+     * This class walks the chunks of an input file once.  It passes the ancillary chunks to a private-data
+     * reader, if there is one, and records the location of the sample data, which is read afterwards by
+     * {@link FileProcessor#readSampleData(File, long, boolean)}.  The sample data are not read during the
+     * walk because the private data must be complete before the compressed data can be written, and an
+     * ancillary chunk may follow the sample data chunk.
+     */
+
+    private class SourceReader
+        implements FormFile.ChunkReader
     {
 
     ////////////////////////////////////////////////////////////////////
     //  Constructors
     ////////////////////////////////////////////////////////////////////
 
-        private Compressor( )
+        private SourceReader( AudioFileKind        fileKind,
+                              FormFile.ChunkReader privateDataReader )
         {
+            this.fileKind = fileKind;
+            this.privateDataReader = privateDataReader;
         }
 
         //--------------------------------------------------------------
 
     ////////////////////////////////////////////////////////////////////
-    //  Instance methods : ByteDataOutputStream interface
+    //  Instance methods : FormFile.ChunkReader interface
     ////////////////////////////////////////////////////////////////////
 
-        /**
-         * Runs in Task.Compress (primary thread).
-         */
+        public void beginReading( RandomAccessFile raFile,
+                                  Id               typeId,
+                                  int              size )
+            throws AppException, IOException
+        {
+            sampleDataOffset = -1;
+            if ( privateDataReader != null )
+                privateDataReader.beginReading( raFile, typeId, size );
+        }
 
-        public synchronized void write( byte[] buffer,
-                                        int    offset,
-                                        int    length )
-            throws AppException
+        //--------------------------------------------------------------
+
+        public void read( RandomAccessFile raFile,
+                          Id               id,
+                          int              size )
+            throws AppException, IOException
         {
-            try
+            // Record location of sample data
+            if ( id.equals( fileKind.getSampleDataId( ) ) )
             {
-                while ( length > 0 )
+                long offset = raFile.getFilePointer( );
+                if ( fileKind == AudioFileKind.AIFF )
                 {
-                    // Wait for sample data buffer to become free
-                    while ( !Task.isExceptionOrCancelled( ) && (sampleData != null) )
-                    {
-                        try
-                        {
-                            wait( 100 );
-                        }
-                        catch ( InterruptedException e )
-                        {
-                            // ignore
-                        }
-                    }
-
-                    // Test whether an exception has occurred in another thread or the task has been
-                    // cancelled
-                    Task.throwIfExceptionOrCancelled( );
-
-                    // Allocate buffer for block
-                    if ( blockBuffer == null )
-                    {
-                        blockBuffer = new byte[Math.min( numSampleFrames - inSampleFrameIndex,
-                                                         AppConfig.getInstance( ).getBlockLength( ) ) *
-                                                                                    bytesPerSampleFrame];
-                        blockBufferOffset = 0;
-                    }
-
-                    // Copy sample data to block buffer
-                    int copyLength = Math.min( length, blockBuffer.length - blockBufferOffset );
-                    System.arraycopy( buffer, offset, blockBuffer, blockBufferOffset, copyLength );
-
-                    // Update offsets and length
-                    blockBufferOffset += copyLength;
-                    offset += copyLength;
-                    length -= copyLength;
-
-                    // Make sample data available for output
-                    if ( blockBufferOffset == blockBuffer.length )
-                    {
-                        // Update CRC
-                        crc.update( blockBuffer );
-
-                        // Increment sample frame index
-                        inSampleFrameIndex += blockBuffer.length / bytesPerSampleFrame;
-
-                        // Make sample data available to output thread
-                        sampleData = blockBuffer;
-
-                        // Free block buffer
-                        blockBuffer = null;
-                    }
-
-                    // Wake up waiting threads
-                    notifyAll( );
+                    long dataOffset = raFile.readInt( ) & 0xFFFFFFFFL;
+                    raFile.seek( offset );
+                    offset += AIFF_SAMPLE_DATA_HEADER_SIZE + dataOffset;
                 }
+                sampleDataOffset = offset;
             }
-            catch ( AppException e )
-            {
-                notifyAll( );
-                throw e;
-            }
+
+            // Read private data
+            if ( privateDataReader != null )
+                privateDataReader.read( raFile, id, size );
+        }
+
+        //--------------------------------------------------------------
+
+        public void endReading( RandomAccessFile raFile )
+            throws AppException, IOException
+        {
+            if ( privateDataReader != null )
+                privateDataReader.endReading( raFile );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private AudioFileKind           fileKind;
+        private FormFile.ChunkReader    privateDataReader;
+        private long                    sampleDataOffset;
+
+    }
+
+    //==================================================================
+
+
+    // COMPRESSOR CLASS
+
+
+    private class Compressor
+        implements OndaFile.CompressedDataSource
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private Compressor( )
+        {
         }
 
         //--------------------------------------------------------------
@@ -272,46 +312,19 @@ class FileProcessor
          * Runs in Task.WriteCompressed (secondary thread).
          */
 
-        public synchronized ByteDataSource.ByteData getData( )
+        public ByteDataSource.ByteData getData( )
             throws AppException
         {
             // Get sample data
             ByteDataSource.ByteData data = null;
             if ( outSampleFrameIndex < numSampleFrames )
             {
-                // Wait for sample data
-                while ( !Task.isCancelled( ) && (sampleData == null) )
-                {
-                    try
-                    {
-                        wait( 100 );
-                    }
-                    catch ( InterruptedException e )
-                    {
-                        // ignore
-                    }
-                }
-
-                // Test whether task has been cancelled
-                if ( Task.isCancelled( ) )
-                {
-                    notifyAll( );
-                    throw new TaskCancelledException( );
-                }
-
-                // Create sample data object
-                data = new ByteDataSource.ByteData( sampleData );
-                outSampleFrameIndex += sampleData.length / bytesPerSampleFrame;
-
-                // Free sample data buffer
-                sampleData = null;
+                data = blockRing.take( );
+                outSampleFrameIndex += data.length / bytesPerSampleFrame;
             }
 
-            // Wake up waiting threads
-            notifyAll( );
-
             // Update progress of task
-            Task.setProgress( (double)outSampleFrameIndex / (double)numSampleFrames );
+            setProgress( outSampleFrameIndex );
 
             // Return sample data
             return data;
@@ -334,19 +347,38 @@ class FileProcessor
     //  Instance methods
     ////////////////////////////////////////////////////////////////////
 
-        public void init( )
+        /**
+         * Runs in Task.Compress (primary thread).  Reads the sample data from the specified PCM reader
+         * directly into the free block buffers of the ring, and puts each block in the ring for the output
+         * thread when it is full.
+         */
+
+        public void readBlocks( PcmReader pcmReader )
+            throws AppException
         {
-            blockBuffer = null;
-        }
+            int maxBlockLength = AppConfig.getInstance( ).getBlockLength( );
+            while ( inSampleFrameIndex < numSampleFrames )
+            {
+                // Get free block buffer from ring
+                int blockLength = (int)Math.min( numSampleFrames - inSampleFrameIndex, maxBlockLength ) *
+                                                                                    bytesPerSampleFrame;
+                byte[] blockBuffer = blockRing.getFreeBuffer( blockLength );
 
-        //--------------------------------------------------------------
+                // Read sample data into block buffer
+                pcmReader.read( blockBuffer, 0, blockLength );
 
-    ////////////////////////////////////////////////////////////////////
-    //  Instance variables
-    ////////////////////////////////////////////////////////////////////
+                // Update CRC
+                crc.update( blockBuffer, 0, blockLength );
+
+                // Increment sample frame index
+                inSampleFrameIndex += blockLength / bytesPerSampleFrame;
+
+                // Put block buffer in ring for output thread
+                blockRing.put( blockLength );
+            }
+        }
 
-        private int     blockBufferOffset;
-        private byte[]  blockBuffer;
+        //--------------------------------------------------------------
 
     }
 
@@ -357,7 +389,7 @@ class FileProcessor
 
 
     private class Expander
-        implements ByteDataOutputStream, ByteDataSource
+        implements ByteDataOutputStream
     {
 
     ////////////////////////////////////////////////////////////////////
@@ -378,121 +410,68 @@ class FileProcessor
          * Runs in Task.Expand (primary thread).
          */
 
-        public synchronized void write( byte[] buffer,
-                                        int    offset,
-                                        int    length )
+        public void write( byte[] buffer,
+                           int    offset,
+                           int    length )
             throws AppException
         {
-            try
-            {
-                // Wait for sample data buffer to become free
-                while ( !Task.isExceptionOrCancelled( ) && (sampleData != null) )
-                {
-                    try
-                    {
-                        wait( 100 );
-                    }
-                    catch ( InterruptedException e )
-                    {
-                        // ignore
-                    }
-                }
-
-                // Test whether an exception has occurred in another thread or the task has been cancelled
-                Task.throwIfExceptionOrCancelled( );
+            // Get free block buffer from ring
+            byte[] blockBuffer = blockRing.getFreeBuffer( length );
 
-                // Update CRC
-                crc.update( buffer, offset, length );
-
-                // Copy sample data to buffer
-                sampleData = new byte[length];
-                System.arraycopy( buffer, offset, sampleData, 0, length );
+            // Update CRC
+            crc.update( buffer, offset, length );
 
-                // Wake up waiting threads
-                notifyAll( );
-            }
-            catch ( AppException e )
-            {
-                notifyAll( );
-                throw e;
-            }
+            // Copy sample data to block buffer, converting them to big-endian if required, and put block
+            // buffer in ring for output thread
+            if ( bigEndian )
+                copyReversed( buffer, offset, blockBuffer, length );
+            else
+                System.arraycopy( buffer, offset, blockBuffer, 0, length );
+            blockRing.put( length );
         }
 
         //--------------------------------------------------------------
 
     ////////////////////////////////////////////////////////////////////
-    //  Instance methods : ByteDataSource interface
+    //  Instance methods
     ////////////////////////////////////////////////////////////////////
 
-        /**
-         * Runs in Task.WriteExpanded (secondary thread).
-         */
-
-        public void reset( )
-        {
-            // do nothing
-        }
-
-        //--------------------------------------------------------------
-
-        public long getLength( )
+        public void init( boolean bigEndian )
         {
-            return ( numSampleFrames * bytesPerSampleFrame );
+            this.bigEndian = bigEndian;
         }
 
         //--------------------------------------------------------------
 
         /**
-         * Runs in Task.WriteExpanded (secondary thread).
+         * Copies sample values from a source buffer to the start of a destination buffer, reversing the order
+         * of the bytes of each value.
          */
 
-        public synchronized ByteDataSource.ByteData getData( )
-            throws AppException
+        private void copyReversed( byte[] source,
+                                   int    offset,
+                                   byte[] dest,
+                                   int    length )
         {
-            // Get sample data
-            ByteDataSource.ByteData data = null;
-            if ( outSampleFrameIndex < numSampleFrames )
+            int bytesPerSample = bitsPerSample.getBytesPerSample( );
+            int endOffset = offset + length;
+            int destOffset = 0;
+            while ( offset < endOffset )
             {
-                // Wait for sample data
-                while ( !Task.isCancelled( ) && (sampleData == null) )
-                {
-                    try
-                    {
-                        wait( 100 );
-                    }
-                    catch ( InterruptedException e )
-                    {
-                        // ignore
-                    }
-                }
-
-                // Test whether task has been cancelled
-                if ( Task.isCancelled( ) )
-                {
-                    notifyAll( );
-                    throw new TaskCancelledException( );
-                }
-
-                // Create sample data object
-                data = new ByteDataSource.ByteData( sampleData );
-                outSampleFrameIndex += sampleData.length / bytesPerSampleFrame;
-
-                // Free sample data buffer
-                sampleData = null;
+                for ( int i = offset + bytesPerSample - 1; i >= offset; --i )
+                    dest[destOffset++] = source[i];
+                offset += bytesPerSample;
             }
-
-            // Wake up waiting threads
-            notifyAll( );
-
-            // Update progress of task
-            Task.setProgress( (double)outSampleFrameIndex / (double)numSampleFrames );
-
-            // Return sample data
-            return data;
         }
 
         //--------------------------------------------------------------
 
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private boolean bigEndian;
+
     }
 
     //==================================================================
@@ -523,9 +502,9 @@ class FileProcessor
          * Runs in Task.Validate (primary thread).
          */
 
-        public synchronized void write( byte[] buffer,
-                                        int    offset,
-                                        int    length )
+        public void write( byte[] buffer,
+                           int    offset,
+                           int    length )
             throws AppException
         {
             // Test whether task has been cancelled
@@ -538,7 +517,7 @@ class FileProcessor
             inSampleFrameIndex += length / bytesPerSampleFrame;
 
             // Update progress of task
-            Task.setProgress( (double)inSampleFrameIndex / (double)numSampleFrames );
+            setProgress( inSampleFrameIndex );
         }
 
         //--------------------------------------------------------------
@@ -551,11 +530,36 @@ class FileProcessor
 //  Constructors
 ////////////////////////////////////////////////////////////////////////
 
-    public FileProcessor( )
+    /**
+     * Constructs a file processor.  A file processor may be used for any number of files in turn; the
+     * buffers that it allocates for the first file are reused for later files.  The executors are not shut
+     * down by the file processor, so they may be shared by several file processors.
+     *
+     * @param writerExecutor     the executor on which the thread that writes an output file is run.
+     * @param encoderExecutor    the executor on which blocks of sample data are compressed concurrently.
+     * @param numEncoderThreads  the maximum number of threads of {@code encoderExecutor} on which a file
+     *                           is compressed.
+     * @param decoderExecutor    the executor on which slices of compressed data are decoded concurrently.
+     * @param numDecoderThreads  the maximum number of threads of {@code decoderExecutor} on which a file
+     *                           is decoded.
+     */
+
+    public FileProcessor( Executor        writerExecutor,
+                          ExecutorService encoderExecutor,
+                          int             numEncoderThreads,
+                          ExecutorService decoderExecutor,
+                          int             numDecoderThreads )
     {
+        this.writerExecutor = writerExecutor;
+        this.encoderExecutor = encoderExecutor;
+        this.numEncoderThreads = numEncoderThreads;
+        this.decoderExecutor = decoderExecutor;
+        this.numDecoderThreads = numDecoderThreads;
         compressor = new Compressor( );
+        pcmReader = new PcmReader( );
         expander = new Expander( );
         validator = new Validator( );
+        crc = new CRC32( );
     }
 
     //------------------------------------------------------------------
@@ -577,6 +581,7 @@ class FileProcessor
         long startTime = System.currentTimeMillis( );
 
         // Update information field in progress view
+        progressView = Task.getProgressView( );
         Task.setInfo( READING_STR, inFile );
         Task.setProgress( 0.0 );
 
@@ -609,14 +614,23 @@ class FileProcessor
         // Set number of sample frames
         numSampleFrames = audioFile.getNumSampleFrames( );
 
-        // Compress private chunks in input file
-        byte[] compressedPrivateData = null;
-        List<Id> ids = null;
+        // Walk the chunks of the input file once, compressing its private chunks and locating its sample
+        // data
+        PrivateData privateData = null;
         ChunkFilter chunkFilter = chunkFilters[audioFileKind.ordinal( )];
         if ( !chunkFilter.isExcludeAll( ) )
+            privateData = new PrivateData( audioFileKind );
+        FormFile.ChunkReader privateDataReader =
+                                    (privateData == null) ? null : privateData.getReader( chunkFilter );
+        SourceReader sourceReader = new SourceReader( audioFileKind, privateDataReader );
+        audioFile.read( sourceReader );
+        if ( (sourceReader.sampleDataOffset < 0) && (numSampleFrames > 0) )
+            throw new FileException( ErrorId.NO_SAMPLE_DATA_CHUNK, inFile );
+
+        byte[] compressedPrivateData = null;
+        List<Id> ids = null;
+        if ( privateData != null )
         {
-            PrivateData privateData = new PrivateData( audioFileKind );
-            audioFile.read( privateData.getReader( chunkFilter ) );
             ids = privateData.getAncillaryIds( );
             if ( !ids.isEmpty( ) )
                 compressedPrivateData = privateData.getCompressedData( );
@@ -625,29 +639,37 @@ class FileProcessor
         // Initialise variables
         inSampleFrameIndex = 0;
         outSampleFrameIndex = 0;
-        sampleData = null;
-        crc = new CRC32( );
-        compressor.init( );
+        initBlockRing( );
+        crc.reset( );
 
         // Update information field in progress view
         Task.setInfo( WRITING_STR, outFile );
 
         // Start thread that writes output file
-        new Task.WriteCompressed( this, outFile, compressedPrivateData ).start( );
+        writerTask = new Task.WriteCompressed( this, outFile, compressedPrivateData );
+        writerTask.execute( writerExecutor );
 
         // Read sample data from input file
-        audioFile.readInteger( compressor, null );
-
-        // Wait for writing thread to finish
-        while ( Task.getNumThreads( ) > 1 )
+        try
+        {
+            readSampleData( inFile, sourceReader.sampleDataOffset, audioFileKind.isBigEndian( ) );
+        }
+        catch ( AppException e )
         {
-            Thread.yield( );
+            blockRing.abort( null );
+            writerTask.awaitCompletion( );
+            throw e;
         }
 
+        // Wait for writing thread to finish
+        writerTask.awaitCompletion( );
+
         // Append result to log
         if ( (ids != null) && !ids.isEmpty( ) )
             Log.getInstance( ).appendLine( PRESERVED_CHUNKS_STR + Util.listToString( ids ) );
 
+        appendBlockRingWaits( );
+
         double compressionFactor = (double)compressedDataSize /
                                                     (double)(numSampleFrames * bytesPerSampleFrame) * 100.0;
         double seconds = (double)(System.currentTimeMillis( ) - startTime) * 0.001;
@@ -659,43 +681,100 @@ class FileProcessor
 
     /**
      * Runs in Task.Expand (primary thread).
+     *
+     * @param inFile         the compressed input file.
+     * @param ondaFile       an open reader for the input file, or {@code null} if the file is to be opened by
+     *                       this method.  The reader is closed when the file has been expanded.
+     * @param outFile        the output file.
+     * @param audioFileKind  the kind of the output file.
+     */
+
+    public void expand( File           inFile,
+                        OndaFileReader ondaFile,
+                        File           outFile,
+                        AudioFileKind  audioFileKind )
+        throws AppException
+    {
+        // Open input file
+        if ( ondaFile == null )
+            ondaFile = OndaFileIff.openReader( inFile );
+
+        // Expand file
+        try
+        {
+            expand( ondaFile, inFile, outFile, audioFileKind );
+            ondaFile.close( );
+        }
+        catch ( AppException e )
+        {
+            ondaFile.closeIgnoreException( );
+            throw e;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in Task.Validate (primary thread).
      */
 
-    public void expand( File          inFile,
-                        File          outFile,
-                        AudioFileKind audioFileKind )
+    public void validate( File             file,
+                          ValidationResult validationResult )
+        throws AppException
+    {
+        // Increment count of files found
+        ++validationResult.numFound;
+
+        // Open file
+        OndaFileReader ondaFile = OndaFileIff.openReader( file );
+
+        // Validate file
+        try
+        {
+            validate( ondaFile, file, validationResult );
+            ondaFile.close( );
+        }
+        catch ( AppException e )
+        {
+            ondaFile.closeIgnoreException( );
+            throw e;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in Task.Expand (primary thread).
+     */
+
+    private void expand( OndaFileReader ondaFile,
+                         File           inFile,
+                         File           outFile,
+                         AudioFileKind  audioFileKind )
         throws AppException
     {
         // Get system time
         long startTime = System.currentTimeMillis( );
 
         // Update information field in progress view
+        progressView = Task.getProgressView( );
         Task.setInfo( READING_STR, inFile );
         Task.setProgress( 0.0 );
 
         // Read attributes and private data; set attributes
-        OndaFileReader ondaFile = OndaFileIff.getFileKind( inFile ).createReader( inFile );
         setAttributes( inFile, ondaFile.readAttributesAndPrivateData( ) );
 
-        // Convert private data to chunks
+        // Expand private data, from which the ancillary chunks of the output file are restored
         List<Id> ids = null;
-        List<Chunk> chunks = null;
+        PrivateData privateData = null;
         if ( ondaFile.getPrivateData( ) != null )
         {
             try
             {
-                PrivateData privateData = new PrivateData( ondaFile.getPrivateData( ) );
+                privateData = new PrivateData( ondaFile.getPrivateData( ) );
                 if ( privateData.getSourceKind( ) != audioFileKind )
                     throw new AppException( ErrorId.INCONSISTENT_FILE_KINDS );
                 ids = privateData.getAncillaryIds( );
-                int numChunks = privateData.getNumChunks( );
-                chunks = new ArrayList<>( );
-                for ( int i = 0; i < numChunks; ++i )
-                {
-                    Chunk chunk = audioFileKind.createChunk( );
-                    privateData.setChunk( i, chunk );
-                    chunks.add( chunk );
-                }
             }
             catch ( AppException e )
             {
@@ -705,28 +784,36 @@ class FileProcessor
 
         // Initialise variables
         outSampleFrameIndex = 0;
-        sampleData = null;
-        crc = new CRC32( );
+        initBlockRing( );
+        crc.reset( );
+        expander.init( audioFileKind.isBigEndian( ) );
 
         // Update information field in progress view
         Task.setInfo( WRITING_STR, outFile );
 
         // Start thread that writes output file
-        new Task.WriteExpanded( this, outFile, audioFileKind, chunks ).start( );
+        writerTask = new Task.WriteExpanded( this, outFile, audioFileKind, privateData );
+        writerTask.execute( writerExecutor );
 
         // Read and expand compressed sample data
-        ondaFile.readData( expander );
+        try
+        {
+            ondaFile.readData( expander, decoderExecutor, numDecoderThreads );
+        }
+        catch ( AppException e )
+        {
+            blockRing.abort( null );
+            writerTask.awaitCompletion( );
+            throw e;
+        }
+
+        // Wait for other thread to finish
+        writerTask.awaitCompletion( );
 
         // Validate CRC
         if ( crc.getValue( ) != crcValue )
             throw new FileException( ErrorId.INCORRECT_CRC, inFile );
 
-        // Wait for other thread to finish
-        while ( Task.getNumThreads( ) > 1 )
-        {
-            Thread.yield( );
-        }
-
         // Set timestamp of output file to that of input file
         outFile.setLastModified( inFile.lastModified( ) );
 
@@ -734,6 +821,8 @@ class FileProcessor
         if ( (ids != null) && !ids.isEmpty( ) )
             Log.getInstance( ).appendLine( PRESERVED_CHUNKS_STR + Util.listToString( ids ) );
 
+        appendBlockRingWaits( );
+
         double seconds = (double)(System.currentTimeMillis( ) - startTime) * 0.001;
         Log.getInstance( ).
                         appendLine( EXPANDED_STR + "  [ " + FORMAT.format( seconds ) + SECONDS_STR + " ]" );
@@ -745,22 +834,20 @@ class FileProcessor
      * Runs in Task.Validate (primary thread).
      */
 
-    public void validate( File             file,
-                          ValidationResult validationResult )
+    private void validate( OndaFileReader   ondaFile,
+                           File             file,
+                           ValidationResult validationResult )
         throws AppException
     {
         // Get system time
         long startTime = System.currentTimeMillis( );
 
         // Update information field in progress view
+        progressView = Task.getProgressView( );
         Task.setInfo( READING_STR, file );
         Task.setProgress( 0.0 );
 
-        // Increment count of files found
-        ++validationResult.numFound;
-
         // Read attributes and private data; set attributes
-        OndaFileReader ondaFile = OndaFileIff.getFileKind( file ).createReader( file );
         setAttributes( file, ondaFile.readAttributesAndPrivateData( ) );
 
         // Validate any private data
@@ -780,10 +867,10 @@ class FileProcessor
 
         // Initialise variables
         inSampleFrameIndex = 0;
-        crc = new CRC32( );
+        crc.reset( );
 
         // Read file
-        ondaFile.readData( validator );
+        ondaFile.readData( validator, decoderExecutor, numDecoderThreads );
 
         // Increment count of files validated
         ++validationResult.numValidated;
@@ -816,14 +903,32 @@ class FileProcessor
                                      byte[] privateData )
         throws AppException
     {
-        // Write file
+        // Write file.  Predictor orders and the later features of the format are used only in the high-ratio
+        // mode, because their analysis slows down compression.
+        int version = App.getInstance( ).isHighRatio( )
+                        ? OndaFile.BLOCK_SPLITTING_VERSION
+                        : OndaFile.Attributes.isStereoModeFormat( numChannels, bitsPerSample.getNumBits( ) )
+                                                                    ? OndaFile.STEREO_MODES_VERSION
+                                                                    : (privateData == null) ? 0 : 1;
         OndaFile.Attributes attributes =
-                                new OndaFile.Attributes( (privateData == null) ? 0 : 1, numChannels,
+                                new OndaFile.Attributes( version, numChannels,
                                                          bitsPerSample.getNumBits( ), sampleRate,
                                                          numSampleFrames, 0, bitsPerSample.getKeyLength( ),
                                                          AppConfig.getInstance( ).getBlockLength( ) );
         OndaFile ondaFile = new OndaFile( file );
-        ondaFile.write( attributes, privateData, compressor );
+        boolean written = false;
+        try
+        {
+            ondaFile.write( attributes, privateData, compressor, encoderExecutor, numEncoderThreads );
+            written = true;
+        }
+        finally
+        {
+            // Delete partial output file if the write failed or was cancelled.  A file that was being
+            // replaced is deleted too, because writing the new file has already overwritten it.
+            if ( !written )
+                file.delete( );
+        }
 
         // Set size of compressed data
         compressedDataSize = ondaFile.getDataSize( );
@@ -837,14 +942,147 @@ class FileProcessor
 
     public void writeExpandedFile( File          file,
                                    AudioFileKind fileKind,
-                                   List<Chunk>   chunks )
+                                   PrivateData   privateData )
         throws AppException
     {
-        AudioFile audioFile = fileKind.createFile( file, numChannels, bitsPerSample.getNumBits( ),
-                                                   sampleRate );
-        if ( chunks != null )
-            audioFile.addChunks( chunks );
-        audioFile.write( expander );
+        // Open file, and write the chunks that precede the sample data
+        AudioFileWriter writer = new AudioFileWriter( file, fileKind, numChannels,
+                                                      bitsPerSample.getNumBits( ), sampleRate,
+                                                      numSampleFrames, privateData );
+        writer.open( );
+
+        // Write sample data, gathering all the filled block buffers of the ring into a single write
+        try
+        {
+            ByteBuffer[] buffers = new ByteBuffer[blockRing.getNumSlots( )];
+            while ( outSampleFrameIndex < numSampleFrames )
+            {
+                // Take filled block buffers from ring
+                int numBuffers = blockRing.take( buffers );
+                for ( int i = 0; i < numBuffers; ++i )
+                    outSampleFrameIndex += buffers[i].remaining( ) / bytesPerSampleFrame;
+
+                // Write block buffers to file
+                writer.write( buffers, 0, numBuffers );
+
+                // Update progress of task
+                setProgress( outSampleFrameIndex );
+            }
+
+            // Write the chunks that follow the sample data, and close file
+            writer.close( );
+        }
+        catch ( AppException e )
+        {
+            writer.abort( );
+            throw e;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in Task.WriteCompressed or Task.WriteExpanded (secondary thread) if the thread fails.  The block
+     * ring is aborted so that the primary thread stops reading; the primary thread receives the exception
+     * when it waits for the completion of the writer task.
+     *
+     * @param exception  the exception that caused the thread to fail.
+     */
+
+    public void writerFailed( AppException exception )
+    {
+        blockRing.abort( exception );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in Task.WriteCompressed or Task.WriteExpanded (secondary thread) if the thread fails with an
+     * unchecked exception or an error.  The cause is wrapped in an exception for the output file, and the
+     * block ring is aborted with it as for any other failure of the thread.
+     *
+     * @param  file   the output file.
+     * @param  cause  the unchecked exception or error that caused the thread to fail.
+     * @return the exception for the output file.
+     */
+
+    public AppException writerFailed( File      file,
+                                      Throwable cause )
+    {
+        AppException exception = new FileException( ErrorId.UNEXPECTED_WRITER_ERROR, file, cause,
+                                                    cause.toString( ) );
+        writerFailed( exception );
+        return exception;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in Task.Compress (primary thread).  Reads the sample data of an input file, starting at the
+     * specified offset, through the PCM reader, which converts any big-endian sample values to
+     * little-endian, and passes the sample data to the compressor.
+     */
+
+    private void readSampleData( File    file,
+                                 long    offset,
+                                 boolean bigEndian )
+        throws AppException
+    {
+        pcmReader.open( file, offset, numSampleFrames * bytesPerSampleFrame,
+                        bitsPerSample.getBytesPerSample( ), bytesPerSampleFrame, bigEndian );
+        try
+        {
+            compressor.readBlocks( pcmReader );
+            pcmReader.close( );
+        }
+        catch ( AppException e )
+        {
+            pcmReader.closeIgnoreException( );
+            throw e;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    private void initBlockRing( )
+    {
+        int numSlots = AppConfig.getInstance( ).getNumBlockBuffers( );
+        if ( (blockRing == null) || (blockRing.getNumSlots( ) != numSlots) )
+            blockRing = new BlockRing( numSlots );
+        else
+            blockRing.reset( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Appends to the log the number of times that the thread that reads the input file waited for a free
+     * block buffer, and the number of times that the thread that writes the output file waited for a filled
+     * block buffer.
+     */
+
+    private void appendBlockRingWaits( )
+    {
+        Log.getInstance( ).appendLine( BLOCK_BUFFER_WAITS_STR + READER_STR +
+                                                    blockRing.getNumProducerWaits( ) + WRITER_STR +
+                                                    blockRing.getNumConsumerWaits( ) + " / " +
+                                                    blockRing.getNumBlocks( ) + BLOCKS_STR );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Records the progress of the current file in the progress view.  The progress view samples the value
+     * periodically, so this method is cheap enough to be called for every block; in console mode, there is
+     * no progress view and nothing is computed.
+     *
+     * @param sampleFrameIndex  the index of the next sample frame to be processed.
+     */
+
+    private void setProgress( long sampleFrameIndex )
+    {
+        if ( progressView != null )
+            progressView.setProgress( 0, (double)sampleFrameIndex / (double)numSampleFrames );
     }
 
     //------------------------------------------------------------------
@@ -860,9 +1098,7 @@ class FileProcessor
                                      Integer.toString( attributes.bitsPerSample ) );
         bytesPerSampleFrame = bitsPerSample.getBytesPerSample( ) * numChannels;
         sampleRate = attributes.sampleRate;
-        if ( attributes.numSampleFrames > Integer.MAX_VALUE / bytesPerSampleFrame )
-            throw new FileException( ErrorId.TOO_MANY_SAMPLE_FRAMES, file );
-        numSampleFrames = (int)attributes.numSampleFrames;
+        numSampleFrames = attributes.numSampleFrames;
         crcValue = attributes.crcValue & 0xFFFFFFFFL;
     }
 
@@ -872,6 +1108,11 @@ class FileProcessor
 //  Instance variables
 ////////////////////////////////////////////////////////////////////////
 
+    private Executor        writerExecutor;
+    private ExecutorService encoderExecutor;
+    private int             numEncoderThreads;
+    private ExecutorService decoderExecutor;
+    private int             numDecoderThreads;
     private Compressor      compressor;
     private Expander        expander;
     private Validator       validator;
@@ -879,11 +1120,14 @@ class FileProcessor
     private BitsPerSample   bitsPerSample;
     private int             bytesPerSampleFrame;
     private int             sampleRate;
-    private int             numSampleFrames;
+    private long            numSampleFrames;
     private long            crcValue;
-    private int             inSampleFrameIndex;
-    private int             outSampleFrameIndex;
-    private byte[]          sampleData;
+    private long            inSampleFrameIndex;
+    private long            outSampleFrameIndex;
+    private BlockRing       blockRing;
+    private PcmReader       pcmReader;
+    private ProgressView    progressView;
+    private Task            writerTask;
     private CRC32           crc;
     private long            compressedDataSize;
 
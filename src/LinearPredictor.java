@@ -0,0 +1,255 @@
+/*====================================================================*\
+
+LinearPredictor.java
+
+Linear predictor class.
+
+\*====================================================================*/
+
+
+// LINEAR PREDICTOR CLASS
+
+
+/**
+ * This class computes the coefficients of a linear predictor for a block of sample values of a single
+ * signal.  The sample values are weighted by a Tukey window, their autocorrelation is computed up to the
+ * maximum order, and the Levinson-Durbin recursion derives the coefficients of every order up to the
+ * maximum from the autocorrelation.  The coefficients of an order can then be quantised to integers with a
+ * common shift, which is the form in which they are stored in a block of compressed data.
+ * <p>
+ * A linear predictor of order k predicts a sample value as the sum of the products of the previous k
+ * sample values and the coefficients, shifted right by the shift of the quantised coefficients.  The
+ * buffers of a predictor are reused from one block to the next, so an instance should be used by only one
+ * thread.
+ * </p>
+ */
+
+class LinearPredictor
+{
+
+////////////////////////////////////////////////////////////////////////
+//  Constants
+////////////////////////////////////////////////////////////////////////
+
+    public static final     int MAX_ORDER   = 32;
+    public static final     int MAX_SHIFT   = 31;
+
+    // The proportion of a block over which the Tukey window tapers at each end
+    private static final    double  WINDOW_TAPER    = 0.5;
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
+////////////////////////////////////////////////////////////////////////
+
+    public LinearPredictor( )
+    {
+        autocorrelation = new double[MAX_ORDER + 1];
+        coefficients = new double[MAX_ORDER][];
+        for ( int i = 0; i < MAX_ORDER; ++i )
+            coefficients[i] = new double[i + 1];
+        window = new double[0];
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Class methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the epsilon of each sample value of a signal for a linear predictor with quantised
+     * coefficients.  The first {@code order} sample values, which have no prediction, are not changed in
+     * the array of epsilons.
+     *
+     * @param signal        the sample values of the signal.
+     * @param length        the number of sample values.
+     * @param order         the order of the predictor.
+     * @param coefficients  the quantised coefficients of the predictor.
+     * @param shift         the shift of the quantised coefficients.
+     * @param epsilons      the array in which the epsilon of each sample value will be stored.
+     */
+
+    public static void getEpsilons( int[] signal,
+                                    int   length,
+                                    int   order,
+                                    int[] coefficients,
+                                    int   shift,
+                                    int[] epsilons )
+    {
+        for ( int i = order; i < length; ++i )
+        {
+            long sum = 0;
+            for ( int j = 0; j < order; ++j )
+                sum += (long)coefficients[j] * signal[i - j - 1];
+            epsilons[i] = signal[i] - (int)(sum >> shift);
+        }
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the maximum order of the predictor for the block that was last analysed.  The maximum order is
+     * limited by the length of the block, and it is less than {@link #MAX_ORDER} if the prediction error
+     * vanished at a lower order.
+     */
+
+    public int getMaxOrder( )
+    {
+        return maxOrder;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes the coefficients of the predictor of each order from 1 to the maximum order for a block of
+     * sample values of a signal.
+     *
+     * @param signal  the sample values of the signal.
+     * @param length  the number of sample values.
+     */
+
+    public void analyse( int[] signal,
+                         int   length )
+    {
+        // Compute autocorrelation of windowed signal
+        maxOrder = Math.min( MAX_ORDER, length - 1 );
+        double[] samples = getWindowedSamples( signal, length );
+        for ( int lag = 0; lag <= maxOrder; ++lag )
+        {
+            double sum = 0.0;
+            for ( int i = lag; i < length; ++i )
+                sum += samples[i] * samples[i - lag];
+            autocorrelation[lag] = sum;
+        }
+
+        // Derive coefficients of each order with the Levinson-Durbin recursion
+        double error = autocorrelation[0];
+        for ( int i = 0; i < maxOrder; ++i )
+        {
+            if ( error <= 0.0 )
+            {
+                maxOrder = i;
+                break;
+            }
+
+            double sum = autocorrelation[i + 1];
+            for ( int j = 0; j < i; ++j )
+                sum -= coefficients[i - 1][j] * autocorrelation[i - j];
+            double reflection = sum / error;
+
+            double[] orderCoefficients = coefficients[i];
+            for ( int j = 0; j < i; ++j )
+                orderCoefficients[j] = coefficients[i - 1][j] - reflection * coefficients[i - 1][i - j - 1];
+            orderCoefficients[i] = reflection;
+
+            error *= 1.0 - reflection * reflection;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Quantises the coefficients of the predictor of a specified order to signed integers of a specified
+     * precision.  The shift is chosen so that the largest coefficient uses the full precision, and the
+     * rounding error of each coefficient is carried into the next one.
+     *
+     * @param  order         the order of the predictor.
+     * @param  precision     the length (in bits) of a quantised coefficient, including its sign.
+     * @param  coefficients  the array in which the quantised coefficients will be stored.
+     * @return the shift of the quantised coefficients, or -1 if the coefficients cannot be quantised with
+     *         a shift between 0 and {@link #MAX_SHIFT}.
+     */
+
+    public int quantise( int   order,
+                         int   precision,
+                         int[] coefficients )
+    {
+        double[] orderCoefficients = this.coefficients[order - 1];
+
+        // Find largest magnitude of coefficients
+        double maxMagnitude = 0.0;
+        for ( int i = 0; i < order; ++i )
+            maxMagnitude = Math.max( maxMagnitude, Math.abs( orderCoefficients[i] ) );
+        if ( !(maxMagnitude > 0.0) || Double.isInfinite( maxMagnitude ) )
+            return -1;
+
+        // Choose shift
+        int shift = Math.min( precision - 1 - (Math.getExponent( maxMagnitude ) + 1), MAX_SHIFT );
+        if ( shift < 0 )
+            return -1;
+
+        // Quantise coefficients
+        int maxValue = (1 << precision - 1) - 1;
+        int minValue = -maxValue - 1;
+        double scale = (double)(1L << shift);
+        double error = 0.0;
+        for ( int i = 0; i < order; ++i )
+        {
+            error += orderCoefficients[i] * scale;
+            long value = Math.round( error );
+            value = Math.max( minValue, Math.min( value, maxValue ) );
+            coefficients[i] = (int)value;
+            error -= value;
+        }
+        return shift;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the sample values of a signal weighted by a Tukey window of the length of the block.  The
+     * window is recomputed only when the length of the block changes.
+     */
+
+    private double[] getWindowedSamples( int[] signal,
+                                         int   length )
+    {
+        // Compute window
+        if ( windowLength != length )
+        {
+            if ( window.length < length )
+            {
+                window = new double[length];
+                samples = new double[length];
+            }
+            int taperLength = (int)(WINDOW_TAPER * 0.5 * length) - 1;
+            for ( int i = 0; i < length; ++i )
+                window[i] = 1.0;
+            if ( taperLength > 0 )
+            {
+                for ( int i = 0; i <= taperLength; ++i )
+                {
+                    window[i] = 0.5 - 0.5 * Math.cos( Math.PI * i / taperLength );
+                    window[length - taperLength - 1 + i] = 0.5 - 0.5 * Math.cos( Math.PI * (i + taperLength) /
+                                                                                 taperLength );
+                }
+            }
+            windowLength = length;
+        }
+
+        // Weight sample values
+        for ( int i = 0; i < length; ++i )
+            samples[i] = signal[i] * window[i];
+        return samples;
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private double[]    autocorrelation;
+    private double[][]  coefficients;
+    private double[]    window;
+    private double[]    samples;
+    private int         windowLength;
+    private int         maxOrder;
+
+}
+
+//----------------------------------------------------------------------
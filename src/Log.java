@@ -83,6 +83,7 @@ class Log
     private Log( )
     {
         lines = new ArrayList<>( );
+        captureBuffer = new ThreadLocal<>( );
     }
 
     //------------------------------------------------------------------
@@ -118,7 +119,7 @@ class Log
 
     //------------------------------------------------------------------
 
-    public void clear( )
+    public synchronized void clear( )
     {
         lines.clear( );
     }
@@ -134,10 +135,7 @@ class Log
 
     public void appendLine( String str )
     {
-        if ( show )
-            System.out.println( str );
-        else
-            lines.add( new Line( Line.Kind.INFO, str ) );
+        addLine( new Line( Line.Kind.INFO, str ) );
     }
 
     //------------------------------------------------------------------
@@ -145,12 +143,74 @@ class Log
     public void appendException( AppException exception )
     {
         for ( String str : exception.toString( ).split( "\n" ) )
+            addLine( new Line( Line.Kind.ERROR, str ) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Appends lines that were captured by {@link #startCapture(List)} to the log.
+     */
+
+    public synchronized void appendLines( List<Line> lines )
+    {
+        for ( Line line : lines )
+            writeLine( line );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Diverts the lines that are subsequently appended to the log by the current thread to the specified
+     * list, so that the lines that relate to one file of a batch can be kept together and appended to the
+     * log later with {@link #appendLines(List)}.
+     */
+
+    public void startCapture( List<Line> lines )
+    {
+        captureBuffer.set( lines );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Stops diverting the lines that are appended to the log by the current thread.
+     *
+     * @return the list to which lines were being diverted, or {@code null} if lines were not being
+     *         diverted.
+     */
+
+    public List<Line> endCapture( )
+    {
+        List<Line> lines = captureBuffer.get( );
+        captureBuffer.remove( );
+        return lines;
+    }
+
+    //------------------------------------------------------------------
+
+    private void addLine( Line line )
+    {
+        List<Line> buffer = captureBuffer.get( );
+        if ( buffer == null )
         {
-            if ( show )
-                System.out.println( ERROR_PREFIX + str );
-            else
-                lines.add( new Line( Line.Kind.ERROR, str ) );
+            synchronized ( this )
+            {
+                writeLine( line );
+            }
         }
+        else
+            buffer.add( line );
+    }
+
+    //------------------------------------------------------------------
+
+    private void writeLine( Line line )
+    {
+        if ( show )
+            System.out.println( (line.kind == Line.Kind.ERROR) ? ERROR_PREFIX + line.str : line.str );
+        else
+            lines.add( line );
     }
 
     //------------------------------------------------------------------
@@ -165,8 +225,9 @@ class Log
 //  Instance variables
 ////////////////////////////////////////////////////////////////////////
 
-    private List<Line>  lines;
-    private boolean     show;
+    private List<Line>              lines;
+    private boolean                 show;
+    private ThreadLocal<List<Line>> captureBuffer;
 
 }
 
@@ -0,0 +1,523 @@
+/*====================================================================*\
+
+OndaDataDecoder.java
+
+Onda compressed data decoder class.
+
+\*====================================================================*/
+
+
+// IMPORTS
+
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import uk.org.blankaspect.exception.AppException;
+
+import uk.org.blankaspect.util.ByteDataOutputStream;
+
+//----------------------------------------------------------------------
+
+
+// ONDA COMPRESSED DATA DECODER CLASS
+
+
+/**
+ * This class decodes the data chunk of an Onda file and writes the decompressed sample data to an output
+ * stream.  It is used by both kinds of Onda file reader.
+ * <p>
+ * If the file has a block index, the decoder can start decoding at any sample frame without decoding the
+ * data that precede it, and the data chunk can be divided into slices at the indexed blocks and the slices
+ * decoded concurrently on an executor that is supplied by the caller.  Without a block index, the data
+ * chunk is always decoded sequentially from its start.
+ * </p>
+ *
+ * @see OndaDataInput
+ * @see OndaFile.BlockIndex
+ */
+
+class OndaDataDecoder
+{
+
+////////////////////////////////////////////////////////////////////////
+//  Constants
+////////////////////////////////////////////////////////////////////////
+
+    private static final    int NUM_PENDING_TASKS_PER_THREAD    = 4;
+    private static final    int MIN_DECODER_TASK_LENGTH         = 1 << 16;
+
+////////////////////////////////////////////////////////////////////////
+//  Member classes : non-inner classes
+////////////////////////////////////////////////////////////////////////
+
+
+    // SLICE DECODER CLASS
+
+
+    /**
+     * A slice decoder decodes a run of consecutive blocks from a buffer that contains the part of the data
+     * chunk in which they lie.  The buffer is either a copy of that part of the data chunk or a view of a
+     * memory-mapped window of the file.
+     */
+
+    private static class SliceDecoder
+        implements Callable<byte[]>
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private SliceDecoder( OndaDataDecoder decoder,
+                              ByteBuffer      data,
+                              int             startBitOffset,
+                              long            startBlockNumber,
+                              long            endBlockNumber )
+        {
+            this.decoder = decoder;
+            this.data = data;
+            this.startBitOffset = startBitOffset;
+            this.startBlockNumber = startBlockNumber;
+            this.endBlockNumber = endBlockNumber;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : Callable interface
+    ////////////////////////////////////////////////////////////////////
+
+        public byte[] call( )
+            throws IOException
+        {
+            OndaFile.Attributes attributes = decoder.attributes;
+            OndaDataInput dataInput = new OndaDataInput( data, attributes.numChannels,
+                                                         attributes.bitsPerSample, attributes.keyLength );
+            dataInput.setStereoModes( attributes.hasStereoModes( ) );
+            dataInput.setPredictorOrderSelection( attributes.hasPredictorOrders( ) );
+            dataInput.setLinearPrediction( attributes.hasLinearPrediction( ) );
+            dataInput.setRiceCoding( attributes.hasRiceCoding( ) );
+            dataInput.setBlockSplitting( attributes.hasBlockSplitting( ) );
+            dataInput.skipBits( startBitOffset );
+
+            long startFrameIndex = startBlockNumber * attributes.blockLength;
+            long endFrameIndex = Math.min( endBlockNumber * attributes.blockLength,
+                                           attributes.numSampleFrames );
+            byte[] buffer = new byte[(int)(endFrameIndex - startFrameIndex) *
+                                                                        attributes.getBytesPerSampleFrame( )];
+            int bytesPerSampleFrame = attributes.getBytesPerSampleFrame( );
+            int offset = 0;
+            for ( long i = startBlockNumber; i < endBlockNumber; ++i )
+            {
+                int numFrames = decoder.getNumSampleFrames( i );
+                dataInput.readBlock( buffer, offset, numFrames * attributes.numChannels );
+                offset += numFrames * bytesPerSampleFrame;
+            }
+            return buffer;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private OndaDataDecoder decoder;
+        private ByteBuffer      data;
+        private int             startBitOffset;
+        private long            startBlockNumber;
+        private long            endBlockNumber;
+
+    }
+
+    //==================================================================
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Constructs an {@code OndaDataDecoder}.
+     *
+     * @param attributes  the attributes of the Onda file whose data are to be decoded.
+     * @param blockIndex  the block index of the Onda file, or {@code null} if the file does not have a block
+     *                    index.
+     */
+
+    public OndaDataDecoder( OndaFile.Attributes attributes,
+                            OndaFile.BlockIndex blockIndex )
+    {
+        this.attributes = attributes;
+        this.blockIndex = blockIndex;
+        numBlocks = OndaFile.BlockIndex.getNumBlocks( attributes );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Class methods
+////////////////////////////////////////////////////////////////////////
+
+    private static void skipBytes( DataInput dataInput,
+                                   long      length )
+        throws IOException
+    {
+        while ( length > 0 )
+        {
+            int skipLength = dataInput.skipBytes( (int)Math.min( length, Integer.MAX_VALUE ) );
+            if ( skipLength <= 0 )
+            {
+                dataInput.readByte( );
+                skipLength = 1;
+            }
+            length -= skipLength;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decodes a range of sample frames of a data chunk and writes them to an output stream.
+     * <p>
+     * If the file has a block index, decoding starts at the last indexed block at or before the first
+     * requested sample frame; otherwise, decoding starts at the beginning of the data chunk.  If all the
+     * sample frames are requested, the file has a block index, an executor is specified and more than one
+     * thread is allowed, slices of the data chunk are decoded concurrently; otherwise, the data are decoded
+     * in the calling thread.
+     * </p>
+     *
+     * @param  dataInput        the data input from which the data chunk is to be read.  The data input must
+     *                          be positioned at the start of the data chunk.
+     * @param  dataLength       the length (in bytes) of the data chunk.
+     * @param  outStream        the output stream to which the decoded sample data are to be written.
+     * @param  executor         the executor on which slices of the data chunk are to be decoded, or {@code
+     *                          null} if the data are to be decoded in the calling thread.  The executor is
+     *                          not shut down.
+     * @param  numThreads       the maximum number of threads on which the data are to be decoded.
+     * @param  startFrameIndex  the index of the first sample frame that is to be written.
+     * @param  numFrames        the number of sample frames that are to be written.
+     * @throws IllegalArgumentException
+     *           if the range of sample frames is not within the sample data.
+     * @throws AppException
+     *           if an error occurs when writing to the output stream.
+     * @throws IOException
+     *           if an error occurs when reading or decoding the data chunk.
+     */
+
+    public void decode( DataInput            dataInput,
+                        long                 dataLength,
+                        ByteDataOutputStream outStream,
+                        ExecutorService      executor,
+                        int                  numThreads,
+                        long                 startFrameIndex,
+                        long                 numFrames )
+        throws AppException, IOException
+    {
+        decode( dataInput, null, 0, dataLength, outStream, executor, numThreads, startFrameIndex, numFrames );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Decodes a range of sample frames of a data chunk that is read from a file channel by mapping it into
+     * memory, and writes them to an output stream.  The data chunk is decoded as described for {@link
+     * #decode(DataInput, long, ByteDataOutputStream, ExecutorService, int, long, long)}; the only difference
+     * is that the compressed data are read directly from memory-mapped windows of the file rather than being
+     * copied from a data input.
+     *
+     * @param  channel          the file channel from which the data chunk is to be read.  The position of
+     *                          the channel is not changed.
+     * @param  dataOffset       the position in the channel of the start of the data chunk.
+     * @param  dataLength       the length (in bytes) of the data chunk.
+     * @param  outStream        the output stream to which the decoded sample data are to be written.
+     * @param  executor         the executor on which slices of the data chunk are to be decoded, or {@code
+     *                          null} if the data are to be decoded in the calling thread.
+     * @param  numThreads       the maximum number of threads on which the data are to be decoded.
+     * @param  startFrameIndex  the index of the first sample frame that is to be written.
+     * @param  numFrames        the number of sample frames that are to be written.
+     * @throws IllegalArgumentException
+     *           if the range of sample frames is not within the sample data.
+     * @throws AppException
+     *           if an error occurs when writing to the output stream.
+     * @throws IOException
+     *           if an error occurs when mapping or decoding the data chunk.
+     */
+
+    public void decode( FileChannel          channel,
+                        long                 dataOffset,
+                        long                 dataLength,
+                        ByteDataOutputStream outStream,
+                        ExecutorService      executor,
+                        int                  numThreads,
+                        long                 startFrameIndex,
+                        long                 numFrames )
+        throws AppException, IOException
+    {
+        decode( null, channel, dataOffset, dataLength, outStream, executor, numThreads, startFrameIndex,
+                numFrames );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Decodes a range of sample frames of a data chunk that is read either from a data input or from a file
+     * channel; exactly one of {@code dataInput} and {@code channel} must be non-null.
+     */
+
+    private void decode( DataInput            dataInput,
+                         FileChannel          channel,
+                         long                 dataOffset,
+                         long                 dataLength,
+                         ByteDataOutputStream outStream,
+                         ExecutorService      executor,
+                         int                  numThreads,
+                         long                 startFrameIndex,
+                         long                 numFrames )
+        throws AppException, IOException
+    {
+        // Validate arguments
+        if ( (startFrameIndex < 0) || (numFrames < 0) ||
+             (numFrames > attributes.numSampleFrames - startFrameIndex) )
+            throw new IllegalArgumentException( );
+
+        // Decode slices of data chunk concurrently
+        if ( (executor != null) && (numThreads > 1) && (blockIndex != null) &&
+             (blockIndex.getNumEntries( ) > 1) && (startFrameIndex == 0) &&
+             (numFrames == attributes.numSampleFrames) )
+        {
+            decodeParallel( dataInput, channel, dataOffset, dataLength, outStream, executor, numThreads );
+            return;
+        }
+
+        // Seek to indexed block
+        long blockNumber = 0;
+        long bitOffset = 0;
+        if ( (blockIndex != null) && (blockIndex.getNumEntries( ) > 0) )
+        {
+            int entryIndex = (int)Math.min( startFrameIndex / attributes.blockLength /
+                                                                                blockIndex.getInterval( ),
+                                            blockIndex.getNumEntries( ) - 1 );
+            blockNumber = (long)entryIndex * blockIndex.getInterval( );
+            bitOffset = blockIndex.getOffset( entryIndex );
+        }
+        long byteOffset = bitOffset >>> 3;
+        if ( byteOffset > dataLength )
+            throw new EOFException( );
+
+        // Open compressed data input
+        OndaDataInput compressedDataInput = null;
+        if ( channel == null )
+        {
+            skipBytes( dataInput, byteOffset );
+            compressedDataInput = new OndaDataInput( dataLength - byteOffset, attributes.numChannels,
+                                                     attributes.bitsPerSample, attributes.keyLength,
+                                                     dataInput );
+        }
+        else
+            compressedDataInput = new OndaDataInput( channel, dataOffset + byteOffset,
+                                                     dataLength - byteOffset, attributes.numChannels,
+                                                     attributes.bitsPerSample, attributes.keyLength );
+        compressedDataInput.setStereoModes( attributes.hasStereoModes( ) );
+        compressedDataInput.setPredictorOrderSelection( attributes.hasPredictorOrders( ) );
+        compressedDataInput.setLinearPrediction( attributes.hasLinearPrediction( ) );
+        compressedDataInput.setRiceCoding( attributes.hasRiceCoding( ) );
+        compressedDataInput.setBlockSplitting( attributes.hasBlockSplitting( ) );
+        compressedDataInput.skipBits( (int)bitOffset & 0x07 );
+
+        // Decode blocks and write requested sample frames to output stream
+        int bytesPerSampleFrame = attributes.getBytesPerSampleFrame( );
+        byte[] outBuffer = new byte[attributes.blockLength * bytesPerSampleFrame];
+        long frameIndex = blockNumber * attributes.blockLength;
+        long endFrameIndex = startFrameIndex + numFrames;
+        while ( frameIndex < endFrameIndex )
+        {
+            // Decode block
+            int blockNumFrames = getNumSampleFrames( blockNumber++ );
+            int length = blockNumFrames * attributes.numChannels;
+            compressedDataInput.readBlock( outBuffer, 0, length );
+
+            // Write requested part of block
+            int startOffset = (int)Math.max( 0, startFrameIndex - frameIndex ) * bytesPerSampleFrame;
+            int endOffset = (int)Math.min( blockNumFrames, endFrameIndex - frameIndex ) * bytesPerSampleFrame;
+            if ( endOffset > startOffset )
+                outStream.write( outBuffer, startOffset, endOffset - startOffset );
+            frameIndex += blockNumFrames;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    private int getNumSampleFrames( long blockNumber )
+    {
+        return (int)Math.min( attributes.blockLength,
+                              attributes.numSampleFrames - blockNumber * attributes.blockLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Divides the data chunk into slices at indexed blocks, decodes the slices concurrently on the specified
+     * executor and writes the decoded sample data to the output stream in order.  The data chunk is read
+     * sequentially in the calling thread, and the number of slices that are queued for decoding is limited
+     * so that memory use does not depend on the length of the file.  If an error occurs, the slices that
+     * are still queued are cancelled.  If the data chunk is read from
+     * a file channel, each slice is a view of a memory-mapped window of the file instead of a copy.
+     */
+
+    private void decodeParallel( DataInput            dataInput,
+                                 FileChannel          channel,
+                                 long                 dataOffset,
+                                 long                 dataLength,
+                                 ByteDataOutputStream outStream,
+                                 ExecutorService      executor,
+                                 int                  numThreads )
+        throws AppException, IOException
+    {
+        int numEntries = blockIndex.getNumEntries( );
+        long endBitOffset = dataLength << 3;
+        Deque<Future<byte[]>> pendingTasks = new ArrayDeque<>( );
+        try
+        {
+            int maxNumPendingTasks = numThreads * NUM_PENDING_TASKS_PER_THREAD;
+            long position = 0;
+            byte lastByte = 0;
+            ByteBuffer window = null;
+            long windowStart = 0;
+            long windowEnd = 0;
+            int entryIndex = 0;
+            while ( entryIndex < numEntries )
+            {
+                // Get range of index entries for slice
+                long startBitOffset = blockIndex.getOffset( entryIndex );
+                int endEntryIndex = entryIndex + 1;
+                while ( (endEntryIndex < numEntries) &&
+                        (blockIndex.getOffset( endEntryIndex ) - startBitOffset <
+                                                                        (long)MIN_DECODER_TASK_LENGTH << 3) )
+                    ++endEntryIndex;
+                long sliceEndBitOffset = (endEntryIndex < numEntries) ? blockIndex.getOffset( endEntryIndex )
+                                                                      : endBitOffset;
+
+                // Get slice of data chunk
+                long startByteOffset = startBitOffset >>> 3;
+                long endByteOffset = sliceEndBitOffset + 7 >>> 3;
+                if ( (startByteOffset < position - 1) || (endByteOffset > dataLength) ||
+                     (endByteOffset < startByteOffset) )
+                    throw new EOFException( );
+                ByteBuffer slice = null;
+                if ( channel == null )
+                {
+                    // Read slice from data input
+                    byte[] buffer = new byte[(int)(endByteOffset - startByteOffset)];
+                    int offset = 0;
+                    if ( (startByteOffset < position) && (buffer.length > 0) )
+                        buffer[offset++] = lastByte;
+                    else
+                        skipBytes( dataInput, startByteOffset - position );
+                    dataInput.readFully( buffer, offset, buffer.length - offset );
+                    if ( buffer.length > 0 )
+                        lastByte = buffer[buffer.length - 1];
+                    slice = ByteBuffer.wrap( buffer );
+                }
+                else
+                {
+                    // Map window of file that contains slice
+                    if ( (window == null) || (endByteOffset > windowEnd) )
+                    {
+                        windowStart = startByteOffset;
+                        windowEnd = Math.min( dataLength,
+                                              windowStart + Math.max( OndaDataInput.MAP_WINDOW_SIZE,
+                                                                      endByteOffset - startByteOffset ) );
+                        window = channel.map( FileChannel.MapMode.READ_ONLY, dataOffset + windowStart,
+                                              windowEnd - windowStart );
+                    }
+                    slice = window.duplicate( );
+                    slice.limit( (int)(endByteOffset - windowStart) );
+                    slice.position( (int)(startByteOffset - windowStart) );
+                }
+                position = endByteOffset;
+
+                // Submit slice for decoding
+                long startBlockNumber = (long)entryIndex * blockIndex.getInterval( );
+                long endBlockNumber = Math.min( (long)endEntryIndex * blockIndex.getInterval( ), numBlocks );
+                pendingTasks.addLast( executor.submit( new SliceDecoder( this, slice,
+                                                                         (int)startBitOffset & 0x07,
+                                                                         startBlockNumber,
+                                                                         endBlockNumber ) ) );
+                entryIndex = endEntryIndex;
+
+                // Write sample data of oldest slice if queue is full
+                if ( pendingTasks.size( ) >= maxNumPendingTasks )
+                    writeSlice( outStream, pendingTasks.removeFirst( ) );
+            }
+
+            // Write sample data of remaining slices
+            while ( !pendingTasks.isEmpty( ) )
+                writeSlice( outStream, pendingTasks.removeFirst( ) );
+        }
+        finally
+        {
+            for ( Future<byte[]> task : pendingTasks )
+                task.cancel( true );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    private void writeSlice( ByteDataOutputStream outStream,
+                             Future<byte[]>       future )
+        throws AppException, IOException
+    {
+        byte[] data = null;
+        try
+        {
+            data = future.get( );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IOException( e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause( );
+            if ( cause instanceof IOException )
+                throw (IOException)cause;
+            if ( cause instanceof RuntimeException )
+                throw (RuntimeException)cause;
+            if ( cause instanceof Error )
+                throw (Error)cause;
+            throw new IOException( cause );
+        }
+        outStream.write( data, 0, data.length );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private OndaFile.Attributes attributes;
+    private OndaFile.BlockIndex blockIndex;
+    private long                numBlocks;
+
+}
+
+//----------------------------------------------------------------------
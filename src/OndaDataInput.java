@@ -14,6 +14,13 @@ import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+
 //----------------------------------------------------------------------
 
 
@@ -26,13 +33,11 @@ import java.io.IOException;
  * blocks, as specified by the
  * <a href="http://onda.sourceforge.net/ondaAlgorithmAndFileFormats.html">Onda algorithm</a>.
  * <p>
- * The underlying data source for this input is an instance of {@code java.io.DataInput}.  Data that is read
- * from the data source is buffered to improve efficiency.
- * </p>
- * <p>
- * The implementation of this class in the Onda application works only for integer sample values of up to 24
- * bits per sample.  Above 24 bits per sample, the type of the instance variable {@code bitBuffer} must be
- * changed from {@code int} to {@code long} to accommodate the extra bits.
+ * The underlying data source for this input may be an instance of {@code java.io.DataInput}, from which
+ * data is read into an input buffer to improve efficiency; a byte buffer, such as a slice of a memory-mapped
+ * file; or a file channel, successive windows of which are mapped into memory as the data are read.  The bit
+ * buffer is a {@code long} that is refilled with up to seven bytes at a time from the input buffer, so sample
+ * values of up to 32 bits per sample are supported.
  * </p>
  *
  * @see OndaDataOutput
@@ -45,8 +50,56 @@ public class OndaDataInput
 //  Constants
 ////////////////////////////////////////////////////////////////////////
 
+    /**
+     * The maximum length of a window of a file channel that is mapped into memory.
+     */
+    public static final     int MAP_WINDOW_SIZE = 1 << 28;  // 256 MiB
+
     private static final    int BUFFER_SIZE = 1 << 13;  // 8192
 
+    private static final    int MAX_PREDICTOR_ORDER     = 4;
+    private static final    int DEFAULT_PREDICTOR_ORDER = 2;
+    private static final    int PREDICTOR_ORDER_LENGTH  = 3;
+
+    // The value of the predictor order of a channel that has a linear predictor
+    private static final    int LINEAR_PREDICTOR    = 5;
+
+    private static final    int MAX_LPC_ORDER           = 32;
+    private static final    int LPC_ORDER_LENGTH        = 5;
+    private static final    int LPC_PRECISION_LENGTH    = 4;
+    private static final    int LPC_SHIFT_LENGTH        = 5;
+
+    // Codings of the epsilons of a channel of a block
+    private static final    int CODING_LENGTH   = 1;
+    private static final    int RICE_CODING     = 1;
+
+    private static final    int MAX_RICE_PARTITION_ORDER    = 8;
+    private static final    int RICE_PARTITION_ORDER_LENGTH = 4;
+    private static final    int RICE_PARAMETER_LENGTH       = 5;
+    private static final    int RICE_ESCAPE_WIDTH_LENGTH    = 5;
+
+    // The value of the Rice parameter of a partition whose epsilons are written verbatim
+    private static final    int RICE_ESCAPE = 31;
+
+    // The number of bits of the bit buffer that index the table of leading zeros of unary prefixes
+    private static final    int UNARY_TABLE_LENGTH  = 8;
+
+    // The number of leading zeros of each value of UNARY_TABLE_LENGTH bits
+    private static final    byte[]  UNARY_LEADING_ZEROS;
+
+    // Splitting of a block into sub-blocks
+    private static final    int MAX_SPLIT_DEPTH         = 2;
+    private static final    int MIN_SUB_BLOCK_LENGTH    = 64;
+    private static final    int SPLIT_FLAG_LENGTH       = 1;
+
+    private static final    int STEREO_MODE_LENGTH  = 2;
+
+    // Stereo modes: the signals that are encoded as channels 0 and 1 of a block
+    private static final    int LEFT_RIGHT  = 0;
+    private static final    int LEFT_SIDE   = 1;
+    private static final    int RIGHT_SIDE  = 2;
+    private static final    int MID_SIDE    = 3;
+
 ////////////////////////////////////////////////////////////////////////
 //  Constructors
 ////////////////////////////////////////////////////////////////////////
@@ -74,10 +127,67 @@ public class OndaDataInput
         this.keyLength = keyLength;
         this.dataInput = dataInput;
         inBuffer = new byte[BUFFER_SIZE];
-        inBufferIndex = inBuffer.length;
-        encodingLengths = new int[numChannels];
-        excessCodes = new int[numChannels];
-        epsilonMasks = new int[numChannels];
+        inByteBuffer = ByteBuffer.wrap( inBuffer );
+        init( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Constructs an {@code OndaDataInput} that reads the compressed data between the position and the limit
+     * of the specified byte buffer.  The position and limit of the buffer are not changed.
+     *
+     * @param buffer        the buffer from which compressed data is to be read.
+     * @param numChannels   the number of audio channels in the sample data.
+     * @param sampleLength  the length (in bits) of a sample value.
+     * @param keyLength     the length (in bits) of an encoding key.
+     */
+
+    public OndaDataInput( ByteBuffer buffer,
+                          int        numChannels,
+                          int        sampleLength,
+                          int        keyLength )
+    {
+        this.numChannels = numChannels;
+        this.sampleLength = sampleLength;
+        this.keyLength = keyLength;
+        inByteBuffer = buffer.duplicate( ).order( ByteOrder.BIG_ENDIAN );
+        inBufferIndex = buffer.position( );
+        inBufferEnd = buffer.limit( );
+        init( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Constructs an {@code OndaDataInput} that reads compressed data from the specified file channel by
+     * mapping successive windows of the channel into memory.  Each window, except possibly the last, is
+     * {@link #MAP_WINDOW_SIZE} bytes long, so input data of any length can be read.  The position of the
+     * channel is not changed.
+     *
+     * @param channel       the file channel from which compressed data is to be read.
+     * @param position      the position in the channel of the start of the input data.
+     * @param dataLength    the length (in bytes) of the input data.
+     * @param numChannels   the number of audio channels in the sample data.
+     * @param sampleLength  the length (in bits) of a sample value.
+     * @param keyLength     the length (in bits) of an encoding key.
+     */
+
+    public OndaDataInput( FileChannel channel,
+                          long        position,
+                          long        dataLength,
+                          int         numChannels,
+                          int         sampleLength,
+                          int         keyLength )
+    {
+        this.channel = channel;
+        windowPosition = position;
+        this.dataLength = dataLength;
+        this.numChannels = numChannels;
+        this.sampleLength = sampleLength;
+        this.keyLength = keyLength;
+        inByteBuffer = ByteBuffer.allocate( 0 );
+        init( );
     }
 
     //------------------------------------------------------------------
@@ -86,6 +196,104 @@ public class OndaDataInput
 //  Instance methods
 ////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Sets whether the channels of stereo sample data were decorrelated when they were compressed, in which
+     * case each block begins with a stereo mode that is read before the keys, and the left and right sample
+     * values are reconstructed from the pair of signals that were encoded.
+     *
+     * @param  stereoModes  {@code true} if the channels of stereo sample data were decorrelated.
+     * @throws IllegalArgumentException
+     *           if {@code stereoModes} is {@code true} and the sample data are not 16-bit or 24-bit stereo.
+     * @see    OndaDataOutput#setStereoModes(boolean)
+     */
+
+    public void setStereoModes( boolean stereoModes )
+    {
+        if ( stereoModes && !stereoKernel )
+            throw new IllegalArgumentException( );
+
+        this.stereoModes = stereoModes;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether the order of the fixed polynomial predictor of each channel was selected for each block
+     * when the data were compressed, in which case the order of each channel is read after its key.
+     *
+     * @param orderSelection  {@code true} if the predictor order of each channel was selected for each
+     *                        block.
+     * @see   OndaDataOutput#setPredictorOrderSelection(boolean)
+     */
+
+    public void setPredictorOrderSelection( boolean orderSelection )
+    {
+        this.orderSelection = orderSelection;
+        if ( !orderSelection )
+            Arrays.fill( predictorOrders, DEFAULT_PREDICTOR_ORDER );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether a channel of a block may have a linear predictor, in which case a predictor order of 5
+     * denotes a linear predictor whose order, precision, shift and coefficients follow it.  A block in
+     * which a channel has a linear predictor is decoded into a buffer for each channel, from which the
+     * previous sample values of the channel are read to predict the next one.
+     *
+     * @param linearPrediction  {@code true} if a channel of a block may have a linear predictor.
+     * @see   OndaDataOutput#setLinearPrediction(boolean)
+     */
+
+    public void setLinearPrediction( boolean linearPrediction )
+    {
+        this.linearPrediction = linearPrediction;
+        if ( linearPrediction && (lpcCoefficients == null) )
+        {
+            lpcCoefficients = new int[numChannels][MAX_LPC_ORDER];
+            lpcShifts = new int[numChannels];
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether the epsilons of a channel of a block may be Rice-coded, in which case the key of each
+     * channel is preceded by its coding, and the channels of a block are stored one after another.  A block
+     * of this form is decoded into a buffer for each channel; the epsilons of each partition of a Rice-coded
+     * channel are decoded in a single loop, in which the zeros of the unary prefix of each Rice code are
+     * counted a byte at a time with a lookup table.
+     *
+     * @param riceCoding  {@code true} if the epsilons of a channel of a block may be Rice-coded.
+     * @see   OndaDataOutput#setRiceCoding(boolean)
+     */
+
+    public void setRiceCoding( boolean riceCoding )
+    {
+        this.riceCoding = riceCoding;
+        if ( !riceCoding )
+            Arrays.fill( riceChannels, false );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether a block may have been split into sub-blocks of different lengths, in which case the
+     * sub-blocks of each block are read in pre-order: the split flag of a block or sub-block that may be
+     * split is read first, and it is followed either by its two sub-blocks or by its compressed data, which
+     * are decoded in the same way as those of a block.
+     *
+     * @param blockSplitting  {@code true} if a block may have been split into sub-blocks.
+     * @see   OndaDataOutput#setBlockSplitting(boolean)
+     */
+
+    public void setBlockSplitting( boolean blockSplitting )
+    {
+        this.blockSplitting = blockSplitting;
+    }
+
+    //------------------------------------------------------------------
+
     /**
      * Reads a block of compressed data from the data source, and decompresses the data into the specified
      * buffer.  The input data must be in the form of a data block of an Onda file (ie, a compression key
@@ -101,6 +309,11 @@ public class OndaDataInput
      *           </ul>
      * @throws IndexOutOfBoundsException
      *           if {@code (offset < 0)} or {@code (offset > buffer.length)}.
+     * @throws IllegalStateException
+     *           if stereo modes have been enabled with {@link #setStereoModes(boolean)}, linear prediction
+     *           has been enabled with {@link #setLinearPrediction(boolean)}, Rice coding has been enabled
+     *           with {@link #setRiceCoding(boolean)} or block splitting has been enabled with {@link
+     *           #setBlockSplitting(boolean)}.
      * @throws IOException
      *           if an error occurs while attempting to read from the data source.
      */
@@ -111,6 +324,8 @@ public class OndaDataInput
         throws IOException
     {
         // Validate arguments
+        if ( stereoModes || linearPrediction || riceCoding || blockSplitting )
+            throw new IllegalStateException( );
         if ( buffer == null )
             throw new IllegalArgumentException( );
         if ( (offset < 0) || (offset > buffer.length) )
@@ -118,60 +333,691 @@ public class OndaDataInput
         if ( (length < 0) || (length > buffer.length - offset) )
             throw new IllegalArgumentException( );
 
-        // Get encoding length for each channel from key; initialise per-channel encoding variables
-        for ( int i = 0; i < numChannels; ++i )
-        {
-            encodingLengths[i] = sampleLength - read( keyLength );
-            excessCodes[i] = 1 << encodingLengths[i] - 1;
-            epsilonMasks[i] = ~(excessCodes[i] - 1);
-        }
+        // Read keys of block
+        beginBlock( );
 
         // Read sample data from source, decode them and write them to buffer
-        int[] prevSampleValues = new int[numChannels];
-        int[] prevDeltas = new int[numChannels];
-        int sampleValue = 0;
-        int delta = 0;
-        boolean sampleValueExpected = false;
         int startOffset = offset;
         int endOffset = startOffset + length;
         while ( offset < endOffset )
         {
             for ( int i = 0; i < numChannels; ++i )
             {
-                if ( (offset == startOffset) || (encodingLengths[i] == sampleLength) )
-                    sampleValue = read( sampleLength );
-                else
+                buffer[offset] = readSampleValue( i, offset == startOffset );
+                ++offset;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads a block of compressed data from the data source, and decompresses the data into the specified
+     * byte buffer as little-endian sample values of the smallest whole number of bytes that holds a sample
+     * value.  The input data must be in the form of a data block of an Onda file.
+     * <p>
+     * This method decodes directly into the byte buffer, without an intermediate array of sample values;
+     * the decoding loop is specialised for sample values of two and three bytes, and stereo sample data of
+     * 16 or 24 bits are decoded by a dedicated kernel.
+     * </p>
+     *
+     * @param  buffer  the buffer in which the decompressed data is to be stored.
+     * @param  offset  the start offset at which sample data is to be stored in {@code buffer}.
+     * @param  length  the number of samples that are to be read.
+     * @throws IllegalArgumentException
+     *           <ul>
+     *             <li>{@code buffer} is {@code null}, or</li>
+     *             <li>{@code (length < 0)}, or {@code buffer} is too short to hold {@code length} samples
+     *                 from {@code offset}.</li>
+     *           </ul>
+     * @throws IndexOutOfBoundsException
+     *           if {@code (offset < 0)} or {@code (offset > buffer.length)}.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    public void readBlock( byte[] buffer,
+                           int    offset,
+                           int    length )
+        throws IOException
+    {
+        // Validate arguments
+        if ( buffer == null )
+            throw new IllegalArgumentException( );
+        if ( (offset < 0) || (offset > buffer.length) )
+            throw new IndexOutOfBoundsException( );
+        if ( (length < 0) || ((long)length * bytesPerSample > buffer.length - offset) )
+            throw new IllegalArgumentException( );
+
+        // Decode sub-blocks of block
+        if ( blockSplitting )
+            readSubBlock( buffer, offset, length / numChannels, 0 );
+
+        // Decode block
+        else
+            readSingleBlock( buffer, offset, length );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Skips a specified number of bits of the data source.  This method can be used to position the data
+     * input at the start of a block that does not begin on a byte boundary of the data source.
+     *
+     * @param  length  the number of bits to skip, which must not exceed 32.
+     * @throws IllegalArgumentException
+     *           if {@code (length < 0)} or {@code (length > 32)}.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    public void skipBits( int length )
+        throws IOException
+    {
+        if ( (length < 0) || (length > 32) )
+            throw new IllegalArgumentException( );
+
+        if ( length > 0 )
+            read( length );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads the split flag of a block or sub-block, if it may be split, and decompresses either its two
+     * sub-blocks or its compressed data into the specified byte buffer.
+     *
+     * @param  buffer           the buffer in which the decompressed data is to be stored.
+     * @param  offset           the start offset at which sample data is to be stored in {@code buffer}.
+     * @param  numSampleFrames  the number of sample frames of the block or sub-block.
+     * @param  depth            the depth of the block or sub-block in the tree of sub-blocks.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readSubBlock( byte[] buffer,
+                               int    offset,
+                               int    numSampleFrames,
+                               int    depth )
+        throws IOException
+    {
+        if ( (depth < MAX_SPLIT_DEPTH) && (numSampleFrames / 2 >= MIN_SUB_BLOCK_LENGTH) &&
+             (read( SPLIT_FLAG_LENGTH ) != 0) )
+        {
+            int numFrames = numSampleFrames / 2;
+            readSubBlock( buffer, offset, numFrames, depth + 1 );
+            readSubBlock( buffer, offset + numFrames * numChannels * bytesPerSample,
+                          numSampleFrames - numFrames, depth + 1 );
+        }
+        else
+            readSingleBlock( buffer, offset, numSampleFrames * numChannels );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads a block or sub-block of compressed data from the data source, and decompresses the data into
+     * the specified byte buffer.
+     *
+     * @param  buffer  the buffer in which the decompressed data is to be stored.
+     * @param  offset  the start offset at which sample data is to be stored in {@code buffer}.
+     * @param  length  the number of samples that are to be read.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readSingleBlock( byte[] buffer,
+                                  int    offset,
+                                  int    length )
+        throws IOException
+    {
+        // Read keys of block
+        beginBlock( );
+
+        // Decode sample data of a block in which a channel has a linear predictor or the channels are stored
+        // one after another
+        if ( lpcBlock || riceCoding )
+        {
+            readSeparatedBlock( buffer, offset, length );
+            return;
+        }
+
+        // Decode stereo sample data with the dedicated kernel
+        if ( stereoKernel )
+        {
+            readStereoBlock( buffer, offset, length );
+            return;
+        }
+
+        // Read sample data from source, decode them and write them to buffer
+        int startOffset = offset;
+        int endOffset = startOffset + length * bytesPerSample;
+        switch ( bytesPerSample )
+        {
+            case 2:
+                while ( offset < endOffset )
                 {
-                    while ( true )
+                    for ( int i = 0; i < numChannels; ++i )
                     {
-                        if ( sampleValueExpected )
-                        {
-                            sampleValue = read( sampleLength );
-                            sampleValueExpected = false;
-                            break;
-                        }
-                        else
+                        int sampleValue = readSampleValue( i, offset == startOffset );
+                        buffer[offset++] = (byte)sampleValue;
+                        buffer[offset++] = (byte)(sampleValue >> 8);
+                    }
+                }
+                break;
+
+            case 3:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        int sampleValue = readSampleValue( i, offset == startOffset );
+                        buffer[offset++] = (byte)sampleValue;
+                        buffer[offset++] = (byte)(sampleValue >> 8);
+                        buffer[offset++] = (byte)(sampleValue >> 16);
+                    }
+                }
+                break;
+
+            default:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        int sampleValue = readSampleValue( i, offset == startOffset );
+                        for ( int j = 0; j < bytesPerSample; ++j )
                         {
-                            int epsilon = read( encodingLengths[i] );
-                            if ( epsilon == excessCodes[i] )
-                                sampleValueExpected = true;
-                            else
-                            {
-                                if ( (epsilon & excessCodes[i]) != 0 )
-                                    epsilon |= epsilonMasks[i];
-                                delta = prevDeltas[i] + epsilon;
-                                sampleValue = prevSampleValues[i] + delta;
-                                break;
-                            }
+                            buffer[offset++] = (byte)sampleValue;
+                            sampleValue >>= 8;
                         }
                     }
                 }
-                prevDeltas[i] = sampleValue - prevSampleValues[i];
-                prevSampleValues[i] = sampleValue;
+                break;
+        }
+    }
+
+    //------------------------------------------------------------------
 
-                buffer[offset++] = sampleValue;
+    /**
+     * Decodes a block of 16-bit or 24-bit stereo sample data into the specified byte buffer, after the keys
+     * of the block have been read.  The state of each channel is kept in local variables and the channel
+     * loop is unrolled.  If the block has a stereo mode other than left/right, the left and right sample
+     * values of each sample frame are reconstructed from the decoded signals.  The decoded data are
+     * identical to those of the generic loop for a block without a stereo mode.
+     *
+     * @param  buffer  the buffer in which the decompressed data is to be stored.
+     * @param  offset  the start offset at which sample data is to be stored in {@code buffer}.
+     * @param  length  the number of samples that are to be read.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readStereoBlock( byte[] buffer,
+                                  int    offset,
+                                  int    length )
+        throws IOException
+    {
+        boolean threeBytes = (bytesPerSample == 3);
+        int startOffset = offset;
+        int endOffset = startOffset + length * bytesPerSample;
+
+        // Copy per-channel state to local variables
+        int encodingLength0 = encodingLengths[0];
+        int encodingLength1 = encodingLengths[1];
+        boolean verbatim0 = (encodingLength0 == sampleLength);
+        boolean verbatim1 = (encodingLength1 == sampleLength);
+        int excessCode0 = excessCodes[0];
+        int excessCode1 = excessCodes[1];
+        int shift0 = Integer.SIZE - encodingLength0;
+        int shift1 = Integer.SIZE - encodingLength1;
+        int order0 = predictorOrders[0];
+        int order1 = predictorOrders[1];
+        int shift = Integer.SIZE - sampleLength;
+
+        // The differences of orders 0 to 3 of the previous sample value of each channel
+        int prevDifference00 = 0;
+        int prevDifference01 = 0;
+        int prevDifference02 = 0;
+        int prevDifference03 = 0;
+        int prevDifference10 = 0;
+        int prevDifference11 = 0;
+        int prevDifference12 = 0;
+        int prevDifference13 = 0;
+
+        // Decode sample frames
+        while ( offset < endOffset )
+        {
+            // Channel 0
+            int sampleValue0 = 0;
+            if ( verbatim0 || (offset == startOffset) )
+                sampleValue0 = read( sampleLength );
+            else
+            {
+                int epsilon = read( encodingLength0 );
+                sampleValue0 = (epsilon == excessCode0)
+                                    ? read( sampleLength )
+                                    : predict( order0, prevDifference00, prevDifference01, prevDifference02,
+                                               prevDifference03 ) + (epsilon << shift0 >> shift0);
+            }
+            int difference1 = sampleValue0 - prevDifference00;
+            int difference2 = difference1 - prevDifference01;
+            prevDifference03 = difference2 - prevDifference02;
+            prevDifference02 = difference2;
+            prevDifference01 = difference1;
+            prevDifference00 = sampleValue0;
+
+            // Channel 1
+            int sampleValue1 = 0;
+            if ( verbatim1 )
+                sampleValue1 = read( sampleLength );
+            else
+            {
+                int epsilon = read( encodingLength1 );
+                sampleValue1 = (epsilon == excessCode1)
+                                    ? read( sampleLength )
+                                    : predict( order1, prevDifference10, prevDifference11, prevDifference12,
+                                               prevDifference13 ) + (epsilon << shift1 >> shift1);
+            }
+            difference1 = sampleValue1 - prevDifference10;
+            difference2 = difference1 - prevDifference11;
+            prevDifference13 = difference2 - prevDifference12;
+            prevDifference12 = difference2;
+            prevDifference11 = difference1;
+            prevDifference10 = sampleValue1;
+
+            // Reconstruct left and right sample values from signals
+            if ( stereoMode != LEFT_RIGHT )
+            {
+                int side = sampleValue1 << shift >> shift;
+                if ( stereoMode == LEFT_SIDE )
+                    sampleValue1 = sampleValue0 - side;
+                else
+                {
+                    sampleValue1 = (stereoMode == MID_SIDE) ? sampleValue0 - (side >> 1) : sampleValue0;
+                    sampleValue0 = sampleValue1 + side;
+                }
+            }
+
+            // Store sample frame
+            buffer[offset++] = (byte)sampleValue0;
+            buffer[offset++] = (byte)(sampleValue0 >> 8);
+            if ( threeBytes )
+                buffer[offset++] = (byte)(sampleValue0 >> 16);
+            buffer[offset++] = (byte)sampleValue1;
+            buffer[offset++] = (byte)(sampleValue1 >> 8);
+            if ( threeBytes )
+                buffer[offset++] = (byte)(sampleValue1 >> 16);
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads a block of compressed data in which a channel has a linear predictor or the channels are stored
+     * one after another, and decompresses the data into the specified buffer as little-endian sample values.
+     * The sample values of each channel are decoded into a buffer for the channel, from which the left and
+     * right sample values of stereo sample data are reconstructed.
+     *
+     * @param  buffer  the buffer in which the decompressed data will be stored.
+     * @param  offset  the offset in {@code buffer} at which the first sample will be stored.
+     * @param  length  the number of samples that are to be read.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readSeparatedBlock( byte[] buffer,
+                                     int    offset,
+                                     int    length )
+        throws IOException
+    {
+        // Allocate buffers for signals
+        int numSampleFrames = length / numChannels;
+        if ( (blockSignals == null) || (blockSignals[0].length < numSampleFrames) )
+        {
+            blockSignals = new int[numChannels][numSampleFrames];
+            blockEpsilons = new int[numSampleFrames];
+        }
+
+        // Decode channels one after another if Rice coding is enabled ...
+        if ( riceCoding )
+        {
+            for ( int i = 0; i < numChannels; ++i )
+            {
+                if ( riceChannels[i] )
+                    readRiceChannel( i, numSampleFrames );
+                else
+                {
+                    for ( int j = 0; j < numSampleFrames; ++j )
+                        blockSignals[i][j] = (lpcOrders[i] == 0) ? readSampleValue( i, (j == 0) && (i == 0) )
+                                                                 : readLinearPredictionSampleValue( i, j );
+                }
+            }
+        }
+
+        // ... otherwise, decode sample frames
+        else
+        {
+            for ( int i = 0; i < numSampleFrames; ++i )
+            {
+                for ( int j = 0; j < numChannels; ++j )
+                    blockSignals[j][i] = (lpcOrders[j] == 0) ? readSampleValue( j, (i == 0) && (j == 0) )
+                                                             : readLinearPredictionSampleValue( j, i );
+            }
+        }
+
+        // Reconstruct sample values and write them to buffer
+        int shift = Integer.SIZE - sampleLength;
+        for ( int i = 0; i < numSampleFrames; ++i )
+        {
+            if ( stereoMode != LEFT_RIGHT )
+            {
+                int sampleValue0 = blockSignals[0][i];
+                int side = blockSignals[1][i] << shift >> shift;
+                if ( stereoMode == LEFT_SIDE )
+                    blockSignals[1][i] = sampleValue0 - side;
+                else
+                {
+                    int sampleValue1 = (stereoMode == MID_SIDE) ? sampleValue0 - (side >> 1) : sampleValue0;
+                    blockSignals[0][i] = sampleValue1 + side;
+                    blockSignals[1][i] = sampleValue1;
+                }
+            }
+            for ( int j = 0; j < numChannels; ++j )
+            {
+                int sampleValue = blockSignals[j][i];
+                for ( int k = 0; k < bytesPerSample; ++k )
+                {
+                    buffer[offset++] = (byte)sampleValue;
+                    sampleValue >>= 8;
+                }
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads and decodes the sample values of a channel whose epsilons are Rice-coded.  The sample values
+     * that precede the partitions are read verbatim, and the epsilons of each partition are decoded into a
+     * buffer; the sample values are then reconstructed from the epsilons and the predictions of the
+     * predictor of the channel.  The sample values are sign-extended.
+     *
+     * @param  channel          the index of the channel.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readRiceChannel( int channel,
+                                  int numSampleFrames )
+        throws IOException
+    {
+        // Read sample values that precede the partitions
+        int[] signal = blockSignals[channel];
+        int order = lpcOrders[channel];
+        int shift = Integer.SIZE - sampleLength;
+        for ( int i = 0; i < order; ++i )
+            signal[i] = read( sampleLength ) << shift >> shift;
+
+        // Decode epsilons of partitions
+        int[] epsilons = blockEpsilons;
+        int partitionOrder = ricePartitionOrders[channel];
+        int endIndex = 0;
+        for ( int i = 1; i <= 1 << partitionOrder; ++i )
+        {
+            int startIndex = Math.max( endIndex, order );
+            endIndex = (int)((long)i * numSampleFrames >> partitionOrder);
+            int parameter = read( RICE_PARAMETER_LENGTH );
+            if ( parameter == RICE_ESCAPE )
+            {
+                int width = read( RICE_ESCAPE_WIDTH_LENGTH ) + 1;
+                int widthShift = Integer.SIZE - width;
+                for ( int j = startIndex; j < endIndex; ++j )
+                    epsilons[j] = read( width ) << widthShift >> widthShift;
+            }
+            else
+            {
+                for ( int j = startIndex; j < endIndex; ++j )
+                {
+                    int value = readUnary( ) << parameter | read( parameter );
+                    epsilons[j] = value >>> 1 ^ -(value & 1);
+                }
+            }
+        }
+
+        // Reconstruct sample values with linear predictor ...
+        if ( order > 0 )
+        {
+            int[] coefficients = lpcCoefficients[channel];
+            int lpcShift = lpcShifts[channel];
+            for ( int i = order; i < numSampleFrames; ++i )
+            {
+                long sum = 0;
+                for ( int j = 0; j < order; ++j )
+                    sum += (long)coefficients[j] * signal[i - j - 1];
+                signal[i] = (int)(sum >> lpcShift) + epsilons[i];
+            }
+        }
+
+        // ... or with fixed polynomial predictor
+        else
+        {
+            int predictorOrder = predictorOrders[channel];
+            int difference0 = 0;
+            int difference1 = 0;
+            int difference2 = 0;
+            int difference3 = 0;
+            for ( int i = 0; i < numSampleFrames; ++i )
+            {
+                int sampleValue = epsilons[i] + predict( predictorOrder, difference0, difference1,
+                                                         difference2, difference3 );
+                signal[i] = sampleValue;
+                int nextDifference1 = sampleValue - difference0;
+                int nextDifference2 = nextDifference1 - difference1;
+                difference3 = nextDifference2 - difference2;
+                difference2 = nextDifference2;
+                difference1 = nextDifference1;
+                difference0 = sampleValue;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads and decodes the sample value of a channel that has a linear predictor.  A sample value is read
+     * verbatim if there are fewer previous sample values in the block than the order of the predictor, if
+     * the channel is not encoded, or if it follows an excess code; otherwise, it is reconstructed from the
+     * prediction of the linear predictor and the encoded epsilon.  The sample value is sign-extended, because
+     * the prediction of the linear predictor depends on the signs of the previous sample values.
+     *
+     * @param  channel  the index of the channel.
+     * @param  index    the index of the sample value in the block.
+     * @return the sample value.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private int readLinearPredictionSampleValue( int channel,
+                                                 int index )
+        throws IOException
+    {
+        int order = lpcOrders[channel];
+        if ( (index >= order) && (encodingLengths[channel] < sampleLength) )
+        {
+            int epsilon = read( encodingLengths[channel] );
+            if ( epsilon != excessCodes[channel] )
+            {
+                if ( (epsilon & excessCodes[channel]) != 0 )
+                    epsilon |= epsilonMasks[channel];
+                int[] signal = blockSignals[channel];
+                int[] coefficients = lpcCoefficients[channel];
+                long sum = 0;
+                for ( int i = 0; i < order; ++i )
+                    sum += (long)coefficients[i] * signal[index - i - 1];
+                return ( (int)(sum >> lpcShifts[channel]) + epsilon );
             }
         }
+        int shift = Integer.SIZE - sampleLength;
+        return ( read( sampleLength ) << shift >> shift );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads the stereo mode, if stereo modes are enabled, and the coding (if Rice coding is enabled), the
+     * compression key or Rice partition order, and the predictor order (or linear predictor), if predictor
+     * orders were selected, of each channel at the start of a block, and initialises the per-channel
+     * decoding variables.
+     *
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source, or if a predictor order
+     *           or a Rice partition order is out of range.
+     */
+
+    private void beginBlock( )
+        throws IOException
+    {
+        stereoMode = stereoModes ? read( STEREO_MODE_LENGTH ) : LEFT_RIGHT;
+        lpcBlock = false;
+        for ( int i = 0; i < numChannels; ++i )
+        {
+            if ( riceCoding )
+                riceChannels[i] = (read( CODING_LENGTH ) == RICE_CODING);
+            if ( !riceChannels[i] )
+            {
+                encodingLengths[i] = sampleLength - read( keyLength );
+                excessCodes[i] = 1 << encodingLengths[i] - 1;
+                epsilonMasks[i] = ~(excessCodes[i] - 1);
+            }
+            lpcOrders[i] = 0;
+            if ( orderSelection )
+            {
+                int order = read( PREDICTOR_ORDER_LENGTH );
+                if ( (order == LINEAR_PREDICTOR) && linearPrediction )
+                {
+                    readLinearPredictor( i );
+                    lpcBlock = true;
+                }
+                else if ( order > MAX_PREDICTOR_ORDER )
+                    throw new IOException( );
+                else
+                    predictorOrders[i] = order;
+            }
+            if ( riceChannels[i] )
+            {
+                ricePartitionOrders[i] = read( RICE_PARTITION_ORDER_LENGTH );
+                if ( ricePartitionOrders[i] > MAX_RICE_PARTITION_ORDER )
+                    throw new IOException( );
+            }
+            Arrays.fill( prevDifferences[i], 0 );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads the order, the precision, the shift and the coefficients of the linear predictor of a channel.
+     *
+     * @param  channel  the index of the channel.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void readLinearPredictor( int channel )
+        throws IOException
+    {
+        lpcOrders[channel] = read( LPC_ORDER_LENGTH ) + 1;
+        int precision = read( LPC_PRECISION_LENGTH ) + 1;
+        lpcShifts[channel] = read( LPC_SHIFT_LENGTH );
+        int shift = Integer.SIZE - precision;
+        int[] coefficients = lpcCoefficients[channel];
+        for ( int i = 0; i < lpcOrders[channel]; ++i )
+            coefficients[i] = read( precision ) << shift >> shift;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads and decodes the next sample value of a channel.  A sample value is read verbatim if it is the
+     * first sample value of the block, if the channel is not encoded, or if it follows an excess code;
+     * otherwise, it is reconstructed from the prediction of the predictor of the channel and the encoded
+     * epsilon.
+     *
+     * @param  channel  the index of the channel.
+     * @param  first    {@code true} if the sample value is the first sample value of the block.
+     * @return the sample value.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private int readSampleValue( int     channel,
+                                 boolean first )
+        throws IOException
+    {
+        int[] differences = prevDifferences[channel];
+        int sampleValue = 0;
+        if ( first || (encodingLengths[channel] == sampleLength) )
+            sampleValue = read( sampleLength );
+        else
+        {
+            int epsilon = read( encodingLengths[channel] );
+            if ( epsilon == excessCodes[channel] )
+                sampleValue = read( sampleLength );
+            else
+            {
+                if ( (epsilon & excessCodes[channel]) != 0 )
+                    epsilon |= epsilonMasks[channel];
+                sampleValue = predict( predictorOrders[channel], differences[0], differences[1],
+                                       differences[2], differences[3] ) + epsilon;
+            }
+        }
+        int difference1 = sampleValue - differences[0];
+        int difference2 = difference1 - differences[1];
+        differences[3] = difference2 - differences[2];
+        differences[2] = difference2;
+        differences[1] = difference1;
+        differences[0] = sampleValue;
+        return sampleValue;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the prediction of a sample value by the fixed polynomial predictor of a specified order, which
+     * is the sum of the differences of orders below the predictor order of the previous sample value.
+     *
+     * @param  order        the predictor order.
+     * @param  difference0  the previous sample value.
+     * @param  difference1  the first-order difference of the previous sample value.
+     * @param  difference2  the second-order difference of the previous sample value.
+     * @param  difference3  the third-order difference of the previous sample value.
+     * @return the prediction of the sample value.
+     */
+
+    private static int predict( int order,
+                                int difference0,
+                                int difference1,
+                                int difference2,
+                                int difference3 )
+    {
+        switch ( order )
+        {
+            case 0:
+                return 0;
+
+            case 1:
+                return difference0;
+
+            case 2:
+                return ( difference0 + difference1 );
+
+            case 3:
+                return ( difference0 + difference1 + difference2 );
+
+            default:
+                return ( difference0 + difference1 + difference2 + difference3 );
+        }
     }
 
     //------------------------------------------------------------------
@@ -179,7 +1025,7 @@ public class OndaDataInput
     /**
      * Reads a bit string of a specified length from the data source.
      *
-     * @param  length  the number of bits to read.
+     * @param  length  the number of bits to read, which must not exceed 32.
      * @return the bit string that was read from the data source, as an unsigned integer.
      * @throws IOException
      *           if an error occurs while attempting to read from the data source.
@@ -187,44 +1033,203 @@ public class OndaDataInput
 
     private int read( int length )
         throws IOException
+    {
+        if ( bitDataLength < length )
+            fillBitBuffer( length );
+        bitDataLength -= length;
+        return (int)(bitBuffer >>> bitDataLength & (1L << length) - 1);
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads the unary prefix of a Rice code from the data source: a sequence of zeros followed by a one.
+     * The zeros are counted up to {@link #UNARY_TABLE_LENGTH} bits at a time by looking up the next bits of
+     * the bit buffer in a table of leading zeros.
+     *
+     * @return the number of zeros in the prefix.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private int readUnary( )
+        throws IOException
+    {
+        int numZeros = 0;
+        while ( true )
+        {
+            // Look up the next bits of the bit buffer, padded with zeros near the end of the input data
+            if ( bitDataLength == 0 )
+                fillBitBuffer( 1 );
+            int length = Math.min( bitDataLength, UNARY_TABLE_LENGTH );
+            int index = (int)(bitBuffer >>> bitDataLength - length << UNARY_TABLE_LENGTH - length) &
+                                                                                (1 << UNARY_TABLE_LENGTH) - 1;
+            int count = Math.min( UNARY_LEADING_ZEROS[index], length );
+            numZeros += count;
+
+            // Consume the zeros and, if it was found, the one that ends the prefix
+            if ( count < length )
+            {
+                bitDataLength -= count + 1;
+                return numZeros;
+            }
+            bitDataLength -= length;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Fills the bit buffer so that it contains at least the specified number of bits.  Wherever possible,
+     * a whole word is read from the input buffer and as many of its bytes as will fit are added to the bit
+     * buffer; near the end of the input data, the bit buffer is filled one byte at a time.
+     *
+     * @param  length  the minimum number of bits that the bit buffer must contain.
+     * @throws IOException
+     *           if an error occurs while attempting to read from the data source.
+     */
+
+    private void fillBitBuffer( int length )
+        throws IOException
     {
         while ( bitDataLength < length )
         {
-            if ( inBufferIndex >= inBuffer.length )
+            // Refill input buffer if it does not contain a whole word
+            int inBufferLength = inBufferEnd - inBufferIndex;
+            if ( (inBufferLength < Long.BYTES) && (dataLength > 0) )
+            {
+                if ( channel == null )
+                    readInBuffer( inBufferLength );
+                else
+                    mapInBuffer( inBufferLength );
+                inBufferLength = inBufferEnd - inBufferIndex;
+            }
+
+            // Add bytes to bit buffer
+            if ( inBufferLength >= Long.BYTES )
             {
-                if ( dataLength == 0 )
-                    throw new EOFException( );
-                int readLength = (int)Math.min( dataLength, inBuffer.length );
-                inBufferIndex = inBuffer.length - readLength;
-                dataInput.readFully( inBuffer, inBufferIndex, readLength );
-                dataLength -= readLength;
+                int numBytes = Long.SIZE - 1 - bitDataLength >>> 3;
+                int numBits = numBytes << 3;
+                long word = inByteBuffer.getLong( inBufferIndex );
+                bitBuffer = bitBuffer << numBits | word >>> Long.SIZE - numBits;
+                inBufferIndex += numBytes;
+                bitDataLength += numBits;
             }
-            bitBuffer <<= 8;
-            bitBuffer |= inBuffer[inBufferIndex++] & 0xFF;
-            bitDataLength += 8;
+            else if ( inBufferLength > 0 )
+            {
+                bitBuffer = bitBuffer << 8 | inByteBuffer.get( inBufferIndex++ ) & 0xFF;
+                bitDataLength += 8;
+            }
+            else
+                throw new EOFException( );
         }
-        bitDataLength -= length;
-        return ( bitBuffer >>> bitDataLength & ((1 << length) - 1) );
     }
 
     //------------------------------------------------------------------
 
+    /**
+     * Moves the unread bytes of the input buffer to its start, and fills the rest of the buffer from the
+     * data input.
+     */
+
+    private void readInBuffer( int inBufferLength )
+        throws IOException
+    {
+        System.arraycopy( inBuffer, inBufferIndex, inBuffer, 0, inBufferLength );
+        int readLength = (int)Math.min( dataLength, inBuffer.length - inBufferLength );
+        dataInput.readFully( inBuffer, inBufferLength, readLength );
+        dataLength -= readLength;
+        inBufferIndex = 0;
+        inBufferEnd = inBufferLength + readLength;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Maps the next window of the file channel, starting at the first unread byte of the current window.
+     */
+
+    private void mapInBuffer( int inBufferLength )
+        throws IOException
+    {
+        long position = windowPosition + inBufferIndex;
+        int length = (int)Math.min( inBufferLength + dataLength, MAP_WINDOW_SIZE );
+        inByteBuffer = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+        dataLength -= length - inBufferLength;
+        windowPosition = position;
+        inBufferIndex = 0;
+        inBufferEnd = length;
+    }
+
+    //------------------------------------------------------------------
+
+    private void init( )
+    {
+        bytesPerSample = (sampleLength + 7) / 8;
+        stereoKernel = (numChannels == 2) && ((sampleLength == 16) || (sampleLength == 24));
+        encodingLengths = new int[numChannels];
+        excessCodes = new int[numChannels];
+        epsilonMasks = new int[numChannels];
+        predictorOrders = new int[numChannels];
+        Arrays.fill( predictorOrders, DEFAULT_PREDICTOR_ORDER );
+        prevDifferences = new int[numChannels][MAX_PREDICTOR_ORDER];
+        lpcOrders = new int[numChannels];
+        riceChannels = new boolean[numChannels];
+        ricePartitionOrders = new int[numChannels];
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Static initialiser
+////////////////////////////////////////////////////////////////////////
+
+    static
+    {
+        UNARY_LEADING_ZEROS = new byte[1 << UNARY_TABLE_LENGTH];
+        for ( int i = 0; i < UNARY_LEADING_ZEROS.length; ++i )
+            UNARY_LEADING_ZEROS[i] = (byte)(Integer.numberOfLeadingZeros( i ) - (Integer.SIZE -
+                                                                                    UNARY_TABLE_LENGTH));
+    }
+
 ////////////////////////////////////////////////////////////////////////
 //  Instance variables
 ////////////////////////////////////////////////////////////////////////
 
     private DataInput   dataInput;
+    private FileChannel channel;
+    private long        windowPosition;
     private long        dataLength;
     private int         numChannels;
     private int         sampleLength;
     private int         keyLength;
-    private int         bitBuffer;
+    private int         bytesPerSample;
+    private boolean     stereoKernel;
+    private boolean     stereoModes;
+    private boolean     orderSelection;
+    private boolean     linearPrediction;
+    private boolean     riceCoding;
+    private boolean     blockSplitting;
+    private boolean     lpcBlock;
+    private int         stereoMode;
+    private long        bitBuffer;
     private int         bitDataLength;
     private int         inBufferIndex;
+    private int         inBufferEnd;
     private byte[]      inBuffer;
+    private ByteBuffer  inByteBuffer;
     private int[]       encodingLengths;
     private int[]       excessCodes;
     private int[]       epsilonMasks;
+    private int[]       predictorOrders;
+    private int[][]     prevDifferences;
+    private int[]       lpcOrders;
+    private int[][]     lpcCoefficients;
+    private int[]       lpcShifts;
+    private boolean[]   riceChannels;
+    private int[]       ricePartitionOrders;
+    private int[][]     blockSignals;
+    private int[]       blockEpsilons;
 
 }
 
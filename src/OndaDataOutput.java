@@ -10,9 +10,15 @@ Onda lossless audio compression data output class.
 // IMPORTS
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
 //----------------------------------------------------------------------
 
 
@@ -26,12 +32,9 @@ import java.io.IOException;
  * algorithm</a>.
  * <p>
  * The underlying data destination for this output is an instance of {@code java.io.DataOutput}.  Data that
- * are written to the data destination are buffered to improve efficiency.
- * </p>
- * <p>
- * The implementation of this class in the Onda application works only for integer sample values of up to 24
- * bits per sample.  Above 24 bits per sample, the type of the instance variable {@code bitBuffer} must be
- * changed from {@code int} to {@code long} to accommodate the extra bits.
+ * are written to the data destination are buffered to improve efficiency.  Bits are accumulated in a
+ * {@code long} and transferred to the output buffer a 32-bit word at a time, so sample values of up to 32
+ * bits per sample are supported.
  * </p>
  *
  * @see OndaDataInput
@@ -46,6 +49,123 @@ public class OndaDataOutput
 
     private static final    int BUFFER_SIZE = 1 << 13;  // 8192
 
+    private static final    int MAX_PREDICTOR_ORDER     = 4;
+    private static final    int DEFAULT_PREDICTOR_ORDER = 2;
+    private static final    int PREDICTOR_ORDER_LENGTH  = 3;
+
+    private static final    int ANALYSIS_RUN_LENGTH = 32;
+    private static final    int ANALYSIS_INTERVAL   = 128;
+
+    // The value of the predictor order of a channel that has a linear predictor
+    private static final    int LINEAR_PREDICTOR    = 5;
+
+    private static final    int LPC_ORDER_LENGTH        = 5;
+    private static final    int LPC_PRECISION_LENGTH    = 4;
+    private static final    int LPC_SHIFT_LENGTH        = 5;
+    private static final    int LPC_HEADER_LENGTH       = LPC_ORDER_LENGTH + LPC_PRECISION_LENGTH +
+                                                                                        LPC_SHIFT_LENGTH;
+    private static final    int LPC_PRECISION           = 14;
+
+    // The orders of the linear predictors that are evaluated for each channel of a block
+    private static final    int[]   LPC_ORDERS  = { 1, 2, 3, 4, 6, 8, 12, 16, 20, 24, 32 };
+
+    // Codings of the epsilons of a channel of a block
+    private static final    int CODING_LENGTH   = 1;
+    private static final    int ESCAPE_CODING   = 0;
+    private static final    int RICE_CODING     = 1;
+
+    private static final    int MAX_RICE_PARTITION_ORDER    = 8;
+    private static final    int MIN_RICE_PARTITION_LENGTH   = 16;
+    private static final    int RICE_PARTITION_ORDER_LENGTH = 4;
+    private static final    int MAX_RICE_PARAMETER          = 30;
+    private static final    int RICE_PARAMETER_LENGTH       = 5;
+    private static final    int RICE_ESCAPE_WIDTH_LENGTH    = 5;
+
+    // The value of the Rice parameter of a partition whose epsilons are written verbatim
+    private static final    int RICE_ESCAPE = 31;
+
+    // Splitting of a block into sub-blocks
+    private static final    int MAX_SPLIT_DEPTH         = 2;
+    private static final    int MIN_SUB_BLOCK_LENGTH    = 64;
+    private static final    int SPLIT_FLAG_LENGTH       = 1;
+
+    private static final    int STEREO_MODE_LENGTH  = 2;
+
+    // Stereo modes: the signals that are encoded as channels 0 and 1 of a block
+    private static final    int LEFT_RIGHT  = 0;
+    private static final    int LEFT_SIDE   = 1;
+    private static final    int RIGHT_SIDE  = 2;
+    private static final    int MID_SIDE    = 3;
+
+    // Signals from which the channels of a stereo mode are drawn
+    private static final    int LEFT        = 0;
+    private static final    int RIGHT       = 1;
+    private static final    int MID         = 2;
+    private static final    int SIDE        = 3;
+    private static final    int NUM_SIGNALS = 4;
+
+    private static final    int[][] STEREO_MODE_SIGNALS =
+    {
+        { LEFT, RIGHT },    // LEFT_RIGHT
+        { LEFT, SIDE },     // LEFT_SIDE
+        { RIGHT, SIDE },    // RIGHT_SIDE
+        { MID, SIDE }       // MID_SIDE
+    };
+
+////////////////////////////////////////////////////////////////////////
+//  Member classes : non-inner classes
+////////////////////////////////////////////////////////////////////////
+
+
+    // TRIAL STREAM CLASS
+
+
+    /**
+     * A trial stream is the data destination of the trial data output of block splitting.  Its content can
+     * be copied into a buffer that is reused from one block to the next, so that the output of each block or
+     * sub-block is kept without allocating a new array for it.
+     */
+
+    private static class TrialStream
+        extends ByteArrayOutputStream
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private TrialStream( )
+        {
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Copies the content of this stream into a specified buffer, or into a new buffer if the specified
+         * buffer is {@code null} or is too short for the content.
+         *
+         * @param  buffer  the buffer into which the content is to be copied; may be {@code null}.
+         * @return the buffer that contains the content of this stream.
+         */
+
+        private byte[] copyTo( byte[] buffer )
+        {
+            if ( (buffer == null) || (buffer.length < count) )
+                buffer = new byte[count];
+            System.arraycopy( buf, 0, buffer, 0, count );
+            return buffer;
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //==================================================================
+
 ////////////////////////////////////////////////////////////////////////
 //  Constructors
 ////////////////////////////////////////////////////////////////////////
@@ -69,15 +189,26 @@ public class OndaDataOutput
         this.sampleLength = sampleLength;
         this.keyLength = keyLength;
         this.dataOutput = dataOutput;
+        bytesPerSample = (sampleLength + 7) / 8;
+        stereoKernel = (numChannels == 2) && ((sampleLength == 16) || (sampleLength == 24));
         minEncodingLength = Math.max( 1, sampleLength - (1 << keyLength) + 1 );
         outBuffer = new byte[BUFFER_SIZE];
-        encodingLimits = new int[sampleLength];
-        for ( int i = minEncodingLength; i < sampleLength; ++i )
-            encodingLimits[i] = (1 << i - 1) - 1;
+        outByteBuffer = ByteBuffer.wrap( outBuffer );
         negEncodingLimits = new int[numChannels];
         posEncodingLimits = new int[numChannels];
         encodingLengths = new int[numChannels];
         excessCodes = new int[numChannels];
+        excessCounts = new int[numChannels][sampleLength];
+        predictorOrders = new int[numChannels];
+        Arrays.fill( predictorOrders, DEFAULT_PREDICTOR_ORDER );
+        lpcOrders = new int[numChannels];
+        riceChannels = new boolean[numChannels];
+        ricePartitionOrders = new int[numChannels];
+        candidateCounts = new int[sampleLength];
+        prevDifferences = new int[numChannels][MAX_PREDICTOR_ORDER];
+        int numSignals = Math.max( numChannels, NUM_SIGNALS );
+        residualSums = new int[numSignals][MAX_PREDICTOR_ORDER + 1];
+        signalOrders = new int[numSignals];
     }
 
     //------------------------------------------------------------------
@@ -100,6 +231,207 @@ public class OndaDataOutput
 
     //------------------------------------------------------------------
 
+    /**
+     * Returns the number of bits of compressed data that have been written to the data output, including any
+     * bits that are held in the buffer and have not yet been written to the underlying data destination.
+     *
+     * @return the number of bits of compressed data that have been written to the data output since it was
+     *         opened or last reset.
+     */
+
+    public long getBitLength( )
+    {
+        return ( (outLength + outBufferIndex) * 8 + bitDataLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether the channels of stereo sample data are decorrelated.  If they are, each block begins with
+     * a two-bit stereo mode that specifies the pair of signals that are encoded as the two channels of the
+     * block: left and right (0), left and side (1), right and side (2), or mid and side (3).  The side signal
+     * is the difference between the left and right sample values, and the mid signal is the right sample
+     * value plus half the side signal; both are reduced modulo 2<sup>sampleLength</sup> to signed values, so
+     * they have the same length as a sample value.  The mode whose pair of signals has the smallest total
+     * bit width of the magnitudes of epsilon is chosen for each block.
+     * <p>
+     * Stereo modes are supported only for stereo sample data of 16 or 24 bits, which must be written with
+     * {@link #writeBlock(byte[], int, int)}.
+     * </p>
+     *
+     * @param  stereoModes  {@code true} if the channels of stereo sample data are to be decorrelated.
+     * @throws IllegalArgumentException
+     *           if {@code stereoModes} is {@code true} and the sample data are not 16-bit or 24-bit stereo.
+     */
+
+    public void setStereoModes( boolean stereoModes )
+    {
+        if ( stereoModes && !stereoKernel )
+            throw new IllegalArgumentException( );
+
+        this.stereoModes = stereoModes;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether the order of the fixed polynomial predictor of each channel is selected for each block.
+     * A predictor of order k predicts a sample value from the previous k sample values of its channel, and
+     * epsilon is the difference between the sample value and its prediction: the k-th order difference of
+     * the sample values.  If predictor orders are not selected, every channel has the second-order predictor
+     * of the <a href="http://onda.sourceforge.net/ondaAlgorithmAndFileFormats.html">Onda algorithm</a>.
+     * <p>
+     * If predictor orders are selected, the order (0 to 4) of each channel is written as a three-bit value
+     * after the key of the channel.  The order of a channel is the one for which the sum of the bit widths
+     * of the magnitudes of epsilon is smallest.  To keep the analysis cheap, the sums are computed before
+     * the histograms are built, over runs of 32 sample frames at intervals of 128 sample frames.  Blocks
+     * must be written with {@link #writeBlock(byte[], int, int)} if predictor orders are selected.
+     * </p>
+     *
+     * @param orderSelection  {@code true} if the predictor order of each channel is to be selected for each
+     *                        block.
+     */
+
+    public void setPredictorOrderSelection( boolean orderSelection )
+    {
+        this.orderSelection = orderSelection;
+        if ( !orderSelection )
+            Arrays.fill( predictorOrders, DEFAULT_PREDICTOR_ORDER );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether a channel of a block may have a linear predictor instead of a fixed polynomial
+     * predictor.  This is a high-ratio mode, in which compression is much slower; it has an effect only if
+     * predictor order selection has been enabled with {@link #setPredictorOrderSelection(boolean)}.
+     * <p>
+     * For each channel of each block, the coefficients of linear predictors of orders up to 32 are computed
+     * from the autocorrelation of the windowed sample values with the Levinson-Durbin recursion and are
+     * quantised to 14 bits.  The predictor (linear or fixed polynomial) for which the channel has the
+     * shortest output is chosen.  A linear predictor is denoted by the value 5 in place of the predictor
+     * order, and it is followed by its order minus one (5 bits), the precision of its coefficients minus one
+     * (4 bits), the shift of its coefficients (5 bits) and its coefficients.  The first k sample values of a
+     * channel that has a linear predictor of order k are written verbatim; the epsilons of the other sample
+     * values are encoded in the same way as those of a fixed polynomial predictor.
+     * </p>
+     *
+     * @param linearPrediction  {@code true} if a channel of a block may have a linear predictor.
+     */
+
+    public void setLinearPrediction( boolean linearPrediction )
+    {
+        this.linearPrediction = linearPrediction;
+        if ( linearPrediction )
+        {
+            if ( linearPredictor == null )
+            {
+                linearPredictor = new LinearPredictor( );
+                lpcCoefficients = new int[numChannels][LinearPredictor.MAX_ORDER];
+                lpcShifts = new int[numChannels];
+                candidateCoefficients = new int[LinearPredictor.MAX_ORDER];
+            }
+        }
+        else
+            Arrays.fill( lpcOrders, 0 );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether the epsilons of a channel of a block may be encoded with partitioned Rice codes instead of
+     * an encoding length and excess codes.  Like linear prediction, it has an effect only if predictor order
+     * selection has been enabled with {@link #setPredictorOrderSelection(boolean)}.
+     * <p>
+     * If Rice coding is enabled, the key of each channel is preceded by a coding bit, which is 1 if the
+     * channel is Rice-coded, in which case the channel has no key and its predictor is followed by a
+     * partition order p (4 bits).  The channels of a block are written one after another rather than
+     * interleaved.  The sample values of a Rice-coded channel are divided into 2<sup>p</sup> partitions of
+     * nearly equal length, each of which begins with a Rice parameter k (5 bits); each epsilon of the
+     * partition is mapped to an unsigned value (0, -1, 1, -2, ... to 0, 1, 2, 3, ...), whose quotient by
+     * 2<sup>k</sup> is written in unary as that number of zeros followed by a one, and whose remainder is
+     * written in k bits.  A parameter of 31 denotes a partition whose epsilons are written verbatim with the
+     * bit width that follows the parameter.  Only the first k sample values of a channel that has a linear
+     * predictor of order k are written verbatim before the partitions.
+     * </p>
+     * <p>
+     * The coding of each channel is chosen for each block together with its predictor, as the one for which
+     * the channel has the shortest output; the partition order and the parameters are chosen from the sums
+     * of the mapped epsilons of the partitions.
+     * </p>
+     *
+     * @param riceCoding  {@code true} if the epsilons of a channel of a block may be Rice-coded.
+     */
+
+    public void setRiceCoding( boolean riceCoding )
+    {
+        this.riceCoding = riceCoding;
+        if ( riceCoding && (riceSums == null) )
+        {
+            int numPartitions = 1 << MAX_RICE_PARTITION_ORDER;
+            riceSums = new long[numPartitions];
+            riceCounts = new int[numPartitions];
+            riceMagnitudes = new int[numPartitions];
+        }
+        if ( !riceCoding )
+            Arrays.fill( riceChannels, false );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Sets whether a block may be split into sub-blocks of different lengths.  Like linear prediction, it
+     * has an effect only if predictor order selection has been enabled with {@link
+     * #setPredictorOrderSelection(boolean)}.
+     * <p>
+     * If block splitting is enabled, a block is the root of a binary tree of sub-blocks: a block or
+     * sub-block of n sample frames at a depth of less than 2 may be split into two sub-blocks of n/2 and
+     * n&nbsp;-&nbsp;n/2 sample frames if n/2 is at least 64.  The tree is written in pre-order: a block or
+     * sub-block that may be split begins with a split flag (1 bit), which is followed either by its two
+     * sub-blocks, if it is split, or by its compressed data, which have the form of a block.  The length of
+     * each sub-block is therefore carried by the split flags, and the block length of the data is unchanged.
+     * </p>
+     * <p>
+     * The splits of each block are chosen by compressing the block and each of its candidate sub-blocks
+     * separately and keeping the combination of sub-blocks for which the block has the shortest output, so
+     * each level of the tree adds a compression pass over the sample data.
+     * </p>
+     *
+     * @param blockSplitting  {@code true} if a block may be split into sub-blocks.
+     */
+
+    public void setBlockSplitting( boolean blockSplitting )
+    {
+        this.blockSplitting = blockSplitting;
+        if ( blockSplitting && (trialOutput == null) )
+        {
+            trialStream = new TrialStream( );
+            trialOutput = new OndaDataOutput( numChannels, sampleLength, keyLength,
+                                              new DataOutputStream( trialStream ) );
+            int numSubBlocks = (1 << MAX_SPLIT_DEPTH + 1) - 1;
+            subBlockData = new byte[numSubBlocks][];
+            subBlockBitLengths = new long[numSubBlocks];
+            subBlockSplits = new boolean[numSubBlocks];
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Resets the data output to its initial state, discarding any compressed data that has not been written
+     * to the underlying data destination.  This method does not reset the underlying data destination.
+     */
+
+    public void reset( )
+    {
+        bitBuffer = 0;
+        bitDataLength = 0;
+        outBufferIndex = 0;
+        outLength = 0;
+    }
+
+    //------------------------------------------------------------------
+
     /**
      * Closes the data output.  Any unwritten compressed data is written to the data destination.  This
      * method does not close the underlying data destination.
@@ -111,16 +443,23 @@ public class OndaDataOutput
     public void close( )
         throws IOException
     {
-        // Write residual contents of buffer to data destination
-        if ( bitDataLength > 0 )
-            outBuffer[outBufferIndex++] = (byte)(bitBuffer << 8 - bitDataLength);
-
-        if ( outBufferIndex > 0 )
+        // Transfer residual bits to output buffer, padding the last byte with zeros
+        while ( bitDataLength > 0 )
         {
-            dataOutput.write( outBuffer, 0, outBufferIndex );
-            outLength += outBufferIndex;
-            outBufferIndex = 0;
+            if ( bitDataLength >= 8 )
+            {
+                bitDataLength -= 8;
+                outBuffer[outBufferIndex++] = (byte)(bitBuffer >>> bitDataLength);
+            }
+            else
+            {
+                outBuffer[outBufferIndex++] = (byte)(bitBuffer << 8 - bitDataLength);
+                bitDataLength = 0;
+            }
         }
+
+        // Write residual contents of buffer to data destination
+        flush( );
     }
 
     //------------------------------------------------------------------
@@ -144,6 +483,10 @@ public class OndaDataOutput
      *           </ul>
      * @throws IndexOutOfBoundsException
      *           if {@code (offset < 0)} or {@code (offset > data.length)}.
+     * @throws IllegalStateException
+     *           if stereo modes have been enabled with {@link #setStereoModes(boolean)}, predictor order
+     *           selection has been enabled with {@link #setPredictorOrderSelection(boolean)} or block
+     *           splitting has been enabled with {@link #setBlockSplitting(boolean)}.
      * @throws IOException
      *           if an error occurs while attempting to write to the data destination.
      */
@@ -154,6 +497,8 @@ public class OndaDataOutput
         throws IOException
     {
         // Validate arguments
+        if ( stereoModes || orderSelection || blockSplitting )
+            throw new IllegalStateException( );
         if ( data == null )
             throw new IllegalArgumentException( );
         if ( (offset < 0) || (offset > data.length) )
@@ -161,126 +506,1647 @@ public class OndaDataOutput
         if ( (length < 0) || (length > data.length - offset) )
             throw new IllegalArgumentException( );
 
-        // Get excess count for each encoding length
-        int[][] excessCounts = new int[numChannels][sampleLength];
-        int[] prevSampleValues = new int[numChannels];
-        int[] prevDeltas = new int[numChannels];
+        // Reset per-channel state
+        beginBlock( );
+
+        // Build a histogram of the bit widths of the magnitudes of epsilon for each channel
         int startOffset = offset;
         int endOffset = startOffset + length;
         while ( offset < endOffset )
         {
             for ( int i = 0; i < numChannels; ++i )
             {
-                int sampleValue = data[offset];
-                int delta = sampleValue - prevSampleValues[i];
-                if ( offset > startOffset )
-                {
-                    int absEpsilon = Math.abs( delta - prevDeltas[i] );
-                    for ( int j = sampleLength - 1; j >= minEncodingLength; --j )
-                    {
-                        if ( absEpsilon > encodingLimits[j] )
-                        {
-                            for ( ; j >= minEncodingLength; --j )
-                                ++excessCounts[i][j];
-                        }
-                    }
-                }
-                prevSampleValues[i] = sampleValue;
-                prevDeltas[i] = delta;
+                addToHistogram( i, data[offset], offset == startOffset );
+                ++offset;
+            }
+        }
 
+        // Determine optimum encoding lengths and write keys
+        writeKeys( length / numChannels );
+
+        // Encode sample data and write them to data destination
+        offset = startOffset;
+        while ( offset < endOffset )
+        {
+            for ( int i = 0; i < numChannels; ++i )
+            {
+                writeSampleValue( i, data[offset], offset == startOffset );
                 ++offset;
             }
         }
+    }
 
-        // Determine optimum encoding length
-        int numSampleFrames = length / numChannels;
-        for ( int i = 0; i < numChannels; ++i )
+    //------------------------------------------------------------------
+
+    /**
+     * Compresses a block of sample data that are stored in a byte buffer as little-endian sample values of
+     * the smallest whole number of bytes that holds a sample value, and writes the compressed data to the
+     * data destination.  The compressed data are identical to those that would be written by {@link
+     * #writeBlock(int[], int, int)} for the sign-extended sample values.
+     * <p>
+     * This method encodes directly from the byte buffer, without an intermediate array of sample values;
+     * the encoding loops are specialised for sample values of two and three bytes, and stereo sample data of
+     * 16 or 24 bits are encoded by a dedicated kernel.
+     * </p>
+     *
+     * @param  data    the data that is to be compressed and written.
+     * @param  offset  the start offset of the sample data in {@code data}.
+     * @param  length  the number of samples that are to be written.
+     * @throws IllegalArgumentException
+     *           if
+     *           <ul>
+     *             <li>{@code data} is {@code null}, or</li>
+     *             <li>{@code (length < 0)}, or {@code data} does not contain {@code length} samples from
+     *                 {@code offset}.</li>
+     *           </ul>
+     * @throws IndexOutOfBoundsException
+     *           if {@code (offset < 0)} or {@code (offset > data.length)}.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    public void writeBlock( byte[] data,
+                            int    offset,
+                            int    length )
+        throws IOException
+    {
+        // Validate arguments
+        if ( data == null )
+            throw new IllegalArgumentException( );
+        if ( (offset < 0) || (offset > data.length) )
+            throw new IndexOutOfBoundsException( );
+        if ( (length < 0) || ((long)length * bytesPerSample > data.length - offset) )
+            throw new IllegalArgumentException( );
+
+        // Encode block as a tree of sub-blocks
+        if ( blockSplitting && orderSelection )
+        {
+            writeSplitBlock( data, offset, length );
+            return;
+        }
+
+        // Reset per-channel state
+        beginBlock( );
+
+        // Encode sample data with linear predictors or Rice codes
+        if ( (linearPrediction || riceCoding) && orderSelection )
+        {
+            writeSeparatedBlock( data, offset, length );
+            return;
+        }
+
+        // Encode stereo sample data with the dedicated kernel
+        if ( stereoKernel )
+        {
+            writeStereoBlock( data, offset, length );
+            return;
+        }
+
+        // Choose predictor order of each channel
+        int startOffset = offset;
+        int endOffset = startOffset + length * bytesPerSample;
+        if ( orderSelection )
         {
-            encodingLengths[i] = sampleLength;
-            long minOutputLength = numSampleFrames * sampleLength;
-            for ( int j = minEncodingLength; j < sampleLength; ++j )
+            for ( int i = 0; i < numChannels; ++i )
             {
-                long outputLength = (numSampleFrames - 1) * j + (excessCounts[i][j] + 1) * sampleLength;
-                if ( minOutputLength > outputLength )
-                {
-                    minOutputLength = outputLength;
-                    encodingLengths[i] = j;
-                }
+                analyseSignal( data, startOffset, endOffset, i );
+                predictorOrders[i] = getBestPredictorOrder( i );
             }
         }
 
-        // Write key for each channel; initialise per-channel encoding variables
-        for ( int i = 0; i < numChannels; ++i )
+        // Build a histogram of the bit widths of the magnitudes of epsilon for each channel
+        switch ( bytesPerSample )
         {
-            write( sampleLength - encodingLengths[i], keyLength );
+            case 2:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        addToHistogram( i, data[offset + 1] << 8 | data[offset] & 0xFF,
+                                        offset == startOffset );
+                        offset += 2;
+                    }
+                }
+                break;
 
-            prevSampleValues[i] = 0;
-            prevDeltas[i] = 0;
-            int value = 1 << encodingLengths[i] - 1;
-            excessCodes[i] = value;
-            --value;
-            posEncodingLimits[i] = value;
-            negEncodingLimits[i] = -value;
+            case 3:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        addToHistogram( i, data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 |
+                                                                data[offset] & 0xFF, offset == startOffset );
+                        offset += 3;
+                    }
+                }
+                break;
+
+            default:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        addToHistogram( i, getSampleValue( data, offset ), offset == startOffset );
+                        offset += bytesPerSample;
+                    }
+                }
+                break;
         }
 
+        // Determine optimum encoding lengths and write keys
+        writeKeys( length / numChannels );
+
         // Encode sample data and write them to data destination
         offset = startOffset;
-        while ( offset < endOffset )
+        switch ( bytesPerSample )
         {
-            for ( int i = 0; i < numChannels; ++i )
-            {
-                int sampleValue = data[offset];
-                int delta = sampleValue - prevSampleValues[i];
+            case 2:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        writeSampleValue( i, data[offset + 1] << 8 | data[offset] & 0xFF,
+                                          offset == startOffset );
+                        offset += 2;
+                    }
+                }
+                break;
 
-                if ( (offset == startOffset) || (encodingLengths[i] == sampleLength) )
-                    write( sampleValue, sampleLength );
-                else
+            case 3:
+                while ( offset < endOffset )
                 {
-                    int epsilon = delta - prevDeltas[i];
-                    if ( (epsilon < negEncodingLimits[i]) || (epsilon > posEncodingLimits[i]) )
+                    for ( int i = 0; i < numChannels; ++i )
                     {
-                        write( excessCodes[i], encodingLengths[i] );
-                        write( sampleValue, sampleLength );
+                        writeSampleValue( i, data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 |
+                                                                data[offset] & 0xFF, offset == startOffset );
+                        offset += 3;
                     }
-                    else
-                        write( epsilon, encodingLengths[i] );
                 }
-                prevSampleValues[i] = sampleValue;
-                prevDeltas[i] = delta;
+                break;
 
-                ++offset;
-            }
+            default:
+                while ( offset < endOffset )
+                {
+                    for ( int i = 0; i < numChannels; ++i )
+                    {
+                        writeSampleValue( i, getSampleValue( data, offset ), offset == startOffset );
+                        offset += bytesPerSample;
+                    }
+                }
+                break;
         }
     }
 
     //------------------------------------------------------------------
 
     /**
-     * Writes a bit string of a specified length to the data destination.
+     * Writes a sequence of bits that was produced by another instance of {@code OndaDataOutput} to the data
+     * destination.  The bits are appended to the compressed data that has already been written, so that a
+     * block that was compressed separately can be placed in the bit stream as if it had been compressed by
+     * this data output.
      *
-     * @param  value   the bit string that is to be written.
-     * @param  length  the number of low-order bits of {@code value} to write.
+     * @param  data       the bits that are to be written, most significant bit of the first byte first.
+     * @param  bitLength  the number of bits of {@code data} to write.
+     * @throws IllegalArgumentException
+     *           if
+     *           <ul>
+     *             <li>{@code data} is {@code null}, or</li>
+     *             <li>{@code (bitLength < 0)} or {@code (bitLength > data.length * 8)}.</li>
+     *           </ul>
      * @throws IOException
      *           if an error occurs while attempting to write to the data destination.
      */
 
-    private void write( int value,
-                        int length )
+    public void writeBits( byte[] data,
+                           long   bitLength )
         throws IOException
     {
-        bitBuffer <<= length;
-        bitBuffer |= value & ((1 << length) - 1);
-        bitDataLength += length;
-        while ( bitDataLength >= 8 )
-        {
-            bitDataLength -= 8;
-            outBuffer[outBufferIndex++] = (byte)(bitBuffer >>> bitDataLength);
-            if ( outBufferIndex >= outBuffer.length )
-            {
-                dataOutput.write( outBuffer );
-                outLength += outBuffer.length;
-                outBufferIndex = 0;
-            }
+        // Validate arguments
+        if ( data == null )
+            throw new IllegalArgumentException( );
+        if ( (bitLength < 0) || (bitLength > (long)data.length * 8) )
+            throw new IllegalArgumentException( );
+
+        // Write whole words, then whole bytes
+        int length = (int)(bitLength >>> 3);
+        ByteBuffer byteBuffer = ByteBuffer.wrap( data );
+        int i = 0;
+        for ( int endIndex = length - Integer.BYTES; i <= endIndex; i += Integer.BYTES )
+            write( byteBuffer.getInt( i ), Integer.SIZE );
+        for ( ; i < length; ++i )
+            write( data[i], Byte.SIZE );
+
+        // Write residual bits
+        int residualLength = (int)bitLength & 0x07;
+        if ( residualLength > 0 )
+            write( (data[length] & 0xFF) >>> 8 - residualLength, residualLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Compresses a block of sample data as a tree of sub-blocks and writes the compressed data to the data
+     * destination.  The block and each of its candidate sub-blocks are compressed separately with the trial
+     * data output, the splits for which the block has the shortest output are chosen, and the split flags
+     * and the compressed data of the chosen sub-blocks are written in pre-order.
+     *
+     * @param  data    the data that is to be compressed and written.
+     * @param  offset  the start offset of the sample data in {@code data}.
+     * @param  length  the number of samples that are to be written.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeSplitBlock( byte[] data,
+                                  int    offset,
+                                  int    length )
+        throws IOException
+    {
+        // Apply settings to trial data output
+        trialOutput.setStereoModes( stereoModes );
+        trialOutput.setPredictorOrderSelection( orderSelection );
+        trialOutput.setLinearPrediction( linearPrediction );
+        trialOutput.setRiceCoding( riceCoding );
+
+        // Compress block and candidate sub-blocks, and choose splits
+        int numSampleFrames = length / numChannels;
+        compressSubBlock( data, offset, numSampleFrames, 0, 0 );
+
+        // Write split flags and compressed data of sub-blocks
+        writeSubBlock( numSampleFrames, 0, 0 );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Compresses a block or sub-block of sample data with the trial data output and retains the compressed
+     * data.  If the block or sub-block may be split, its two sub-blocks are compressed in the same way, and
+     * it is split if the total length of their output is less than the length of its own output.
+     *
+     * @param  data             the data that is to be compressed.
+     * @param  offset           the start offset of the sample data of the block or sub-block in {@code
+     *                          data}.
+     * @param  numSampleFrames  the number of sample frames of the block or sub-block.
+     * @param  index            the index of the block or sub-block in the tree, in which the sub-blocks of
+     *                          the block or sub-block at index i are at indices 2i+1 and 2i+2.
+     * @param  depth            the depth of the block or sub-block in the tree.
+     * @return the length (in bits) of the output of the block or sub-block, including its split flags.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the trial data output.
+     */
+
+    private long compressSubBlock( byte[] data,
+                                   int    offset,
+                                   int    numSampleFrames,
+                                   int    index,
+                                   int    depth )
+        throws IOException
+    {
+        // Compress block or sub-block
+        trialStream.reset( );
+        trialOutput.reset( );
+        trialOutput.writeBlock( data, offset, numSampleFrames * numChannels );
+        long bitLength = trialOutput.getBitLength( );
+        trialOutput.close( );
+        subBlockData[index] = trialStream.copyTo( subBlockData[index] );
+        subBlockBitLengths[index] = bitLength;
+        subBlockSplits[index] = false;
+
+        // Compress sub-blocks and compare the length of their output with that of the block or sub-block
+        if ( canSplit( numSampleFrames, depth ) )
+        {
+            int numFrames = numSampleFrames / 2;
+            long splitBitLength = compressSubBlock( data, offset, numFrames, 2 * index + 1, depth + 1 ) +
+                                  compressSubBlock( data, offset + numFrames * numChannels * bytesPerSample,
+                                                    numSampleFrames - numFrames, 2 * index + 2, depth + 1 );
+            if ( bitLength > splitBitLength )
+            {
+                bitLength = splitBitLength;
+                subBlockSplits[index] = true;
+            }
+            bitLength += SPLIT_FLAG_LENGTH;
+        }
+        return bitLength;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes the split flag of a block or sub-block, if it may be split, followed by either its sub-blocks
+     * or its compressed data.
+     *
+     * @param  numSampleFrames  the number of sample frames of the block or sub-block.
+     * @param  index            the index of the block or sub-block in the tree.
+     * @param  depth            the depth of the block or sub-block in the tree.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeSubBlock( int numSampleFrames,
+                                int index,
+                                int depth )
+        throws IOException
+    {
+        if ( canSplit( numSampleFrames, depth ) )
+        {
+            boolean split = subBlockSplits[index];
+            write( split ? 1 : 0, SPLIT_FLAG_LENGTH );
+            if ( split )
+            {
+                int numFrames = numSampleFrames / 2;
+                writeSubBlock( numFrames, 2 * index + 1, depth + 1 );
+                writeSubBlock( numSampleFrames - numFrames, 2 * index + 2, depth + 1 );
+                return;
+            }
+        }
+        writeBits( subBlockData[index], subBlockBitLengths[index] );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns {@code true} if a block or sub-block of a specified number of sample frames at a specified
+     * depth in the tree of sub-blocks may be split.
+     */
+
+    private static boolean canSplit( int numSampleFrames,
+                                     int depth )
+    {
+        return ( (depth < MAX_SPLIT_DEPTH) && (numSampleFrames / 2 >= MIN_SUB_BLOCK_LENGTH) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Compresses a block of 16-bit or 24-bit stereo sample data and writes the compressed data to the data
+     * destination, after the per-channel state has been reset.  The state of each channel is kept in local
+     * variables and the channel loop is unrolled.  If stereo modes are enabled or predictor orders are
+     * selected, the block is first analysed to choose them; if stereo modes are enabled, the stereo mode of
+     * the block is written before the keys, and each sample frame is decorrelated before it is encoded.
+     * Otherwise, the compressed data are identical to those of the generic loops.
+     *
+     * @param  data    the data that is to be compressed and written.
+     * @param  offset  the start offset of the sample data in {@code data}.
+     * @param  length  the number of samples that are to be written.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeStereoBlock( byte[] data,
+                                   int    offset,
+                                   int    length )
+        throws IOException
+    {
+        boolean threeBytes = (bytesPerSample == 3);
+        int startOffset = offset;
+        int endOffset = startOffset + length * bytesPerSample;
+
+        // Choose stereo mode and predictor orders
+        int stereoMode = LEFT_RIGHT;
+        if ( stereoModes || orderSelection )
+            stereoMode = analyseStereoBlock( data, startOffset, endOffset );
+
+        // Build a histogram of the bit widths of the magnitudes of epsilon for each channel
+        addStereoBlockToHistograms( data, startOffset, endOffset, stereoMode );
+
+        // Write stereo mode; determine optimum encoding lengths and write keys
+        if ( stereoModes )
+            write( stereoMode, STEREO_MODE_LENGTH );
+        writeKeys( length / 2 );
+
+        // Copy per-channel state to local variables
+        int encodingLength0 = encodingLengths[0];
+        int encodingLength1 = encodingLengths[1];
+        boolean verbatim0 = (encodingLength0 == sampleLength);
+        boolean verbatim1 = (encodingLength1 == sampleLength);
+        int excessCode0 = excessCodes[0];
+        int excessCode1 = excessCodes[1];
+        int negEncodingLimit0 = negEncodingLimits[0];
+        int negEncodingLimit1 = negEncodingLimits[1];
+        int posEncodingLimit0 = posEncodingLimits[0];
+        int posEncodingLimit1 = posEncodingLimits[1];
+        int order0 = predictorOrders[0];
+        int order1 = predictorOrders[1];
+        int shift = Integer.SIZE - sampleLength;
+
+        // The differences of orders 0 to 3 of the previous sample value of each channel
+        int prevDifference00 = 0;
+        int prevDifference01 = 0;
+        int prevDifference02 = 0;
+        int prevDifference03 = 0;
+        int prevDifference10 = 0;
+        int prevDifference11 = 0;
+        int prevDifference12 = 0;
+        int prevDifference13 = 0;
+
+        // Encode sample frames and write them to data destination
+        while ( offset < endOffset )
+        {
+            // Read sample frame; decorrelate channels
+            boolean first = (offset == startOffset);
+            int sampleValue0 = threeBytes
+                        ? data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset] & 0xFF
+                        : data[offset + 1] << 8 | data[offset] & 0xFF;
+            offset += bytesPerSample;
+            int sampleValue1 = threeBytes
+                        ? data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset] & 0xFF
+                        : data[offset + 1] << 8 | data[offset] & 0xFF;
+            offset += bytesPerSample;
+            if ( stereoMode != LEFT_RIGHT )
+            {
+                int side = sampleValue0 - sampleValue1 << shift >> shift;
+                if ( stereoMode == RIGHT_SIDE )
+                    sampleValue0 = sampleValue1;
+                else if ( stereoMode == MID_SIDE )
+                    sampleValue0 = sampleValue1 + (side >> 1) << shift >> shift;
+                sampleValue1 = side;
+            }
+
+            // Channel 0
+            if ( verbatim0 || first )
+                write( sampleValue0, sampleLength );
+            else
+            {
+                int epsilon = sampleValue0 - predict( order0, prevDifference00, prevDifference01,
+                                                      prevDifference02, prevDifference03 );
+                if ( (epsilon < negEncodingLimit0) || (epsilon > posEncodingLimit0) )
+                {
+                    write( excessCode0, encodingLength0 );
+                    write( sampleValue0, sampleLength );
+                }
+                else
+                    write( epsilon, encodingLength0 );
+            }
+            int difference1 = sampleValue0 - prevDifference00;
+            int difference2 = difference1 - prevDifference01;
+            prevDifference03 = difference2 - prevDifference02;
+            prevDifference02 = difference2;
+            prevDifference01 = difference1;
+            prevDifference00 = sampleValue0;
+
+            // Channel 1
+            if ( verbatim1 )
+                write( sampleValue1, sampleLength );
+            else
+            {
+                int epsilon = sampleValue1 - predict( order1, prevDifference10, prevDifference11,
+                                                      prevDifference12, prevDifference13 );
+                if ( (epsilon < negEncodingLimit1) || (epsilon > posEncodingLimit1) )
+                {
+                    write( excessCode1, encodingLength1 );
+                    write( sampleValue1, sampleLength );
+                }
+                else
+                    write( epsilon, encodingLength1 );
+            }
+            difference1 = sampleValue1 - prevDifference10;
+            difference2 = difference1 - prevDifference11;
+            prevDifference13 = difference2 - prevDifference12;
+            prevDifference12 = difference2;
+            prevDifference11 = difference1;
+            prevDifference10 = sampleValue1;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Builds a histogram of the bit widths of the magnitudes of epsilon for each channel of a block of
+     * 16-bit or 24-bit stereo sample data, after the stereo mode and the predictor orders of the block have
+     * been chosen.  The state of each channel is kept in local variables.
+     *
+     * @param data        the sample data.
+     * @param offset      the start offset of the sample data in {@code data}.
+     * @param endOffset   the end offset of the sample data in {@code data}.
+     * @param stereoMode  the stereo mode of the block.
+     */
+
+    private void addStereoBlockToHistograms( byte[] data,
+                                             int    offset,
+                                             int    endOffset,
+                                             int    stereoMode )
+    {
+        boolean threeBytes = (bytesPerSample == 3);
+        int startOffset = offset;
+        int maxWidth = sampleLength - 1;
+        int shift = Integer.SIZE - sampleLength;
+        int[] counts0 = excessCounts[0];
+        int[] counts1 = excessCounts[1];
+        int order0 = predictorOrders[0];
+        int order1 = predictorOrders[1];
+        int prevDifference00 = 0;
+        int prevDifference01 = 0;
+        int prevDifference02 = 0;
+        int prevDifference03 = 0;
+        int prevDifference10 = 0;
+        int prevDifference11 = 0;
+        int prevDifference12 = 0;
+        int prevDifference13 = 0;
+        while ( offset < endOffset )
+        {
+            // Read sample frame; decorrelate channels
+            boolean first = (offset == startOffset);
+            int sampleValue0 = threeBytes
+                        ? data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset] & 0xFF
+                        : data[offset + 1] << 8 | data[offset] & 0xFF;
+            offset += bytesPerSample;
+            int sampleValue1 = threeBytes
+                        ? data[offset + 2] << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset] & 0xFF
+                        : data[offset + 1] << 8 | data[offset] & 0xFF;
+            offset += bytesPerSample;
+            if ( stereoMode != LEFT_RIGHT )
+            {
+                int side = sampleValue0 - sampleValue1 << shift >> shift;
+                if ( stereoMode == RIGHT_SIDE )
+                    sampleValue0 = sampleValue1;
+                else if ( stereoMode == MID_SIDE )
+                    sampleValue0 = sampleValue1 + (side >> 1) << shift >> shift;
+                sampleValue1 = side;
+            }
+
+            // Channel 0
+            if ( !first )
+            {
+                int epsilon = sampleValue0 - predict( order0, prevDifference00, prevDifference01,
+                                                      prevDifference02, prevDifference03 );
+                ++counts0[Math.min( getWidth( epsilon ), maxWidth )];
+            }
+            int difference1 = sampleValue0 - prevDifference00;
+            int difference2 = difference1 - prevDifference01;
+            prevDifference03 = difference2 - prevDifference02;
+            prevDifference02 = difference2;
+            prevDifference01 = difference1;
+            prevDifference00 = sampleValue0;
+
+            // Channel 1
+            int epsilon = sampleValue1 - predict( order1, prevDifference10, prevDifference11,
+                                                  prevDifference12, prevDifference13 );
+            ++counts1[Math.min( getWidth( epsilon ), maxWidth )];
+            difference1 = sampleValue1 - prevDifference10;
+            difference2 = difference1 - prevDifference11;
+            prevDifference13 = difference2 - prevDifference12;
+            prevDifference12 = difference2;
+            prevDifference11 = difference1;
+            prevDifference10 = sampleValue1;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Analyses a block of 16-bit or 24-bit stereo sample data to choose its stereo mode and the predictor
+     * orders of its channels.  For each predictor order, the sum of the bit widths of the magnitudes of
+     * epsilon is computed for the left and right signals and, if stereo modes are enabled, for the mid and
+     * side signals.  If
+     * predictor orders are selected, the order of each signal is the one with the smallest sum; otherwise,
+     * it is the default order.  The stereo mode is the one whose pair of signals has the smallest total sum
+     * for their orders, and the orders of its signals are set as those of the channels.
+     *
+     * @param  data       the sample data.
+     * @param  offset     the start offset of the sample data in {@code data}.
+     * @param  endOffset  the end offset of the sample data in {@code data}.
+     * @return the stereo mode of the block.
+     */
+
+    private int analyseStereoBlock( byte[] data,
+                                    int    offset,
+                                    int    endOffset )
+    {
+        // Sum the bit widths of the magnitudes of epsilon for each predictor order of each signal
+        int numSignals = stereoModes ? NUM_SIGNALS : 2;
+        for ( int i = 0; i < numSignals; ++i )
+            analyseSignal( data, offset, endOffset, i );
+
+        // Choose predictor order of each signal
+        for ( int i = 0; i < numSignals; ++i )
+            signalOrders[i] = orderSelection ? getBestPredictorOrder( i ) : DEFAULT_PREDICTOR_ORDER;
+
+        // Choose the stereo mode whose signals have the smallest total sum
+        int stereoMode = LEFT_RIGHT;
+        if ( stereoModes )
+        {
+            int minSum = Integer.MAX_VALUE;
+            for ( int i = 0; i < STEREO_MODE_SIGNALS.length; ++i )
+            {
+                int signal0 = STEREO_MODE_SIGNALS[i][0];
+                int signal1 = STEREO_MODE_SIGNALS[i][1];
+                int sum = residualSums[signal0][signalOrders[signal0]] +
+                                                                residualSums[signal1][signalOrders[signal1]];
+                if ( minSum > sum )
+                {
+                    minSum = sum;
+                    stereoMode = i;
+                }
+            }
+        }
+
+        // Set predictor orders of channels
+        predictorOrders[0] = signalOrders[STEREO_MODE_SIGNALS[stereoMode][0]];
+        predictorOrders[1] = signalOrders[STEREO_MODE_SIGNALS[stereoMode][1]];
+        return stereoMode;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Compresses a block of sample data in which a channel may have a linear predictor or Rice-coded
+     * epsilons, and writes the compressed data to the data destination.  The stereo mode and the fixed
+     * polynomial predictor orders are chosen as they are for other blocks; the signals of the channels are
+     * then separated, and the predictor and coding of each channel are chosen by {@link
+     * #choosePredictor(int, int)}.
+     *
+     * @param  data    the data that is to be compressed and written.
+     * @param  offset  the start offset of the sample data in {@code data}.
+     * @param  length  the number of samples that are to be written.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeSeparatedBlock( byte[] data,
+                                      int    offset,
+                                      int    length )
+        throws IOException
+    {
+        int numSampleFrames = length / numChannels;
+        int endOffset = offset + length * bytesPerSample;
+
+        // Choose stereo mode and fixed polynomial predictor orders
+        int stereoMode = LEFT_RIGHT;
+        if ( stereoKernel )
+            stereoMode = analyseStereoBlock( data, offset, endOffset );
+        else
+        {
+            for ( int i = 0; i < numChannels; ++i )
+            {
+                analyseSignal( data, offset, endOffset, i );
+                predictorOrders[i] = getBestPredictorOrder( i );
+            }
+        }
+
+        // Allocate buffers for signals and epsilons
+        if ( (blockSignals == null) || (blockSignals[0].length < numSampleFrames) )
+        {
+            blockSignals = new int[numChannels][numSampleFrames];
+            blockEpsilons = new int[numChannels][numSampleFrames];
+            candidateEpsilons = new int[numSampleFrames];
+        }
+
+        // Separate signals of channels
+        int shift = Integer.SIZE - sampleLength;
+        for ( int i = 0; i < numSampleFrames; ++i )
+        {
+            for ( int j = 0; j < numChannels; ++j )
+            {
+                blockSignals[j][i] = getSampleValue( data, offset );
+                offset += bytesPerSample;
+            }
+            if ( stereoMode != LEFT_RIGHT )
+            {
+                int sampleValue1 = blockSignals[1][i];
+                int side = blockSignals[0][i] - sampleValue1 << shift >> shift;
+                if ( stereoMode == RIGHT_SIDE )
+                    blockSignals[0][i] = sampleValue1;
+                else if ( stereoMode == MID_SIDE )
+                    blockSignals[0][i] = sampleValue1 + (side >> 1) << shift >> shift;
+                blockSignals[1][i] = side;
+            }
+        }
+
+        // Choose predictor of each channel
+        for ( int i = 0; i < numChannels; ++i )
+            choosePredictor( i, numSampleFrames );
+
+        // Write stereo mode; determine optimum encoding lengths and write keys and predictors
+        if ( stereoModes )
+            write( stereoMode, STEREO_MODE_LENGTH );
+        writeKeys( numSampleFrames );
+
+        // Encode channels one after another if Rice coding is enabled ...
+        if ( riceCoding )
+        {
+            for ( int i = 0; i < numChannels; ++i )
+            {
+                if ( riceChannels[i] )
+                    writeRiceChannel( i, numSampleFrames );
+                else
+                {
+                    for ( int j = 0; j < numSampleFrames; ++j )
+                        writeSignalValue( i, j );
+                }
+            }
+        }
+
+        // ... otherwise, encode sample frames
+        else
+        {
+            for ( int i = 0; i < numSampleFrames; ++i )
+            {
+                for ( int j = 0; j < numChannels; ++j )
+                    writeSignalValue( j, i );
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Encodes a sample value of a separated signal of a channel whose epsilons are not Rice-coded, and writes
+     * it to the data destination.
+     *
+     * @param  channel  the index of the channel.
+     * @param  index    the index of the sample value in the block.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeSignalValue( int channel,
+                                   int index )
+        throws IOException
+    {
+        int sampleValue = blockSignals[channel][index];
+        if ( (index < getNumVerbatimSampleValues( channel )) || (encodingLengths[channel] == sampleLength) )
+            write( sampleValue, sampleLength );
+        else
+        {
+            int epsilon = blockEpsilons[channel][index];
+            if ( (epsilon < negEncodingLimits[channel]) || (epsilon > posEncodingLimits[channel]) )
+            {
+                write( excessCodes[channel], encodingLengths[channel] );
+                write( sampleValue, sampleLength );
+            }
+            else
+                write( epsilon, encodingLengths[channel] );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes the sample values of a separated signal of a channel whose epsilons are Rice-coded to the data
+     * destination: the sample values that are written verbatim, followed by the partitions of epsilons,
+     * each of which begins with its Rice parameter.
+     *
+     * @param  channel          the index of the channel.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeRiceChannel( int channel,
+                                   int numSampleFrames )
+        throws IOException
+    {
+        // Write sample values that precede the partitions
+        int[] signal = blockSignals[channel];
+        int numVerbatim = getNumVerbatimSampleValues( channel );
+        for ( int i = 0; i < numVerbatim; ++i )
+            write( signal[i], sampleLength );
+
+        // Write partitions
+        int[] epsilons = blockEpsilons[channel];
+        int partitionOrder = ricePartitionOrders[channel];
+        computeRiceSums( epsilons, numSampleFrames, numVerbatim, partitionOrder );
+        for ( int i = 0; i < 1 << partitionOrder; ++i )
+        {
+            int startIndex = Math.max( getPartitionStart( i, numSampleFrames, partitionOrder ), numVerbatim );
+            int endIndex = getPartitionStart( i + 1, numSampleFrames, partitionOrder );
+            int parameter = getRiceParameter( riceCounts[i], riceSums[i], riceMagnitudes[i] );
+            write( parameter, RICE_PARAMETER_LENGTH );
+            if ( parameter == RICE_ESCAPE )
+            {
+                int width = getSignedWidth( riceMagnitudes[i] );
+                write( width - 1, RICE_ESCAPE_WIDTH_LENGTH );
+                for ( int j = startIndex; j < endIndex; ++j )
+                    write( epsilons[j], width );
+            }
+            else
+            {
+                for ( int j = startIndex; j < endIndex; ++j )
+                {
+                    int epsilon = epsilons[j];
+                    int value = epsilon << 1 ^ epsilon >> 31;
+                    int quotient = value >>> parameter;
+                    if ( quotient + 1 + parameter <= Integer.SIZE )
+                        write( 1 << parameter | value & (1 << parameter) - 1, quotient + 1 + parameter );
+                    else
+                    {
+                        for ( ; quotient >= Integer.SIZE; quotient -= Integer.SIZE )
+                            write( 0, Integer.SIZE );
+                        write( 1, quotient + 1 );
+                        write( value, parameter );
+                    }
+                }
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Chooses the predictor and the coding of a channel of a block whose signal has been separated.  The
+     * output length of the channel is computed for its fixed polynomial predictor and, if linear prediction
+     * is enabled, for linear predictors of several orders up to the maximum order that the length of the
+     * block allows, and the predictor with the shortest output is chosen.  The epsilons of the chosen
+     * predictor are left in the buffer of the channel.  If they are Rice-coded, the partition order of the
+     * channel is set; otherwise, their histogram is built.
+     *
+     * @param channel          the index of the channel.
+     * @param numSampleFrames  the number of sample frames in the block.
+     */
+
+    private void choosePredictor( int channel,
+                                  int numSampleFrames )
+    {
+        int[] signal = blockSignals[channel];
+        int[] epsilons = blockEpsilons[channel];
+
+        // Compute epsilons of fixed polynomial predictor
+        int order = predictorOrders[channel];
+        int[] differences = prevDifferences[channel];
+        Arrays.fill( differences, 0 );
+        for ( int i = 0; i < numSampleFrames; ++i )
+        {
+            epsilons[i] = signal[i] - predict( order, differences[0], differences[1], differences[2],
+                                               differences[3] );
+            updateDifferences( differences, signal[i] );
+        }
+        lpcOrders[channel] = 0;
+        long minOutputLength = computeOutputLength( epsilons, numSampleFrames, channel, 0 );
+        riceChannels[channel] = candidateRice;
+
+        // Compute epsilons of linear predictors, and keep those of the predictor with the shortest output
+        if ( linearPrediction && (numSampleFrames > 2) )
+        {
+            linearPredictor.analyse( signal, numSampleFrames );
+            for ( int lpcOrder : LPC_ORDERS )
+            {
+                if ( lpcOrder > linearPredictor.getMaxOrder( ) )
+                    break;
+
+                int shift = linearPredictor.quantise( lpcOrder, LPC_PRECISION, candidateCoefficients );
+                if ( shift < 0 )
+                    continue;
+                LinearPredictor.getEpsilons( signal, numSampleFrames, lpcOrder, candidateCoefficients, shift,
+                                             candidateEpsilons );
+                long outputLength = computeOutputLength( candidateEpsilons, numSampleFrames, channel,
+                                                         lpcOrder ) +
+                                                            LPC_HEADER_LENGTH + lpcOrder * LPC_PRECISION;
+                if ( minOutputLength > outputLength )
+                {
+                    minOutputLength = outputLength;
+                    lpcOrders[channel] = lpcOrder;
+                    lpcShifts[channel] = shift;
+                    riceChannels[channel] = candidateRice;
+                    System.arraycopy( candidateCoefficients, 0, lpcCoefficients[channel], 0, lpcOrder );
+                    blockEpsilons[channel] = candidateEpsilons;
+                    candidateEpsilons = epsilons;
+                    epsilons = blockEpsilons[channel];
+                }
+            }
+        }
+
+        // Set partition order of Rice-coded epsilons ...
+        int numVerbatim = getNumVerbatimSampleValues( channel );
+        if ( riceChannels[channel] )
+        {
+            computeRiceOutputLength( epsilons, numSampleFrames, numVerbatim );
+            ricePartitionOrders[channel] = candidatePartitionOrder;
+        }
+
+        // ... or build histogram of the bit widths of the magnitudes of the chosen epsilons
+        else
+        {
+            int[] counts = excessCounts[channel];
+            for ( int i = numVerbatim; i < numSampleFrames; ++i )
+                ++counts[Math.min( getWidth( epsilons[i] ), sampleLength - 1 )];
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the number of sample values at the start of a block that are written verbatim for a specified
+     * channel: the order of the linear predictor of the channel, if it has one; otherwise, none if the
+     * epsilons of the channel are Rice-coded, and one for the first channel and none for the other channels
+     * if they are not, because only the first sample value of such a block is written verbatim.
+     *
+     * @param  channel  the index of the channel.
+     * @return the number of sample values at the start of the block that are written verbatim.
+     */
+
+    private int getNumVerbatimSampleValues( int channel )
+    {
+        return getNumVerbatimSampleValues( channel, lpcOrders[channel], riceChannels[channel] );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the number of sample values at the start of a block that are written verbatim for a channel
+     * with a specified linear predictor order and coding.
+     *
+     * @param  channel   the index of the channel.
+     * @param  lpcOrder  the order of the linear predictor of the channel, or 0 if it has a fixed polynomial
+     *                   predictor.
+     * @param  rice      {@code true} if the epsilons of the channel are Rice-coded.
+     * @return the number of sample values at the start of the block that are written verbatim.
+     */
+
+    private static int getNumVerbatimSampleValues( int     channel,
+                                                   int     lpcOrder,
+                                                   boolean rice )
+    {
+        return ( (lpcOrder > 0) ? lpcOrder : (rice || (channel > 0)) ? 0 : 1 );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes the output length (in bits) of the sample values of a channel of a block for a specified set
+     * of epsilons, with the coding for which it is shortest.  The length of the coding of the channel
+     * (a key or a Rice partition order) is included.  {@code candidateRice} is set to {@code true} if the
+     * epsilons are to be Rice-coded.
+     *
+     * @param  epsilons         the epsilons of the sample values of the channel.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @param  channel          the index of the channel.
+     * @param  lpcOrder         the order of the linear predictor of the epsilons, or 0 for the fixed
+     *                          polynomial predictor.
+     * @return the output length of the sample values of the channel.
+     */
+
+    private long computeOutputLength( int[] epsilons,
+                                      int   numSampleFrames,
+                                      int   channel,
+                                      int   lpcOrder )
+    {
+        long outputLength = computeOutputLength( epsilons, numSampleFrames,
+                                                 getNumVerbatimSampleValues( channel, lpcOrder, false ) ) +
+                                                                                                keyLength;
+        candidateRice = false;
+        if ( riceCoding )
+        {
+            long riceOutputLength = computeRiceOutputLength( epsilons, numSampleFrames,
+                                                             getNumVerbatimSampleValues( channel, lpcOrder,
+                                                                                         true ) );
+            if ( outputLength > riceOutputLength )
+            {
+                outputLength = riceOutputLength;
+                candidateRice = true;
+            }
+        }
+        return outputLength;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes the output length (in bits) of the sample values of a channel of a block for a specified set
+     * of epsilons and its optimum encoding length.
+     *
+     * @param  epsilons         the epsilons of the sample values of the channel.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @param  numVerbatim      the number of sample values at the start of the block that are written
+     *                          verbatim.
+     * @return the output length of the sample values of the channel.
+     */
+
+    private long computeOutputLength( int[] epsilons,
+                                      int   numSampleFrames,
+                                      int   numVerbatim )
+    {
+        int[] counts = candidateCounts;
+        Arrays.fill( counts, 0 );
+        for ( int i = numVerbatim; i < numSampleFrames; ++i )
+            ++counts[Math.min( getWidth( epsilons[i] ), sampleLength - 1 )];
+        int numEncodedFrames = numSampleFrames - numVerbatim + 1;
+        return ( getOutputLength( counts, getOptimumEncodingLength( counts, numEncodedFrames ),
+                                  numEncodedFrames ) + (numVerbatim - 1) * sampleLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes the output length (in bits) of the sample values of a channel of a block for a specified set
+     * of Rice-coded epsilons, including the partition order and the Rice parameters.  The output length is
+     * computed for each partition order from the finest whose partitions are not shorter than {@link
+     * #MIN_RICE_PARTITION_LENGTH} sample values down to 0, by merging adjacent partitions, and the shortest
+     * is returned; the partition order for which it is
+     * shortest is stored in {@code candidatePartitionOrder}.
+     *
+     * @param  epsilons         the epsilons of the sample values of the channel.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @param  numVerbatim      the number of sample values at the start of the block that are written
+     *                          verbatim.
+     * @return the output length of the sample values of the channel.
+     */
+
+    private long computeRiceOutputLength( int[] epsilons,
+                                          int   numSampleFrames,
+                                          int   numVerbatim )
+    {
+        int maxNumPartitions = Math.max( numSampleFrames / MIN_RICE_PARTITION_LENGTH, 1 );
+        int partitionOrder = Math.min( MAX_RICE_PARTITION_ORDER,
+                                       Integer.SIZE - 1 - Integer.numberOfLeadingZeros( maxNumPartitions ) );
+        computeRiceSums( epsilons, numSampleFrames, numVerbatim, partitionOrder );
+        long minOutputLength = Long.MAX_VALUE;
+        while ( true )
+        {
+            // Compute output length of partitions
+            int numPartitions = 1 << partitionOrder;
+            long outputLength = 0;
+            for ( int i = 0; i < numPartitions; ++i )
+                outputLength += getRicePartitionLength( riceCounts[i], riceSums[i], riceMagnitudes[i] );
+            if ( minOutputLength >= outputLength )
+            {
+                minOutputLength = outputLength;
+                candidatePartitionOrder = partitionOrder;
+            }
+            if ( partitionOrder == 0 )
+                break;
+
+            // Merge adjacent partitions
+            --partitionOrder;
+            numPartitions >>= 1;
+            for ( int i = 0; i < numPartitions; ++i )
+            {
+                int j = i << 1;
+                riceSums[i] = riceSums[j] + riceSums[j + 1];
+                riceCounts[i] = riceCounts[j] + riceCounts[j + 1];
+                riceMagnitudes[i] = riceMagnitudes[j] | riceMagnitudes[j + 1];
+            }
+        }
+        return ( minOutputLength + RICE_PARTITION_ORDER_LENGTH + numVerbatim * sampleLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes, for each partition of a specified order of a set of epsilons, the number of epsilons that
+     * are Rice-coded, the sum of their mapped values and the bitwise OR of their magnitudes (the ones'
+     * complement of a negative epsilon), from which the bit width of the epsilons is derived.
+     *
+     * @param epsilons         the epsilons of the sample values of the channel.
+     * @param numSampleFrames  the number of sample frames in the block.
+     * @param numVerbatim      the number of sample values at the start of the block that are written
+     *                         verbatim.
+     * @param partitionOrder   the partition order.
+     */
+
+    private void computeRiceSums( int[] epsilons,
+                                  int   numSampleFrames,
+                                  int   numVerbatim,
+                                  int   partitionOrder )
+    {
+        for ( int i = 0; i < 1 << partitionOrder; ++i )
+        {
+            int startIndex = Math.max( getPartitionStart( i, numSampleFrames, partitionOrder ), numVerbatim );
+            int endIndex = getPartitionStart( i + 1, numSampleFrames, partitionOrder );
+            long sum = 0;
+            int magnitudes = 0;
+            for ( int j = startIndex; j < endIndex; ++j )
+            {
+                int epsilon = epsilons[j];
+                sum += (epsilon << 1 ^ epsilon >> 31) & 0xFFFFFFFFL;
+                magnitudes |= epsilon ^ epsilon >> 31;
+            }
+            riceSums[i] = sum;
+            riceCounts[i] = Math.max( endIndex - startIndex, 0 );
+            riceMagnitudes[i] = magnitudes;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the index of the first sample value of a partition of a block.  The sample values of a block
+     * are divided among the partitions of an order as evenly as possible, so that the partitions of an
+     * order are the merged pairs of partitions of the next higher order.
+     *
+     * @param  index            the index of the partition.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @param  partitionOrder   the partition order.
+     * @return the index of the first sample value of the partition.
+     */
+
+    private static int getPartitionStart( int index,
+                                          int numSampleFrames,
+                                          int partitionOrder )
+    {
+        return (int)((long)index * numSampleFrames >> partitionOrder);
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the output length (in bits) of a partition of Rice-coded epsilons, including its Rice
+     * parameter, for the parameter returned by {@link #getRiceParameter(int, long, int)}.
+     *
+     * @param  count       the number of epsilons in the partition.
+     * @param  sum         the sum of the mapped values of the epsilons.
+     * @param  magnitudes  the bitwise OR of the magnitudes of the epsilons.
+     * @return the output length of the partition.
+     */
+
+    private static long getRicePartitionLength( int  count,
+                                                long sum,
+                                                int  magnitudes )
+    {
+        int parameter = getRiceParameter( count, sum, magnitudes );
+        return ( RICE_PARAMETER_LENGTH + ((parameter == RICE_ESCAPE)
+                                                ? RICE_ESCAPE_WIDTH_LENGTH +
+                                                                    (long)count * getSignedWidth( magnitudes )
+                                                : getRiceLength( count, sum, parameter )) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the Rice parameter of a partition of epsilons.  The parameter is estimated from the mean of
+     * the mapped values of the epsilons, and the parameters on either side of the estimate are also tried;
+     * if writing the epsilons verbatim is shorter than the best of them, {@link #RICE_ESCAPE} is returned.
+     *
+     * @param  count       the number of epsilons in the partition.
+     * @param  sum         the sum of the mapped values of the epsilons.
+     * @param  magnitudes  the bitwise OR of the magnitudes of the epsilons.
+     * @return the Rice parameter of the partition.
+     */
+
+    private static int getRiceParameter( int  count,
+                                         long sum,
+                                         int  magnitudes )
+    {
+        if ( count == 0 )
+            return 0;
+
+        long mean = sum / count;
+        int estimate = (mean == 0) ? 0 : Math.min( Long.SIZE - 1 - Long.numberOfLeadingZeros( mean ),
+                                                   MAX_RICE_PARAMETER );
+        int parameter = 0;
+        long minLength = Long.MAX_VALUE;
+        for ( int i = Math.max( estimate - 1, 0 ); i <= Math.min( estimate + 1, MAX_RICE_PARAMETER ); ++i )
+        {
+            long length = getRiceLength( count, sum, i );
+            if ( minLength > length )
+            {
+                minLength = length;
+                parameter = i;
+            }
+        }
+        return ( (minLength > RICE_ESCAPE_WIDTH_LENGTH + (long)count * getSignedWidth( magnitudes ))
+                                                                                ? RICE_ESCAPE : parameter );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns an upper bound of the length (in bits) of a set of Rice codes with a specified parameter: the
+     * quotients of the mapped values by 2<sup>parameter</sup> are bounded by the quotient of their sum.
+     *
+     * @param  count      the number of values.
+     * @param  sum        the sum of the mapped values.
+     * @param  parameter  the Rice parameter.
+     * @return an upper bound of the length of the Rice codes.
+     */
+
+    private static long getRiceLength( int  count,
+                                       long sum,
+                                       int  parameter )
+    {
+        return ( (long)count * (parameter + 1) + (sum >>> parameter) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the bit width of the two's complement representation of epsilons with a specified bitwise OR
+     * of their magnitudes.
+     */
+
+    private static int getSignedWidth( int magnitudes )
+    {
+        return ( Integer.SIZE + 1 - Integer.numberOfLeadingZeros( magnitudes ) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the prediction of a sample value by the fixed polynomial predictor of a specified order, which
+     * is the sum of the differences of orders below the predictor order of the previous sample value.
+     *
+     * @param  order        the predictor order.
+     * @param  difference0  the previous sample value.
+     * @param  difference1  the first-order difference of the previous sample value.
+     * @param  difference2  the second-order difference of the previous sample value.
+     * @param  difference3  the third-order difference of the previous sample value.
+     * @return the prediction of the sample value.
+     */
+
+    private static int predict( int order,
+                                int difference0,
+                                int difference1,
+                                int difference2,
+                                int difference3 )
+    {
+        switch ( order )
+        {
+            case 0:
+                return 0;
+
+            case 1:
+                return difference0;
+
+            case 2:
+                return ( difference0 + difference1 );
+
+            case 3:
+                return ( difference0 + difference1 + difference2 );
+
+            default:
+                return ( difference0 + difference1 + difference2 + difference3 );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Replaces the differences of orders 0 to 3 of the previous sample value of a channel with those of the
+     * specified sample value.
+     */
+
+    private static void updateDifferences( int[] differences,
+                                           int   sampleValue )
+    {
+        int difference1 = sampleValue - differences[0];
+        int difference2 = difference1 - differences[1];
+        differences[3] = difference2 - differences[2];
+        differences[2] = difference2;
+        differences[1] = difference1;
+        differences[0] = sampleValue;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the bit width of the magnitude of an epsilon.
+     */
+
+    private static int getWidth( int epsilon )
+    {
+        return ( Integer.SIZE - Integer.numberOfLeadingZeros( Math.abs( epsilon ) ) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns an estimate of the bit width of the magnitude of an epsilon, which is the bit width of the
+     * ones' complement of a negative epsilon.
+     */
+
+    private static int getEstimatedWidth( int epsilon )
+    {
+        return ( Integer.SIZE - Integer.numberOfLeadingZeros( epsilon ^ epsilon >> 31 ) );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the sign-extended little-endian sample value at the specified offset in a byte buffer.
+     */
+
+    private int getSampleValue( byte[] data,
+                                int    offset )
+    {
+        int sampleValue = data[offset + bytesPerSample - 1];
+        for ( int i = offset + bytesPerSample - 2; i >= offset; --i )
+            sampleValue = sampleValue << 8 | data[i] & 0xFF;
+        return sampleValue;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Resets the per-channel state at the start of a block.
+     */
+
+    private void beginBlock( )
+    {
+        for ( int i = 0; i < numChannels; ++i )
+        {
+            Arrays.fill( excessCounts[i], 0 );
+            Arrays.fill( prevDifferences[i], 0 );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Computes, for each predictor order, the sum of the bit widths of the magnitudes of epsilon of a signal
+     * over a block of sample data.  The epsilon for order k is the k-th order difference of the sample
+     * values of the signal.  Only runs of {@link #ANALYSIS_RUN_LENGTH} sample frames at intervals of {@link
+     * #ANALYSIS_INTERVAL} sample frames are analysed, and the first few sample values of each run serve only
+     * to establish the differences.
+     * <p>
+     * A signal whose index is less than the number of channels is the channel with that index; the mid and
+     * side signals of stereo sample data are derived from the left and right channels.
+     * </p>
+     *
+     * @param data       the sample data.
+     * @param offset     the start offset of the sample data in {@code data}.
+     * @param endOffset  the end offset of the sample data in {@code data}.
+     * @param signal     the index of the signal.
+     */
+
+    private void analyseSignal( byte[] data,
+                                int    offset,
+                                int    endOffset,
+                                int    signal )
+    {
+        boolean derived = (signal >= numChannels);
+        int channelOffset = derived ? 0 : signal * bytesPerSample;
+        int frameLength = numChannels * bytesPerSample;
+        int runLength = ANALYSIS_RUN_LENGTH * frameLength;
+        int interval = ANALYSIS_INTERVAL * frameLength;
+        int shift = Integer.SIZE - sampleLength;
+        int sum0 = 0;
+        int sum1 = 0;
+        int sum2 = 0;
+        int sum3 = 0;
+        int sum4 = 0;
+        for ( int runOffset = offset; runOffset < endOffset; runOffset += interval )
+        {
+            int runEndOffset = Math.min( runOffset + runLength, endOffset );
+            int sumOffset = runOffset + MAX_PREDICTOR_ORDER * frameLength;
+            int prevDifference0 = 0;
+            int prevDifference1 = 0;
+            int prevDifference2 = 0;
+            int prevDifference3 = 0;
+            for ( int i = runOffset; i < runEndOffset; i += frameLength )
+            {
+                int sampleValue = getSampleValue( data, i + channelOffset );
+                if ( derived )
+                {
+                    int side = sampleValue - getSampleValue( data, i + bytesPerSample ) << shift >> shift;
+                    sampleValue = (signal == SIDE)
+                                        ? side
+                                        : sampleValue - side + (side >> 1) << shift >> shift;
+                }
+                int difference1 = sampleValue - prevDifference0;
+                int difference2 = difference1 - prevDifference1;
+                int difference3 = difference2 - prevDifference2;
+                int difference4 = difference3 - prevDifference3;
+                if ( i >= sumOffset )
+                {
+                    sum0 += getEstimatedWidth( sampleValue );
+                    sum1 += getEstimatedWidth( difference1 );
+                    sum2 += getEstimatedWidth( difference2 );
+                    sum3 += getEstimatedWidth( difference3 );
+                    sum4 += getEstimatedWidth( difference4 );
+                }
+                prevDifference0 = sampleValue;
+                prevDifference1 = difference1;
+                prevDifference2 = difference2;
+                prevDifference3 = difference3;
+            }
+        }
+        int[] sums = residualSums[signal];
+        sums[0] = sum0;
+        sums[1] = sum1;
+        sums[2] = sum2;
+        sums[3] = sum3;
+        sums[4] = sum4;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the predictor order of a signal for which the sum of the bit widths of the magnitudes of
+     * epsilon is smallest.  If the sums of the default order and another order are equal, the default
+     * order is preferred, so that the default order is chosen for a block that is too short to analyse.
+     */
+
+    private int getBestPredictorOrder( int signal )
+    {
+        int[] sums = residualSums[signal];
+        int order = DEFAULT_PREDICTOR_ORDER;
+        for ( int i = 0; i <= MAX_PREDICTOR_ORDER; ++i )
+        {
+            if ( sums[order] > sums[i] )
+                order = i;
+        }
+        return order;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Adds the epsilon of a sample value to the histogram of its channel.  An epsilon whose magnitude has a
+     * width of w bits does not fit into any encoding length j <= w, and widths of (sampleLength - 1) or more
+     * exceed every encoding length, so they share the last bin.
+     *
+     * @param channel      the index of the channel.
+     * @param sampleValue  the sample value.
+     * @param first        {@code true} if the sample value is the first sample value of the block.
+     */
+
+    private void addToHistogram( int     channel,
+                                 int     sampleValue,
+                                 boolean first )
+    {
+        int[] differences = prevDifferences[channel];
+        if ( !first )
+        {
+            int epsilon = sampleValue - predict( predictorOrders[channel], differences[0], differences[1],
+                                                 differences[2], differences[3] );
+            ++excessCounts[channel][Math.min( getWidth( epsilon ), sampleLength - 1 )];
+        }
+        updateDifferences( differences, sampleValue );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Determines the optimum encoding length for each channel from its histogram, writes the key (and the
+     * predictor order, if predictor orders are selected, or the linear predictor) for each channel, and
+     * initialises the per-channel encoding variables.  If Rice coding is enabled, the key of each channel is
+     * preceded by its coding, and a Rice-coded channel has a partition order instead of a key.
+     *
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeKeys( int numSampleFrames )
+        throws IOException
+    {
+        for ( int i = 0; i < numChannels; ++i )
+        {
+            int lpcOrder = lpcOrders[i];
+            if ( riceCoding )
+                write( riceChannels[i] ? RICE_CODING : ESCAPE_CODING, CODING_LENGTH );
+            if ( !riceChannels[i] )
+            {
+                int numEncodedFrames = numSampleFrames - Math.max( lpcOrder, 1 ) + 1;
+                encodingLengths[i] = getOptimumEncodingLength( excessCounts[i], numEncodedFrames );
+                write( sampleLength - encodingLengths[i], keyLength );
+            }
+            if ( lpcOrder > 0 )
+            {
+                write( LINEAR_PREDICTOR, PREDICTOR_ORDER_LENGTH );
+                write( lpcOrder - 1, LPC_ORDER_LENGTH );
+                write( LPC_PRECISION - 1, LPC_PRECISION_LENGTH );
+                write( lpcShifts[i], LPC_SHIFT_LENGTH );
+                for ( int j = 0; j < lpcOrder; ++j )
+                    write( lpcCoefficients[i][j], LPC_PRECISION );
+            }
+            else if ( orderSelection )
+                write( predictorOrders[i], PREDICTOR_ORDER_LENGTH );
+            if ( riceChannels[i] )
+                write( ricePartitionOrders[i], RICE_PARTITION_ORDER_LENGTH );
+
+            Arrays.fill( prevDifferences[i], 0 );
+            int value = 1 << encodingLengths[i] - 1;
+            excessCodes[i] = value;
+            --value;
+            posEncodingLimits[i] = value;
+            negEncodingLimits[i] = -value;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Converts a histogram of the bit widths of the magnitudes of epsilon to an excess count for each
+     * encoding length by a suffix sum, and returns the encoding length for which the output length of the
+     * block is shortest.
+     *
+     * @param  counts           the histogram, which is converted in place.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @return the optimum encoding length.
+     */
+
+    private int getOptimumEncodingLength( int[] counts,
+                                          int   numSampleFrames )
+    {
+        // Convert histogram to an excess count for each encoding length
+        for ( int j = sampleLength - 2; j >= minEncodingLength; --j )
+            counts[j] += counts[j + 1];
+
+        // Determine optimum encoding length
+        int encodingLength = sampleLength;
+        long minOutputLength = getOutputLength( counts, sampleLength, numSampleFrames );
+        for ( int j = minEncodingLength; j < sampleLength; ++j )
+        {
+            long outputLength = getOutputLength( counts, j, numSampleFrames );
+            if ( minOutputLength > outputLength )
+            {
+                minOutputLength = outputLength;
+                encodingLength = j;
+            }
+        }
+        return encodingLength;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns the output length (in bits) of a channel of a block for a specified encoding length.
+     *
+     * @param  counts           the excess count for each encoding length.
+     * @param  encodingLength   the encoding length.
+     * @param  numSampleFrames  the number of sample frames in the block.
+     * @return the output length of the channel.
+     */
+
+    private long getOutputLength( int[] counts,
+                                  int   encodingLength,
+                                  int   numSampleFrames )
+    {
+        return ( (encodingLength == sampleLength)
+                    ? numSampleFrames * sampleLength
+                    : (numSampleFrames - 1) * encodingLength + (counts[encodingLength] + 1) * sampleLength );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Encodes a sample value of a channel and writes it to the data destination.
+     *
+     * @param  channel      the index of the channel.
+     * @param  sampleValue  the sample value.
+     * @param  first        {@code true} if the sample value is the first sample value of the block.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void writeSampleValue( int     channel,
+                                   int     sampleValue,
+                                   boolean first )
+        throws IOException
+    {
+        int[] differences = prevDifferences[channel];
+        if ( first || (encodingLengths[channel] == sampleLength) )
+            write( sampleValue, sampleLength );
+        else
+        {
+            int epsilon = sampleValue - predict( predictorOrders[channel], differences[0], differences[1],
+                                                 differences[2], differences[3] );
+            if ( (epsilon < negEncodingLimits[channel]) || (epsilon > posEncodingLimits[channel]) )
+            {
+                write( excessCodes[channel], encodingLengths[channel] );
+                write( sampleValue, sampleLength );
+            }
+            else
+                write( epsilon, encodingLengths[channel] );
+        }
+        updateDifferences( differences, sampleValue );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes a bit string of a specified length to the data destination.  The bits are accumulated in the
+     * bit buffer; whenever it holds at least 32 bits, a 32-bit word is transferred to the output buffer.
+     *
+     * @param  value   the bit string that is to be written.
+     * @param  length  the number of low-order bits of {@code value} to write, which must not exceed 32.
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void write( int value,
+                        int length )
+        throws IOException
+    {
+        bitBuffer = bitBuffer << length | value & (1L << length) - 1;
+        bitDataLength += length;
+        if ( bitDataLength >= Integer.SIZE )
+        {
+            bitDataLength -= Integer.SIZE;
+            outByteBuffer.putInt( outBufferIndex, (int)(bitBuffer >>> bitDataLength) );
+            outBufferIndex += Integer.BYTES;
+            if ( outBufferIndex > outBuffer.length - Integer.BYTES )
+                flush( );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Writes the contents of the output buffer to the data destination.
+     *
+     * @throws IOException
+     *           if an error occurs while attempting to write to the data destination.
+     */
+
+    private void flush( )
+        throws IOException
+    {
+        if ( outBufferIndex > 0 )
+        {
+            dataOutput.write( outBuffer, 0, outBufferIndex );
+            outLength += outBufferIndex;
+            outBufferIndex = 0;
         }
     }
 
@@ -293,17 +2159,50 @@ public class OndaDataOutput
     private DataOutput  dataOutput;
     private int         numChannels;
     private int         sampleLength;
+    private int         bytesPerSample;
+    private boolean     stereoKernel;
+    private boolean     stereoModes;
+    private boolean     orderSelection;
+    private boolean     linearPrediction;
+    private boolean     riceCoding;
+    private boolean     blockSplitting;
     private int         minEncodingLength;
     private int         keyLength;
-    private int         bitBuffer;
+    private long        bitBuffer;
     private int         bitDataLength;
     private int         outBufferIndex;
     private byte[]      outBuffer;
-    private int[]       encodingLimits;
+    private ByteBuffer  outByteBuffer;
     private int[]       negEncodingLimits;
     private int[]       posEncodingLimits;
     private int[]       encodingLengths;
     private int[]       excessCodes;
+    private int[][]     excessCounts;
+    private int[]       predictorOrders;
+    private int[][]     prevDifferences;
+    private int[][]     residualSums;
+    private int[]       signalOrders;
+    private LinearPredictor linearPredictor;
+    private int[]       lpcOrders;
+    private int[][]     lpcCoefficients;
+    private int[]       lpcShifts;
+    private int[][]     blockSignals;
+    private int[][]     blockEpsilons;
+    private int[]       candidateEpsilons;
+    private int[]       candidateCoefficients;
+    private int[]       candidateCounts;
+    private boolean     candidateRice;
+    private int         candidatePartitionOrder;
+    private boolean[]   riceChannels;
+    private int[]       ricePartitionOrders;
+    private long[]      riceSums;
+    private int[]       riceCounts;
+    private int[]       riceMagnitudes;
+    private OndaDataOutput trialOutput;
+    private TrialStream trialStream;
+    private byte[][]    subBlockData;
+    private long[]      subBlockBitLengths;
+    private boolean[]   subBlockSplits;
     private long        outLength;
 
 }
@@ -10,14 +10,23 @@ Onda lossless audio compression file class.
 // IMPORTS
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import uk.org.blankaspect.exception.AppException;
 import uk.org.blankaspect.exception.FileException;
 
@@ -64,20 +73,55 @@ class OndaFile
     public static final     int MAX_BLOCK_LENGTH        = 1 << 16;
     public static final     int DEFAULT_BLOCK_LENGTH    = 256;
 
+    public static final     int MIN_NUM_ENCODER_THREADS     = 1;
+    public static final     int MAX_NUM_ENCODER_THREADS     = 64;
+    public static final     int DEFAULT_NUM_ENCODER_THREADS =
+                        Math.min( Runtime.getRuntime( ).availableProcessors( ), MAX_NUM_ENCODER_THREADS );
+
+    public static final     int MIN_NUM_DECODER_THREADS     = 1;
+    public static final     int MAX_NUM_DECODER_THREADS     = 64;
+    public static final     int DEFAULT_NUM_DECODER_THREADS =
+                        Math.min( Runtime.getRuntime( ).availableProcessors( ), MAX_NUM_DECODER_THREADS );
+
+    private static final    int NUM_PENDING_TASKS_PER_THREAD    = 4;
+    private static final    int MIN_ENCODER_TASK_LENGTH         = 1 << 16;
+
     public static final     int MIN_SUPPORTED_VERSION   = 0;
-    public static final     int MAX_SUPPORTED_VERSION   = 1;
+    public static final     int MAX_SUPPORTED_VERSION   = 6;
+
+    /**
+     * The first version in which each block of 16-bit or 24-bit stereo sample data has a stereo mode.
+     */
+    public static final     int STEREO_MODES_VERSION    = 2;
+
+    /**
+     * The first version in which the predictor order of each channel is selected for each block.  Files
+     * whose version includes predictor orders are written only in the high-ratio mode.
+     */
+    public static final     int PREDICTOR_ORDERS_VERSION    = 3;
+
+    /**
+     * The first version in which a channel of a block may have a linear predictor.
+     */
+    public static final     int LINEAR_PREDICTION_VERSION   = 4;
+
+    /**
+     * The first version in which the epsilons of a channel of a block may be Rice-coded.
+     */
+    public static final     int RICE_CODING_VERSION = 5;
+
+    /**
+     * The first version in which a block may be split into sub-blocks of different lengths.  Files of this
+     * version are written only in the high-ratio mode.
+     */
+    public static final     int BLOCK_SPLITTING_VERSION = 6;
 
     private static final    Id  ONDA_ID             = new Id( "Onda" );
     private static final    Id  ATTRIBUTES_ID       = new Id( "attributes" );
     private static final    Id  PRIVATE_DATA_ID     = new Id( "privateData" );
-    @SuppressWarnings( "unused" )
     private static final    Id  DATA_BLOCK_SIZE_ID  = new Id( "dataBlockSize" );
     private static final    Id  DATA_ID             = new Id( "data" );
 
-    private static final    int READ_ATTRIBUTES     = 1 << 0;
-    private static final    int READ_PRIVATE_DATA   = 1 << 1;
-    private static final    int READ_DATA           = 1 << 2;
-
     private static final    String          NAMESPACE_NAME  = "http://ns.blankaspect.org.uk/onda-1";
     private static final    List<String>    NAMESPACE_NAMES = Arrays.asList
     (
@@ -140,6 +184,15 @@ class OndaFile
         MULTIPLE_DATA_CHUNKS
         ( "The file has more than one data chunk." ),
 
+        BLOCK_INDEX_CHUNK_AFTER_DATA_CHUNK
+        ( "There is a block index chunk after the data chunk." ),
+
+        MULTIPLE_BLOCK_INDEX_CHUNKS
+        ( "The file has more than one block index chunk." ),
+
+        INVALID_BLOCK_INDEX_CHUNK
+        ( "The block index chunk is not valid." ),
+
         UNSUPPORTED_VERSION
         ( "The version of the file (%1) is not supported by this program." ),
 
@@ -214,6 +267,12 @@ class OndaFile
     //  Methods
     ////////////////////////////////////////////////////////////////////
 
+        /**
+         * Returns the next block of sample data, or {@code null} if there are no more blocks.  The data
+         * source may reuse the buffer of a block when this method is next called, so a caller that keeps a
+         * block after that must copy it.
+         */
+
         ByteDataSource.ByteData getData( )
             throws AppException;
 
@@ -340,10 +399,88 @@ class OndaFile
 
         //--------------------------------------------------------------
 
+    ////////////////////////////////////////////////////////////////////
+    //  Class methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Returns {@code true} if sample data of the specified format may be compressed with stereo modes.
+         *
+         * @param  numChannels    the number of channels.
+         * @param  bitsPerSample  the number of bits per sample.
+         * @return {@code true} if sample data of the specified format may be compressed with stereo modes.
+         * @see    OndaDataOutput#setStereoModes(boolean)
+         */
+
+        public static boolean isStereoModeFormat( int numChannels,
+                                                  int bitsPerSample )
+        {
+            return ( (numChannels == 2) && ((bitsPerSample == 16) || (bitsPerSample == 24)) );
+        }
+
+        //--------------------------------------------------------------
+
     ////////////////////////////////////////////////////////////////////
     //  Instance methods
     ////////////////////////////////////////////////////////////////////
 
+        /**
+         * Returns {@code true} if each block of compressed data begins with a stereo mode.
+         */
+
+        public boolean hasStereoModes( )
+        {
+            return ( (version >= STEREO_MODES_VERSION) && isStereoModeFormat( numChannels, bitsPerSample ) );
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Returns {@code true} if the key of each channel of a block of compressed data is followed by a
+         * predictor order.
+         */
+
+        public boolean hasPredictorOrders( )
+        {
+            return ( version >= PREDICTOR_ORDERS_VERSION );
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Returns {@code true} if a channel of a block of compressed data may have a linear predictor.
+         */
+
+        public boolean hasLinearPrediction( )
+        {
+            return ( version >= LINEAR_PREDICTION_VERSION );
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Returns {@code true} if the epsilons of a channel of a block of compressed data may be Rice-coded.
+         */
+
+        public boolean hasRiceCoding( )
+        {
+            return ( version >= RICE_CODING_VERSION );
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Returns {@code true} if a block of compressed data may be split into sub-blocks of different
+         * lengths.
+         */
+
+        public boolean hasBlockSplitting( )
+        {
+            return ( version >= BLOCK_SPLITTING_VERSION );
+        }
+
+        //--------------------------------------------------------------
+
         public int getBytesPerSample( )
         {
             return ( bitsPerSample + 7 >> 3 );
@@ -402,6 +539,296 @@ class OndaFile
 
     //==================================================================
 
+
+    // BLOCK INDEX CLASS
+
+
+    /**
+     * A block index holds the offset (in bits) from the start of the data chunk of every <i>n</i>th block
+     * of compressed data, starting with the first block.  The interval <i>n</i> is chosen when the file is
+     * compressed so that the indexed blocks are at least {@link #MIN_INTERVAL_NUM_SAMPLE_FRAMES} sample
+     * frames apart and the number of entries does not exceed {@link #MAX_NUM_ENTRIES}.
+     * <p>
+     * The block index is stored in the data block size chunk, which precedes the data chunk.
+     * </p>
+     */
+
+    public static class BlockIndex
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constants
+    ////////////////////////////////////////////////////////////////////
+
+        public static final int MAX_NUM_ENTRIES                 = 1 << 16;
+        public static final int MIN_INTERVAL_NUM_SAMPLE_FRAMES  = 1 << 12;
+
+        public static final int INTERVAL_SIZE       = 4;
+        public static final int NUM_ENTRIES_SIZE    = 4;
+        public static final int HEADER_SIZE         = INTERVAL_SIZE + NUM_ENTRIES_SIZE;
+        public static final int OFFSET_SIZE         = 8;
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Constructs an empty block index for a file with the specified attributes.
+         */
+
+        public BlockIndex( Attributes attributes )
+        {
+            long numBlocks = getNumBlocks( attributes );
+            interval = (int)Math.max( (MIN_INTERVAL_NUM_SAMPLE_FRAMES + attributes.blockLength - 1) /
+                                                                                    attributes.blockLength,
+                                      (numBlocks + MAX_NUM_ENTRIES - 1) / MAX_NUM_ENTRIES );
+            offsets = new long[(int)((numBlocks + interval - 1) / interval)];
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Constructs a block index from its representation in a file.
+         *
+         * @throws AppException
+         *           if the block index is not valid for a file with the specified attributes and length of
+         *           data chunk.
+         */
+
+        public BlockIndex( byte[]     data,
+                           int        offset,
+                           int        length,
+                           Attributes attributes,
+                           long       dataLength )
+            throws AppException
+        {
+            // Interval and number of entries
+            if ( length < HEADER_SIZE )
+                throw new AppException( ErrorId.INVALID_BLOCK_INDEX_CHUNK );
+            interval = NumberUtilities.bytesToIntBE( data, offset, INTERVAL_SIZE );
+            offset += INTERVAL_SIZE;
+            int numEntries = NumberUtilities.bytesToIntBE( data, offset, NUM_ENTRIES_SIZE );
+            offset += NUM_ENTRIES_SIZE;
+            if ( (interval < 1) || (numEntries < 0) || (numEntries > MAX_NUM_ENTRIES) ||
+                 (numEntries != (getNumBlocks( attributes ) + interval - 1) / interval) ||
+                 (length != HEADER_SIZE + numEntries * OFFSET_SIZE) )
+                throw new AppException( ErrorId.INVALID_BLOCK_INDEX_CHUNK );
+
+            // Offsets
+            offsets = new long[numEntries];
+            long prevOffset = 0;
+            for ( int i = 0; i < numEntries; ++i )
+            {
+                long blockOffset = NumberUtilities.bytesToLongBE( data, offset, OFFSET_SIZE );
+                offset += OFFSET_SIZE;
+                if ( ((i == 0) && (blockOffset != 0)) || (blockOffset < prevOffset) ||
+                     (blockOffset >= dataLength << 3) )
+                    throw new AppException( ErrorId.INVALID_BLOCK_INDEX_CHUNK );
+                offsets[i] = blockOffset;
+                prevOffset = blockOffset;
+            }
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Class methods
+    ////////////////////////////////////////////////////////////////////
+
+        public static long getNumBlocks( Attributes attributes )
+        {
+            return ( (attributes.numSampleFrames + attributes.blockLength - 1) / attributes.blockLength );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        public int getInterval( )
+        {
+            return interval;
+        }
+
+        //--------------------------------------------------------------
+
+        public int getNumEntries( )
+        {
+            return offsets.length;
+        }
+
+        //--------------------------------------------------------------
+
+        public long getOffset( int index )
+        {
+            return offsets[index];
+        }
+
+        //--------------------------------------------------------------
+
+        public int getSize( )
+        {
+            return ( HEADER_SIZE + offsets.length * OFFSET_SIZE );
+        }
+
+        //--------------------------------------------------------------
+
+        public byte[] getBytes( )
+        {
+            byte[] buffer = new byte[getSize( )];
+
+            int offset = 0;
+            NumberUtilities.intToBytesBE( interval, buffer, offset, INTERVAL_SIZE );
+            offset += INTERVAL_SIZE;
+            NumberUtilities.intToBytesBE( offsets.length, buffer, offset, NUM_ENTRIES_SIZE );
+            offset += NUM_ENTRIES_SIZE;
+            for ( long blockOffset : offsets )
+            {
+                NumberUtilities.longToBytesBE( blockOffset, buffer, offset, OFFSET_SIZE );
+                offset += OFFSET_SIZE;
+            }
+
+            return buffer;
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Records the offset of a block in the index if the block is one of the indexed blocks.
+         *
+         * @param blockNumber  the index of the block in the data chunk.
+         * @param offset       the offset (in bits) of the start of the block from the start of the data
+         *                     chunk.
+         */
+
+        public void setBlockOffset( long blockNumber,
+                                    long offset )
+        {
+            if ( blockNumber % interval == 0 )
+            {
+                long index = blockNumber / interval;
+                if ( index < offsets.length )
+                    offsets[(int)index] = offset;
+            }
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private int     interval;
+        private long[]  offsets;
+
+    }
+
+    //==================================================================
+
+
+    // ENCODED BLOCK CLASS
+
+
+    private static class EncodedBlock
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private EncodedBlock( byte[] data,
+                              long   bitLength,
+                              long[] blockOffsets )
+        {
+            this.data = data;
+            this.bitLength = bitLength;
+            this.blockOffsets = blockOffsets;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private byte[]  data;
+        private long    bitLength;
+        private long[]  blockOffsets;
+
+    }
+
+    //==================================================================
+
+
+    // BLOCK ENCODER CLASS
+
+
+    /**
+     * A block encoder compresses consecutive blocks of sample data into its own memory buffer.  Because the
+     * state of the predictor is reset at the start of each block, the bit stream of a block that is
+     * compressed by a block encoder is identical to the bit stream that would be written for that block by
+     * a single {@link OndaDataOutput} that compresses all the blocks of a file in turn.  Each worker thread
+     * of a parallel compression has its own block encoder.
+     */
+
+    private static class BlockEncoder
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private BlockEncoder( Attributes attributes )
+        {
+            bytesPerSample = attributes.getBytesPerSample( );
+            byteStream = new ByteArrayOutputStream( );
+            dataOutput = new OndaDataOutput( attributes.numChannels, attributes.bitsPerSample,
+                                             attributes.keyLength, new DataOutputStream( byteStream ) );
+            dataOutput.setStereoModes( attributes.hasStereoModes( ) );
+            dataOutput.setPredictorOrderSelection( attributes.hasPredictorOrders( ) );
+            dataOutput.setLinearPrediction( attributes.hasLinearPrediction( ) );
+            dataOutput.setRiceCoding( attributes.hasRiceCoding( ) );
+            dataOutput.setBlockSplitting( attributes.hasBlockSplitting( ) );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods
+    ////////////////////////////////////////////////////////////////////
+
+        private EncodedBlock encode( List<ByteDataSource.ByteData> blocks )
+            throws IOException
+        {
+            byteStream.reset( );
+            dataOutput.reset( );
+            long[] blockOffsets = new long[blocks.size( )];
+            for ( int i = 0; i < blockOffsets.length; ++i )
+            {
+                ByteDataSource.ByteData data = blocks.get( i );
+                blockOffsets[i] = dataOutput.getBitLength( );
+                dataOutput.writeBlock( data.data, data.offset, data.length / bytesPerSample );
+            }
+            long bitLength = dataOutput.getBitLength( );
+            dataOutput.close( );
+            return new EncodedBlock( byteStream.toByteArray( ), bitLength, blockOffsets );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private int                     bytesPerSample;
+        private ByteArrayOutputStream   byteStream;
+        private OndaDataOutput          dataOutput;
+
+    }
+
+    //==================================================================
+
 ////////////////////////////////////////////////////////////////////////
 //  Member classes : inner classes
 ////////////////////////////////////////////////////////////////////////
@@ -503,6 +930,54 @@ class OndaFile
     //==================================================================
 
 
+    // BLOCK INDEX WRITER CLASS
+
+
+    private class BlockIndexWriter
+        implements Chunk.Writer
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private BlockIndexWriter( )
+        {
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : Chunk.Writer interface
+    ////////////////////////////////////////////////////////////////////
+
+        public boolean reset( int pass )
+        {
+            return true;
+        }
+
+        //--------------------------------------------------------------
+
+        public long getLength( )
+        {
+            return blockIndex.getSize( );
+        }
+
+        //--------------------------------------------------------------
+
+        public void write( DataOutput dataOutput )
+            throws IOException
+        {
+            dataOutput.write( blockIndex.getBytes( ) );
+        }
+
+        //--------------------------------------------------------------
+
+    }
+
+    //==================================================================
+
+
     // DATA WRITER CLASS
 
 
@@ -514,9 +989,13 @@ class OndaFile
     //  Constructors
     ////////////////////////////////////////////////////////////////////
 
-        private DataWriter( CompressedDataSource dataSource )
+        private DataWriter( CompressedDataSource dataSource,
+                            ExecutorService      executor,
+                            int                  numThreads )
         {
             this.dataSource = dataSource;
+            this.executor = executor;
+            this.numThreads = numThreads;
         }
 
         //--------------------------------------------------------------
@@ -546,33 +1025,29 @@ class OndaFile
             OndaDataOutput compressedDataOutput = new OndaDataOutput( attributes.numChannels,
                                                                       attributes.bitsPerSample,
                                                                       attributes.keyLength, dataOutput );
-
-            // Write compressed sample data
-            int[] buffer = new int[attributes.blockLength * attributes.numChannels];
-            int bytesPerSample = attributes.getBytesPerSample( );
-            while ( true )
+            compressedDataOutput.setStereoModes( attributes.hasStereoModes( ) );
+            compressedDataOutput.setPredictorOrderSelection( attributes.hasPredictorOrders( ) );
+            compressedDataOutput.setLinearPrediction( attributes.hasLinearPrediction( ) );
+            compressedDataOutput.setRiceCoding( attributes.hasRiceCoding( ) );
+            compressedDataOutput.setBlockSplitting( attributes.hasBlockSplitting( ) );
+
+            // Write compressed sample data, compressing them concurrently if they span more than one task
+            long dataLength = attributes.numSampleFrames * attributes.getBytesPerSampleFrame( );
+            if ( (executor != null) && (numThreads > 1) && (dataLength >= MIN_ENCODER_TASK_LENGTH) )
+                writeParallel( compressedDataOutput );
+            else
             {
-                ByteDataSource.ByteData data = null;
-                try
-                {
-                    data = dataSource.getData( );
-                }
-                catch ( AppException e )
-                {
-                    throw new IOException( e );
-                }
-                if ( data == null )
-                    break;
-
-                int index = 0;
-                int offset = data.offset;
-                int endOffset = offset + data.length;
-                while ( offset < endOffset )
+                int bytesPerSample = attributes.getBytesPerSample( );
+                long blockNumber = 0;
+                while ( true )
                 {
-                    buffer[index++] = NumberUtilities.bytesToIntLE( data.data, offset, bytesPerSample );
-                    offset += bytesPerSample;
+                    ByteDataSource.ByteData data = getData( );
+                    if ( data == null )
+                        break;
+                    if ( blockIndex != null )
+                        blockIndex.setBlockOffset( blockNumber++, compressedDataOutput.getBitLength( ) );
+                    compressedDataOutput.writeBlock( data.data, data.offset, data.length / bytesPerSample );
                 }
-                compressedDataOutput.writeBlock( buffer, 0, index );
             }
 
             // Close compressed data output
@@ -588,17 +1063,151 @@ class OndaFile
         //--------------------------------------------------------------
 
     ////////////////////////////////////////////////////////////////////
-    //  Instance variables
+    //  Instance methods
     ////////////////////////////////////////////////////////////////////
 
-        private CompressedDataSource    dataSource;
-
-    }
-
-    //==================================================================
-
-////////////////////////////////////////////////////////////////////////
-//  Constructors
+        private ByteDataSource.ByteData getData( )
+            throws IOException
+        {
+            try
+            {
+                return dataSource.getData( );
+            }
+            catch ( AppException e )
+            {
+                throw new IOException( e );
+            }
+        }
+
+        //--------------------------------------------------------------
+
+        /**
+         * Compresses blocks of sample data concurrently on the executor of the writer, each of whose threads
+         * has its own block encoder, and writes the compressed blocks to the data output in the order in
+         * which the blocks were obtained from the data source.  Short blocks are grouped into a single task
+         * to limit the overhead of scheduling, and the number of tasks that are queued for compression is
+         * limited so that memory use does not depend on the length of the input file.  If an error occurs,
+         * the tasks that are still queued are cancelled.
+         */
+
+        private void writeParallel( OndaDataOutput dataOutput )
+            throws IOException
+        {
+            final ThreadLocal<BlockEncoder> blockEncoders = new ThreadLocal<BlockEncoder>( )
+            {
+                @Override
+                protected BlockEncoder initialValue( )
+                {
+                    return new BlockEncoder( attributes );
+                }
+            };
+
+            Deque<Future<EncodedBlock>> pendingTasks = new ArrayDeque<>( );
+            try
+            {
+                int maxNumPendingTasks = numThreads * NUM_PENDING_TASKS_PER_THREAD;
+                int maxBlockSize = attributes.blockLength * attributes.getBytesPerSampleFrame( );
+                boolean done = false;
+                while ( !done )
+                {
+                    // Get blocks of sample data for next task, copying them to a buffer of the task because
+                    // the data source may reuse its buffers
+                    final List<ByteDataSource.ByteData> blocks = new ArrayList<>( );
+                    byte[] taskData = new byte[MIN_ENCODER_TASK_LENGTH - 1 + maxBlockSize];
+                    int taskLength = 0;
+                    while ( taskLength < MIN_ENCODER_TASK_LENGTH )
+                    {
+                        ByteDataSource.ByteData data = getData( );
+                        if ( data == null )
+                        {
+                            done = true;
+                            break;
+                        }
+                        System.arraycopy( data.data, data.offset, taskData, taskLength, data.length );
+                        blocks.add( new ByteDataSource.ByteData( taskData, taskLength, data.length ) );
+                        taskLength += data.length;
+                    }
+                    if ( blocks.isEmpty( ) )
+                        break;
+
+                    // Submit blocks for compression
+                    pendingTasks.addLast( executor.submit( new Callable<EncodedBlock>( )
+                    {
+                        public EncodedBlock call( )
+                            throws IOException
+                        {
+                            return blockEncoders.get( ).encode( blocks );
+                        }
+                    } ) );
+
+                    // Write blocks of oldest task if queue is full
+                    if ( pendingTasks.size( ) >= maxNumPendingTasks )
+                        writeEncodedBlock( dataOutput, pendingTasks.removeFirst( ) );
+                }
+
+                // Write blocks of remaining tasks
+                while ( !pendingTasks.isEmpty( ) )
+                    writeEncodedBlock( dataOutput, pendingTasks.removeFirst( ) );
+            }
+            finally
+            {
+                for ( Future<EncodedBlock> task : pendingTasks )
+                    task.cancel( true );
+            }
+        }
+
+        //--------------------------------------------------------------
+
+        private void writeEncodedBlock( OndaDataOutput       dataOutput,
+                                        Future<EncodedBlock> future )
+            throws IOException
+        {
+            EncodedBlock block = null;
+            try
+            {
+                block = future.get( );
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( e );
+            }
+            catch ( ExecutionException e )
+            {
+                Throwable cause = e.getCause( );
+                if ( cause instanceof IOException )
+                    throw (IOException)cause;
+                if ( cause instanceof RuntimeException )
+                    throw (RuntimeException)cause;
+                if ( cause instanceof Error )
+                    throw (Error)cause;
+                throw new IOException( cause );
+            }
+            long startOffset = dataOutput.getBitLength( );
+            if ( blockIndex != null )
+            {
+                for ( long blockOffset : block.blockOffsets )
+                    blockIndex.setBlockOffset( numBlocksWritten++, startOffset + blockOffset );
+            }
+            dataOutput.writeBits( block.data, block.bitLength );
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private CompressedDataSource    dataSource;
+        private ExecutorService         executor;
+        private int                     numThreads;
+        private long                    numBlocksWritten;
+
+    }
+
+    //==================================================================
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
 ////////////////////////////////////////////////////////////////////////
 
     public OndaFile( File file )
@@ -654,6 +1263,157 @@ class OndaFile
 //  Instance methods : OndaFileReader interface
 ////////////////////////////////////////////////////////////////////////
 
+    public void open( )
+        throws AppException
+    {
+        // Test whether file is already open
+        if ( document != null )
+            throw new IllegalStateException( );
+
+        // Initialise variables
+        attributes = null;
+        privateData = null;
+        blockIndex = null;
+        privateDataChunk = null;
+        blockIndexChunk = null;
+        dataChunk = null;
+
+        // Read document and parse its structure
+        Document document = null;
+        try
+        {
+            document = new Document( false );
+            document.read( file );
+        }
+        catch ( NlfException e )
+        {
+            throwAppException( e );
+        }
+
+        // Index chunks and read attributes
+        try
+        {
+            // Validate namespace name of root list
+            String namespaceName = document.getRootList( ).getNamespaceName( );
+            if ( !NAMESPACE_NAMES.contains( namespaceName ) )
+                throw new FileException( ErrorId.NOT_AN_ONDA_FILE, file );
+
+            // Iterate over chunks in root list
+            List<Id> ids = new ArrayList<>( );
+            try
+            {
+                for ( int i = 0; i < document.getRootList( ).getNumChunks( ); ++i )
+                {
+                    // Get chunk ID
+                    Chunk chunk = document.getRootList( ).getChunk( i );
+                    Id id = chunk.getId( );
+
+                    // Read attributes chunk
+                    if ( id.equals( ATTRIBUTES_ID ) )
+                    {
+                        if ( ids.contains( ATTRIBUTES_ID ) )
+                            throw new FileException( ErrorId.MULTIPLE_ATTRIBUTES_CHUNKS, file );
+
+                        chunk.getReader( ).reset( );
+                        readAttributes( chunk );
+                    }
+
+                    // Index private data chunk
+                    if ( id.equals( PRIVATE_DATA_ID ) )
+                    {
+                        if ( ids.contains( DATA_ID ) )
+                            throw new FileException( ErrorId.PRIVATE_CHUNK_AFTER_DATA_CHUNK, file );
+
+                        if ( ids.contains( PRIVATE_DATA_ID ) )
+                            throw new FileException( ErrorId.MULTIPLE_PRIVATE_CHUNKS, file );
+
+                        privateDataChunk = chunk;
+                    }
+
+                    // Index block index chunk
+                    if ( id.equals( DATA_BLOCK_SIZE_ID ) )
+                    {
+                        if ( ids.contains( DATA_ID ) )
+                            throw new FileException( ErrorId.BLOCK_INDEX_CHUNK_AFTER_DATA_CHUNK, file );
+
+                        if ( ids.contains( DATA_BLOCK_SIZE_ID ) )
+                            throw new FileException( ErrorId.MULTIPLE_BLOCK_INDEX_CHUNKS, file );
+
+                        blockIndexChunk = chunk;
+                    }
+
+                    // Index data chunk
+                    if ( id.equals( DATA_ID ) )
+                    {
+                        if ( !ids.contains( ATTRIBUTES_ID ) )
+                            throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK_BEFORE_DATA_CHUNK, file );
+
+                        if ( ids.contains( DATA_ID ) )
+                            throw new FileException( ErrorId.MULTIPLE_DATA_CHUNKS, file );
+
+                        dataChunk = chunk;
+                    }
+
+                    // Add chunk ID to list
+                    ids.add( id );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
+            }
+
+            // Test for missing chunks
+            if ( !ids.contains( ATTRIBUTES_ID ) )
+                throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK, file );
+            if ( !ids.contains( DATA_ID ) )
+                throw new FileException( ErrorId.NO_DATA_CHUNK, file );
+        }
+        catch ( AppException e )
+        {
+            document.closeIgnoreException( );
+            throw e;
+        }
+
+        // Keep document open for subsequent reads
+        this.document = document;
+    }
+
+    //------------------------------------------------------------------
+
+    public void close( )
+        throws AppException
+    {
+        if ( document != null )
+        {
+            try
+            {
+                document.close( );
+            }
+            catch ( IOException e )
+            {
+                throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
+            }
+            finally
+            {
+                document = null;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    public void closeIgnoreException( )
+    {
+        if ( document != null )
+        {
+            document.closeIgnoreException( );
+            document = null;
+        }
+    }
+
+    //------------------------------------------------------------------
+
     public byte[] getPrivateData( )
     {
         return privateData;
@@ -662,9 +1422,8 @@ class OndaFile
     //------------------------------------------------------------------
 
     public Attributes readAttributes( )
-        throws AppException
     {
-        read( READ_ATTRIBUTES, null );
+        testOpen( );
         return attributes;
     }
 
@@ -673,7 +1432,7 @@ class OndaFile
     public PrivateData readPrivateData( )
         throws AppException
     {
-        read( READ_PRIVATE_DATA, null );
+        readPrivateDataChunk( );
         return ( (privateData == null) ? null : new PrivateData( privateData ) );
     }
 
@@ -682,16 +1441,29 @@ class OndaFile
     public Attributes readAttributesAndPrivateData( )
         throws AppException
     {
-        read( READ_ATTRIBUTES | READ_PRIVATE_DATA, null );
+        readPrivateDataChunk( );
+        return attributes;
+    }
+
+    //------------------------------------------------------------------
+
+    public Attributes readData( ByteDataOutputStream outStream,
+                                ExecutorService      executor,
+                                int                  numThreads )
+        throws AppException
+    {
+        readDataChunk( outStream, executor, numThreads, 0, -1 );
         return attributes;
     }
 
     //------------------------------------------------------------------
 
-    public Attributes readData( ByteDataOutputStream outStream )
+    public Attributes readData( ByteDataOutputStream outStream,
+                                long                 startFrameIndex,
+                                long                 numFrames )
         throws AppException
     {
-        read( READ_ATTRIBUTES | READ_DATA, outStream );
+        readDataChunk( outStream, null, 1, startFrameIndex, numFrames );
         return attributes;
     }
 
@@ -710,12 +1482,15 @@ class OndaFile
 
     public void write( Attributes           attributes,
                        byte[]               privateData,
-                       CompressedDataSource dataSource )
+                       CompressedDataSource dataSource,
+                       ExecutorService      executor,
+                       int                  numThreads )
         throws AppException
     {
         // Set instance variables
         this.attributes = attributes;
         this.privateData = privateData;
+        blockIndex = (attributes.numSampleFrames > 0) ? new BlockIndex( attributes ) : null;
 
         // Write file
         try
@@ -738,9 +1513,17 @@ class OndaFile
                 rootList.appendChunk( privateDataChunk );
             }
 
+            // Create block index chunk
+            if ( blockIndex != null )
+            {
+                Chunk blockIndexChunk = document.createChunk( DATA_BLOCK_SIZE_ID );
+                blockIndexChunk.setWriter( new BlockIndexWriter( ) );
+                rootList.appendChunk( blockIndexChunk );
+            }
+
             // Create data chunk
             Chunk dataChunk = document.createChunk( DATA_ID );
-            dataChunk.setWriter( new DataWriter( dataSource ) );
+            dataChunk.setWriter( new DataWriter( dataSource, executor, numThreads ) );
             rootList.appendChunk( dataChunk );
 
             // Set sizes of chunks from chunk writers
@@ -757,120 +1540,6 @@ class OndaFile
 
     //------------------------------------------------------------------
 
-    private void read( int                  readKind,
-                       ByteDataOutputStream outStream )
-        throws AppException
-    {
-        // Initialise variables
-        if ( (readKind & READ_ATTRIBUTES) != 0 )
-            attributes = null;
-        if ( (readKind & READ_PRIVATE_DATA) != 0 )
-            privateData = null;
-        List<Id> ids = new ArrayList<>( );
-
-        // Read document and parse its structure
-        Document document = null;
-        try
-        {
-            document = new Document( false );
-            document.read( file );
-        }
-        catch ( NlfException e )
-        {
-            throwAppException( e );
-        }
-
-        // Read chunk data
-        try
-        {
-            // Validate namespace name of root list
-            String namespaceName = document.getRootList( ).getNamespaceName( );
-            if ( !NAMESPACE_NAMES.contains( namespaceName ) )
-                throw new FileException( ErrorId.NOT_AN_ONDA_FILE, file );
-
-            // Iterate over chunks in root list
-            try
-            {
-                for ( int i = 0; i < document.getRootList( ).getNumChunks( ); ++i )
-                {
-                    // Get chunk ID
-                    Chunk chunk = document.getRootList( ).getChunk( i );
-                    Id id = chunk.getId( );
-
-                    // Reset chunk reader
-                    chunk.getReader( ).reset( );
-
-                    // Read attributes chunk
-                    if ( id.equals( ATTRIBUTES_ID ) )
-                    {
-                        if ( ids.contains( ATTRIBUTES_ID ) )
-                            throw new FileException( ErrorId.MULTIPLE_ATTRIBUTES_CHUNKS, file );
-
-                        if ( (readKind & READ_ATTRIBUTES) != 0 )
-                            readAttributes( chunk );
-                    }
-
-                    // Read private data chunk
-                    if ( id.equals( PRIVATE_DATA_ID ) )
-                    {
-                        if ( ids.contains( DATA_ID ) )
-                            throw new FileException( ErrorId.PRIVATE_CHUNK_AFTER_DATA_CHUNK, file );
-
-                        if ( ids.contains( PRIVATE_DATA_ID ) )
-                            throw new FileException( ErrorId.MULTIPLE_PRIVATE_CHUNKS, file );
-
-                        if ( (readKind & READ_PRIVATE_DATA) != 0 )
-                            readPrivateData( chunk );
-                    }
-
-                    // Read data chunk
-                    if ( id.equals( DATA_ID ) )
-                    {
-                        if ( !ids.contains( ATTRIBUTES_ID ) )
-                            throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK_BEFORE_DATA_CHUNK, file );
-
-                        if ( ids.contains( DATA_ID ) )
-                            throw new FileException( ErrorId.MULTIPLE_DATA_CHUNKS, file );
-
-                        if ( (readKind & READ_DATA) != 0 )
-                            readData( chunk, outStream );
-                    }
-
-                    // Add chunk ID to list
-                    ids.add( id );
-                }
-            }
-            catch ( IOException e )
-            {
-                throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
-            }
-
-            // Close file
-            try
-            {
-                document.close( );
-            }
-            catch ( IOException e )
-            {
-                throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
-            }
-        }
-        catch ( AppException e )
-        {
-            if ( document != null )
-                document.closeIgnoreException( );
-            throw e;
-        }
-
-        // Test for missing chunks
-        if ( !ids.contains( ATTRIBUTES_ID ) )
-            throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK, file );
-        if ( !ids.contains( DATA_ID ) )
-            throw new FileException( ErrorId.NO_DATA_CHUNK, file );
-    }
-
-    //------------------------------------------------------------------
-
     private void readAttributes( Chunk chunk )
         throws AppException, IOException
     {
@@ -900,20 +1569,38 @@ class OndaFile
 
     //------------------------------------------------------------------
 
-    private void readPrivateData( Chunk chunk )
-        throws AppException, IOException
+    private void testOpen( )
     {
+        if ( document == null )
+            throw new IllegalStateException( );
+    }
+
+    //------------------------------------------------------------------
+
+    private void readPrivateDataChunk( )
+        throws AppException
+    {
+        // Test whether private data have been read
+        testOpen( );
+        if ( (privateData != null) || (privateDataChunk == null) )
+            return;
+
         // Test size of private data
-        if ( chunk.getSize( ) > Integer.MAX_VALUE )
+        if ( privateDataChunk.getSize( ) > Integer.MAX_VALUE )
             throw new FileException( ErrorId.PRIVATE_DATA_ARE_TOO_LARGE, file );
 
         // Read private data
         try
         {
-            byte[] buffer = new byte[(int)chunk.getSize( )];
-            chunk.getReader( ).getDataInput( ).readFully( buffer );
+            byte[] buffer = new byte[(int)privateDataChunk.getSize( )];
+            privateDataChunk.getReader( ).reset( );
+            privateDataChunk.getReader( ).getDataInput( ).readFully( buffer );
             privateData = buffer;
         }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
+        }
         catch ( OutOfMemoryError e )
         {
             throw new FileException( ErrorId.NOT_ENOUGH_MEMORY, file );
@@ -922,51 +1609,73 @@ class OndaFile
 
     //------------------------------------------------------------------
 
-    private void readData( Chunk                chunk,
-                           ByteDataOutputStream outStream )
+    private void readBlockIndex( Chunk chunk,
+                                 long  dataLength )
+        throws AppException, IOException
+    {
+        // Test size of block index
+        if ( chunk.getSize( ) > BlockIndex.HEADER_SIZE +
+                                                (long)BlockIndex.MAX_NUM_ENTRIES * BlockIndex.OFFSET_SIZE )
+            throw new FileException( ErrorId.INVALID_BLOCK_INDEX_CHUNK, file );
+
+        // Read block index
+        chunk.getReader( ).reset( );
+        byte[] buffer = new byte[(int)chunk.getSize( )];
+        chunk.getReader( ).getDataInput( ).readFully( buffer );
+        try
+        {
+            blockIndex = new BlockIndex( buffer, 0, buffer.length, attributes, dataLength );
+        }
+        catch ( AppException e )
+        {
+            throw new FileException( e, file );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Decodes sample data from the data chunk of the open file and writes them to the specified stream.
+     *
+     * @param numFrames  the number of sample frames that are to be read from the data chunk, or -1 to read
+     *                   all the sample frames from {@code startFrameIndex} to the end of the data.
+     */
+
+    private void readDataChunk( ByteDataOutputStream outStream,
+                                ExecutorService      executor,
+                                int                  numThreads,
+                                long                 startFrameIndex,
+                                long                 numFrames )
         throws AppException
     {
-        // Open compressed data input
-        OndaDataInput compressedDataInput =
-                                        new OndaDataInput( chunk.getSize( ), attributes.numChannels,
-                                                           attributes.bitsPerSample, attributes.keyLength,
-                                                           chunk.getReader( ).getDataInput( ) );
-
-        // Read compressed data and write them to output stream
-        int bytesPerSample = attributes.getBytesPerSample( );
-        int numSampleFrames = (int)attributes.numSampleFrames;
-        int[] inBuffer = new int[attributes.blockLength * attributes.numChannels];
-        byte[] outBuffer = new byte[inBuffer.length * bytesPerSample];
-        int sampleFrameIndex = 0;
-        while ( sampleFrameIndex < numSampleFrames )
+        // Read block index
+        testOpen( );
+        if ( (blockIndex == null) && (blockIndexChunk != null) )
         {
             try
             {
-                // Read sample data from input
-                int readNumSampleFrames = Math.min( numSampleFrames - sampleFrameIndex,
-                                                    attributes.blockLength );
-                int readLength = readNumSampleFrames * attributes.numChannels;
-                compressedDataInput.readBlock( inBuffer, 0, readLength );
-                sampleFrameIndex += readNumSampleFrames;
-
-                // Write sample data to output stream
-                int offset = 0;
-                for ( int i = 0; i < readLength; ++i )
-                {
-                    int sampleValue = inBuffer[i];
-                    for ( int j = 0; j < bytesPerSample; ++j )
-                    {
-                        outBuffer[offset++] = (byte)sampleValue;
-                        sampleValue >>= 8;
-                    }
-                }
-                outStream.write( outBuffer, 0, offset );
+                readBlockIndex( blockIndexChunk, dataChunk.getSize( ) );
             }
             catch ( IOException e )
             {
-                throw new FileException( ErrorId.MALFORMED_FILE, file, e );
+                throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
             }
         }
+
+        // Decode compressed data and write them to output stream
+        if ( numFrames < 0 )
+            numFrames = attributes.numSampleFrames - startFrameIndex;
+        try
+        {
+            dataChunk.getReader( ).reset( );
+            new OndaDataDecoder( attributes, blockIndex ).decode( dataChunk.getReader( ).getDataInput( ),
+                                                                  dataChunk.getSize( ), outStream, executor,
+                                                                  numThreads, startFrameIndex, numFrames );
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.MALFORMED_FILE, file, e );
+        }
     }
 
     //------------------------------------------------------------------
@@ -978,7 +1687,12 @@ class OndaFile
     private File        file;
     private long        dataSize;
     private Attributes  attributes;
+    private BlockIndex  blockIndex;
     private byte[]      privateData;
+    private Document    document;
+    private Chunk       privateDataChunk;
+    private Chunk       blockIndexChunk;
+    private Chunk       dataChunk;
 
 }
 
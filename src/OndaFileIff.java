@@ -19,12 +19,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import java.util.concurrent.ExecutorService;
+
 import uk.org.blankaspect.exception.AppException;
 import uk.org.blankaspect.exception.FileException;
 
-import uk.org.blankaspect.iff.FormFile;
 import uk.org.blankaspect.iff.Id;
-import uk.org.blankaspect.iff.IffFormFile;
 
 import uk.org.blankaspect.nlf.Document;
 
@@ -52,9 +52,8 @@ class OndaFileIff
     private static final    Id  DATA_BLOCK_SIZE_ID  = new Id( "DBSZ" );
     private static final    Id  DATA_ID             = new Id( "DATA" );
 
-    private static final    int READ_ATTRIBUTES     = 1 << 0;
-    private static final    int READ_PRIVATE_DATA   = 1 << 1;
-    private static final    int READ_DATA           = 1 << 2;
+    private static final    int CHUNK_SIZE_SIZE     = 4;
+    private static final    int CHUNK_HEADER_SIZE   = Id.SIZE + CHUNK_SIZE_SIZE;
 
 ////////////////////////////////////////////////////////////////////////
 //  Enumerated types
@@ -114,6 +113,15 @@ class OndaFileIff
         MULTIPLE_DATA_CHUNKS
         ( "The file has more than one data chunk." ),
 
+        BLOCK_INDEX_CHUNK_AFTER_DATA_CHUNK
+        ( "There is a block index chunk after the data chunk." ),
+
+        MULTIPLE_BLOCK_INDEX_CHUNKS
+        ( "The file has more than one block index chunk." ),
+
+        INVALID_BLOCK_INDEX_CHUNK
+        ( "The block index chunk is not valid." ),
+
         UNSUPPORTED_VERSION
         ( "The version of the file (%1) is not supported by this program." ),
 
@@ -156,374 +164,551 @@ class OndaFileIff
     //==================================================================
 
 ////////////////////////////////////////////////////////////////////////
-//  Member classes : inner classes
+//  Constructors
 ////////////////////////////////////////////////////////////////////////
 
+    public OndaFileIff( File file )
+    {
+        this.file = file;
+    }
 
-    // CHUNK READER CLASS
+    //------------------------------------------------------------------
 
+////////////////////////////////////////////////////////////////////////
+//  Class methods
+////////////////////////////////////////////////////////////////////////
 
-    private class ChunkReader
-        implements FormFile.ChunkReader
+    public static OndaFileReader.Kind getFileKind( File file )
+        throws AppException
     {
-
-    ////////////////////////////////////////////////////////////////////
-    //  Constructors
-    ////////////////////////////////////////////////////////////////////
-
-        private ChunkReader( int                  readKind,
-                             ByteDataOutputStream outStream )
+        RandomAccessFile raFile = openFile( file );
+        try
         {
-            this.readKind = readKind;
-            this.outStream = outStream;
-            ids = new ArrayList<>( );
-            if ( (readKind & READ_ATTRIBUTES) != 0 )
-                attributes = null;
-            if ( (readKind & READ_PRIVATE_DATA) != 0 )
-                privateData = null;
+            OndaFileReader.Kind fileKind = readFileKind( file, raFile );
+            closeFile( file, raFile );
+            return fileKind;
         }
-
-        //--------------------------------------------------------------
-
-    ////////////////////////////////////////////////////////////////////
-    //  Instance methods : FormFile.ChunkReader interface
-    ////////////////////////////////////////////////////////////////////
-
-        public void beginReading( RandomAccessFile raFile,
-                                  Id               typeId,
-                                  int              size )
+        catch ( AppException e )
         {
-            ids.clear( );
+            closeFileIgnoreException( raFile );
+            throw e;
         }
+    }
 
-        //--------------------------------------------------------------
-
-        public void read( RandomAccessFile raFile,
-                          Id               id,
-                          int              size )
-            throws AppException, IOException
-        {
-            if ( id.equals( ATTRIBUTES_ID ) )
-            {
-                if ( ids.contains( ATTRIBUTES_ID ) )
-                    throw new FileException( ErrorId.MULTIPLE_ATTRIBUTES_CHUNKS, file );
+    //------------------------------------------------------------------
 
-                if ( (readKind & READ_ATTRIBUTES) != 0 )
-                    readAttributes( raFile, size );
-                ids.add( id );
-            }
+    /**
+     * Opens the specified file, determines its kind, and returns an open reader for it.  An IFF file is
+     * identified and indexed through a single open handle, which the reader keeps until it is closed.
+     *
+     * @throws AppException
+     *           if the file could not be opened or is not a valid Onda file.
+     */
 
-            else if ( id.equals( PRIVATE_DATA_ID ) )
+    public static OndaFileReader openReader( File file )
+        throws AppException
+    {
+        RandomAccessFile raFile = openFile( file );
+        try
+        {
+            // IFF file: index chunks through the handle that was used to identify the file
+            if ( readFileKind( file, raFile ) == OndaFileReader.Kind.IFF )
             {
-                if ( ids.contains( DATA_ID ) )
-                    throw new FileException( ErrorId.PRIVATE_CHUNK_AFTER_DATA_CHUNK, file );
-
-                if ( ids.contains( PRIVATE_DATA_ID ) )
-                    throw new FileException( ErrorId.MULTIPLE_PRIVATE_CHUNKS, file );
-
-                if ( (readKind & READ_PRIVATE_DATA) != 0 )
-                    readPrivateData( raFile, size );
-                ids.add( id );
+                OndaFileIff reader = new OndaFileIff( file );
+                reader.open( raFile );
+                return reader;
             }
 
-            else if ( id.equals( DATA_ID ) )
-            {
-                if ( !ids.contains( ATTRIBUTES_ID ) )
-                    throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK_BEFORE_DATA_CHUNK, file );
+            // NLF file: the NLF document opens the file itself
+            closeFile( file, raFile );
+            raFile = null;
+            OndaFileReader reader = OndaFileReader.Kind.NLF.createReader( file );
+            reader.open( );
+            return reader;
+        }
+        catch ( AppException e )
+        {
+            closeFileIgnoreException( raFile );
+            throw e;
+        }
+    }
 
-                if ( ids.contains( DATA_ID ) )
-                    throw new FileException( ErrorId.MULTIPLE_DATA_CHUNKS, file );
+    //------------------------------------------------------------------
 
-                if ( (readKind & READ_DATA) != 0 )
-                    readData( raFile, size );
-                ids.add( id );
-            }
+    private static RandomAccessFile openFile( File file )
+        throws AppException
+    {
+        // Open file
+        RandomAccessFile raFile = null;
+        try
+        {
+            raFile = new RandomAccessFile( file, "r" );
+        }
+        catch ( FileNotFoundException e )
+        {
+            throw new FileException( ErrorId.FAILED_TO_OPEN_FILE, file, e );
+        }
+        catch ( SecurityException e )
+        {
+            throw new FileException( ErrorId.FILE_ACCESS_NOT_PERMITTED, file, e );
         }
 
-        //--------------------------------------------------------------
-
-        public void endReading( RandomAccessFile raFile )
-            throws AppException
+        // Lock file
+        try
         {
-            if ( !ids.contains( ATTRIBUTES_ID ) )
-                throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK, file );
-            if ( !ids.contains( DATA_ID ) )
-                throw new FileException( ErrorId.NO_DATA_CHUNK, file );
+            if ( raFile.getChannel( ).tryLock( 0, Long.MAX_VALUE, true ) == null )
+                throw new FileException( ErrorId.FAILED_TO_LOCK_FILE, file );
+        }
+        catch ( Exception e )
+        {
+            closeFileIgnoreException( raFile );
+            if ( e instanceof FileException )
+                throw (FileException)e;
+            throw new FileException( ErrorId.FAILED_TO_LOCK_FILE, file, e );
         }
 
-        //--------------------------------------------------------------
+        return raFile;
+    }
 
-    ////////////////////////////////////////////////////////////////////
-    //  Instance methods
-    ////////////////////////////////////////////////////////////////////
+    //------------------------------------------------------------------
 
-        private void readAttributes( RandomAccessFile raFile,
-                                     int              size )
-            throws AppException, IOException
-        {
-            // Test version
-            if ( size < OndaFile.Attributes.VERSION_SIZE )
-                throw new FileException( ErrorId.INVALID_ATTRIBUTES_CHUNK, file );
-            byte[] buffer = new byte[OndaFile.Attributes.SIZE];
-            raFile.readFully( buffer, 0, OndaFile.Attributes.VERSION_SIZE );
-            int version = NumberUtilities.bytesToIntBE( buffer, 0, OndaFile.Attributes.VERSION_SIZE );
-            if ( (version < OndaFile.MIN_SUPPORTED_VERSION) || (version > OndaFile.MAX_SUPPORTED_VERSION) )
-                throw new FileException( ErrorId.UNSUPPORTED_VERSION, file, Integer.toString( version ) );
-
-            // Read attributes
-            if ( size != OndaFile.Attributes.SIZE )
-                throw new FileException( ErrorId.INVALID_ATTRIBUTES_CHUNK, file );
-            raFile.readFully( buffer, OndaFile.Attributes.VERSION_SIZE,
-                              OndaFile.Attributes.SIZE - OndaFile.Attributes.VERSION_SIZE );
-            try
-            {
-                attributes = new OndaFile.Attributes( buffer, 0 );
-            }
-            catch ( AppException e )
-            {
-                throw new FileException( e, file );
-            }
+    private static void closeFile( File             file,
+                                   RandomAccessFile raFile )
+        throws AppException
+    {
+        try
+        {
+            raFile.close( );
         }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
+        }
+    }
 
-        //--------------------------------------------------------------
+    //------------------------------------------------------------------
 
-        private void readPrivateData( RandomAccessFile raFile,
-                                      int              size )
-            throws AppException, IOException
+    private static void closeFileIgnoreException( RandomAccessFile raFile )
+    {
+        try
         {
-            try
-            {
-                byte[] buffer = new byte[size];
-                raFile.readFully( buffer );
-                privateData = buffer;
-            }
-            catch ( OutOfMemoryError e )
-            {
-                throw new FileException( ErrorId.NOT_ENOUGH_MEMORY, file );
-            }
+            if ( raFile != null )
+                raFile.close( );
+        }
+        catch ( IOException e )
+        {
+            // ignore
         }
+    }
 
-        //--------------------------------------------------------------
+    //------------------------------------------------------------------
 
-        private void readData( RandomAccessFile raFile,
-                               int              size )
-            throws AppException, IOException
-        {
-            // Open compressed data input
-            OndaDataInput compressedDataInput = new OndaDataInput( size, attributes.numChannels,
-                                                                   attributes.bitsPerSample,
-                                                                   attributes.keyLength, raFile );
-
-            // Read compressed data and write them to output stream
-            int bytesPerSample = attributes.getBytesPerSample( );
-            int numSampleFrames = (int)attributes.numSampleFrames;
-            int[] inBuffer = new int[attributes.blockLength * attributes.numChannels];
-            byte[] outBuffer = new byte[inBuffer.length * bytesPerSample];
-            int sampleFrameIndex = 0;
-            while ( sampleFrameIndex < numSampleFrames )
+    private static OndaFileReader.Kind readFileKind( File             file,
+                                                     RandomAccessFile raFile )
+        throws AppException
+    {
+        OndaFileReader.Kind fileKind = null;
+        try
+        {
+            if ( raFile.length( ) >= Id.SIZE )
             {
-                try
+                byte[] buffer = new byte[Id.SIZE];
+                raFile.seek( 0 );
+                raFile.readFully( buffer );
+
+                if ( Arrays.equals( buffer, Document.FILE_ID ) )
+                    fileKind = OndaFileReader.Kind.NLF;
+                else
                 {
-                    // Read sample data from input
-                    int readNumSampleFrames = Math.min( numSampleFrames - sampleFrameIndex,
-                                                        attributes.blockLength );
-                    int readLength = readNumSampleFrames * attributes.numChannels;
-                    compressedDataInput.readBlock( inBuffer, 0, readLength );
-                    sampleFrameIndex += readNumSampleFrames;
-
-                    // Write sample data to output stream
-                    int offset = 0;
-                    for ( int i = 0; i < readLength; ++i )
+                    try
                     {
-                        int sampleValue = inBuffer[i];
-                        for ( int j = 0; j < bytesPerSample; ++j )
-                        {
-                            outBuffer[offset++] = (byte)sampleValue;
-                            sampleValue >>= 8;
-                        }
+                        if ( new Id( buffer ).equals( FORM_ID ) )
+                            fileKind = OndaFileReader.Kind.IFF;
+                    }
+                    catch ( IllegalArgumentException e )
+                    {
+                        // ignore
                     }
-                    outStream.write( outBuffer, 0, offset );
-                }
-                catch ( IOException e )
-                {
-                    throw new FileException( ErrorId.MALFORMED_FILE, file );
                 }
             }
+
+            if ( fileKind == null )
+                throw new FileException( ErrorId.NOT_AN_ONDA_FILE, file );
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
         }
+        return fileKind;
+    }
 
-        //--------------------------------------------------------------
+    //------------------------------------------------------------------
 
-    ////////////////////////////////////////////////////////////////////
-    //  Instance variables
-    ////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////
+//  Instance methods : OndaFileReader interface
+////////////////////////////////////////////////////////////////////////
 
-        private int                     readKind;
-        private ByteDataOutputStream    outStream;
-        private List<Id>                ids;
+    public void open( )
+        throws AppException
+    {
+        RandomAccessFile raFile = openFile( file );
+        try
+        {
+            open( raFile );
+        }
+        catch ( AppException e )
+        {
+            closeFileIgnoreException( raFile );
+            throw e;
+        }
+    }
 
+    //------------------------------------------------------------------
+
+    public void close( )
+        throws AppException
+    {
+        if ( raFile != null )
+        {
+            RandomAccessFile raFile = this.raFile;
+            this.raFile = null;
+            closeFile( file, raFile );
+        }
     }
 
-    //==================================================================
+    //------------------------------------------------------------------
 
-////////////////////////////////////////////////////////////////////////
-//  Constructors
-////////////////////////////////////////////////////////////////////////
+    public void closeIgnoreException( )
+    {
+        closeFileIgnoreException( raFile );
+        raFile = null;
+    }
 
-    public OndaFileIff( File file )
+    //------------------------------------------------------------------
+
+    public byte[] getPrivateData( )
     {
-        this.file = file;
+        return privateData;
+    }
+
+    //------------------------------------------------------------------
+
+    public OndaFile.Attributes readAttributes( )
+    {
+        testOpen( );
+        return attributes;
+    }
+
+    //------------------------------------------------------------------
+
+    public PrivateData readPrivateData( )
+        throws AppException
+    {
+        readPrivateDataChunk( );
+        return ( (privateData == null) ? null : new PrivateData( privateData ) );
+    }
+
+    //------------------------------------------------------------------
+
+    public OndaFile.Attributes readAttributesAndPrivateData( )
+        throws AppException
+    {
+        readPrivateDataChunk( );
+        return attributes;
+    }
+
+    //------------------------------------------------------------------
+
+    public OndaFile.Attributes readData( ByteDataOutputStream outStream,
+                                         ExecutorService      executor,
+                                         int                  numThreads )
+        throws AppException
+    {
+        readDataChunk( outStream, executor, numThreads, 0, -1 );
+        return attributes;
+    }
+
+    //------------------------------------------------------------------
+
+    public OndaFile.Attributes readData( ByteDataOutputStream outStream,
+                                         long                 startFrameIndex,
+                                         long                 numFrames )
+        throws AppException
+    {
+        readDataChunk( outStream, null, 1, startFrameIndex, numFrames );
+        return attributes;
     }
 
     //------------------------------------------------------------------
 
 ////////////////////////////////////////////////////////////////////////
-//  Class methods
+//  Instance methods
 ////////////////////////////////////////////////////////////////////////
 
-    public static OndaFileReader.Kind getFileKind( File file )
+    /**
+     * Reads the headers of the chunks of the IFF form from the specified open file, records the location
+     * of the private data chunk and the data chunk, and reads the attributes chunk and the block index chunk.
+     * On success, the file is kept open for subsequent reads.
+     */
+
+    private void open( RandomAccessFile raFile )
         throws AppException
     {
-        RandomAccessFile raFile = null;
+        // Test whether file is already open
+        if ( this.raFile != null )
+            throw new IllegalStateException( );
+
+        // Initialise variables
+        attributes = null;
+        privateData = null;
+        privateDataOffset = -1;
+        blockIndexData = null;
+        dataOffset = -1;
+
+        // Read chunk headers
         try
         {
-            // Open file
-            try
-            {
-                raFile = new RandomAccessFile( file, "r" );
-            }
-            catch ( FileNotFoundException e )
+            // Read header of form
+            byte[] buffer = new byte[CHUNK_HEADER_SIZE];
+            raFile.seek( 0 );
+            if ( raFile.length( ) < CHUNK_HEADER_SIZE + Id.SIZE )
+                throw new FileException( ErrorId.MALFORMED_FILE, file );
+            raFile.readFully( buffer );
+            long endOffset = CHUNK_HEADER_SIZE +
+                        (NumberUtilities.bytesToIntBE( buffer, Id.SIZE, CHUNK_SIZE_SIZE ) & 0xFFFFFFFFL);
+            if ( endOffset > raFile.length( ) )
+                throw new FileException( ErrorId.MALFORMED_FILE, file );
+            raFile.readFully( buffer, 0, Id.SIZE );
+            if ( !toId( buffer ).equals( TYPE_ID ) )
+                throw new FileException( ErrorId.NOT_AN_ONDA_FILE, file );
+
+            // Iterate over chunks in form
+            List<Id> ids = new ArrayList<>( );
+            long offset = CHUNK_HEADER_SIZE + Id.SIZE;
+            while ( offset + CHUNK_HEADER_SIZE <= endOffset )
             {
-                throw new FileException( ErrorId.FAILED_TO_OPEN_FILE, file, e );
-            }
-            catch ( SecurityException e )
-            {
-                throw new FileException( ErrorId.FILE_ACCESS_NOT_PERMITTED, file, e );
-            }
+                // Read chunk header
+                raFile.seek( offset );
+                raFile.readFully( buffer );
+                Id id = toId( buffer );
+                long size = NumberUtilities.bytesToIntBE( buffer, Id.SIZE, CHUNK_SIZE_SIZE ) & 0xFFFFFFFFL;
+                offset += CHUNK_HEADER_SIZE;
+                if ( offset + size > endOffset )
+                    throw new FileException( ErrorId.MALFORMED_FILE, file );
 
-            // Lock file
-            try
-            {
-                if ( raFile.getChannel( ).tryLock( 0, Long.MAX_VALUE, true ) == null )
-                    throw new FileException( ErrorId.FAILED_TO_LOCK_FILE, file );
-            }
-            catch ( Exception e )
-            {
-                throw new FileException( ErrorId.FAILED_TO_LOCK_FILE, file, e );
-            }
+                // Read attributes chunk
+                if ( id.equals( ATTRIBUTES_ID ) )
+                {
+                    if ( ids.contains( ATTRIBUTES_ID ) )
+                        throw new FileException( ErrorId.MULTIPLE_ATTRIBUTES_CHUNKS, file );
 
-            // Read IFF form identifier
-            OndaFileReader.Kind fileKind = null;
-            try
-            {
-                if ( raFile.length( ) >= Id.SIZE )
+                    readAttributes( raFile, size );
+                }
+
+                // Index private data chunk
+                else if ( id.equals( PRIVATE_DATA_ID ) )
                 {
-                    byte[] buffer = new byte[Id.SIZE];
-                    raFile.readFully( buffer );
+                    if ( ids.contains( DATA_ID ) )
+                        throw new FileException( ErrorId.PRIVATE_CHUNK_AFTER_DATA_CHUNK, file );
 
-                    if ( Arrays.equals( buffer, Document.FILE_ID ) )
-                        fileKind = OndaFileReader.Kind.NLF;
-                    else
-                    {
-                        try
-                        {
-                            if ( new Id( buffer ).equals( FORM_ID ) )
-                                fileKind = OndaFileReader.Kind.IFF;
-                        }
-                        catch ( IllegalArgumentException e )
-                        {
-                            // ignore
-                        }
-                    }
+                    if ( ids.contains( PRIVATE_DATA_ID ) )
+                        throw new FileException( ErrorId.MULTIPLE_PRIVATE_CHUNKS, file );
+
+                    privateDataOffset = offset;
+                    privateDataSize = size;
                 }
 
-                if ( fileKind == null )
-                    throw new FileException( ErrorId.NOT_AN_ONDA_FILE, file );
-            }
-            catch ( IOException e )
-            {
-                throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
-            }
+                // Read block index chunk
+                else if ( id.equals( DATA_BLOCK_SIZE_ID ) )
+                {
+                    if ( ids.contains( DATA_ID ) )
+                        throw new FileException( ErrorId.BLOCK_INDEX_CHUNK_AFTER_DATA_CHUNK, file );
 
-            // Close file
-            try
-            {
-                raFile.close( );
-                raFile = null;
-            }
-            catch ( IOException e )
-            {
-                throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
+                    if ( ids.contains( DATA_BLOCK_SIZE_ID ) )
+                        throw new FileException( ErrorId.MULTIPLE_BLOCK_INDEX_CHUNKS, file );
+
+                    readBlockIndexData( raFile, size );
+                }
+
+                // Index data chunk
+                else if ( id.equals( DATA_ID ) )
+                {
+                    if ( !ids.contains( ATTRIBUTES_ID ) )
+                        throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK_BEFORE_DATA_CHUNK, file );
+
+                    if ( ids.contains( DATA_ID ) )
+                        throw new FileException( ErrorId.MULTIPLE_DATA_CHUNKS, file );
+
+                    dataOffset = offset;
+                    dataSize = size;
+                }
+
+                // Add chunk ID to list
+                ids.add( id );
+
+                // Skip chunk data and any pad byte
+                offset += size + (size & 1);
             }
 
-            return fileKind;
+            // Test for missing chunks
+            if ( !ids.contains( ATTRIBUTES_ID ) )
+                throw new FileException( ErrorId.NO_ATTRIBUTES_CHUNK, file );
+            if ( !ids.contains( DATA_ID ) )
+                throw new FileException( ErrorId.NO_DATA_CHUNK, file );
         }
-        catch ( AppException e )
+        catch ( IOException e )
         {
-            // Close file
-            try
-            {
-                if ( raFile != null )
-                    raFile.close( );
-            }
-            catch ( IOException e1 )
-            {
-                // ignore
-            }
-
-            // Rethrow exception
-            throw e;
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
         }
+
+        // Keep file open for subsequent reads
+        this.raFile = raFile;
     }
 
     //------------------------------------------------------------------
 
-////////////////////////////////////////////////////////////////////////
-//  Instance methods : OndaFileReader interface
-////////////////////////////////////////////////////////////////////////
+    private Id toId( byte[] buffer )
+        throws AppException
+    {
+        try
+        {
+            return new Id( buffer, 0 );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new FileException( ErrorId.MALFORMED_FILE, file );
+        }
+    }
 
-    public byte[] getPrivateData( )
+    //------------------------------------------------------------------
+
+    private void testOpen( )
     {
-        return privateData;
+        if ( raFile == null )
+            throw new IllegalStateException( );
     }
 
     //------------------------------------------------------------------
 
-    public OndaFile.Attributes readAttributes( )
-        throws AppException
+    private void readAttributes( RandomAccessFile raFile,
+                                 long             size )
+        throws AppException, IOException
     {
-        ChunkReader reader = new ChunkReader( READ_ATTRIBUTES, null );
-        new IffFormFile( file ).read( reader );
-        return attributes;
+        // Test version
+        if ( size < OndaFile.Attributes.VERSION_SIZE )
+            throw new FileException( ErrorId.INVALID_ATTRIBUTES_CHUNK, file );
+        byte[] buffer = new byte[OndaFile.Attributes.SIZE];
+        raFile.readFully( buffer, 0, OndaFile.Attributes.VERSION_SIZE );
+        int version = NumberUtilities.bytesToIntBE( buffer, 0, OndaFile.Attributes.VERSION_SIZE );
+        if ( (version < OndaFile.MIN_SUPPORTED_VERSION) || (version > OndaFile.MAX_SUPPORTED_VERSION) )
+            throw new FileException( ErrorId.UNSUPPORTED_VERSION, file, Integer.toString( version ) );
+
+        // Read attributes
+        if ( size != OndaFile.Attributes.SIZE )
+            throw new FileException( ErrorId.INVALID_ATTRIBUTES_CHUNK, file );
+        raFile.readFully( buffer, OndaFile.Attributes.VERSION_SIZE,
+                          OndaFile.Attributes.SIZE - OndaFile.Attributes.VERSION_SIZE );
+        try
+        {
+            attributes = new OndaFile.Attributes( buffer, 0 );
+        }
+        catch ( AppException e )
+        {
+            throw new FileException( e, file );
+        }
     }
 
     //------------------------------------------------------------------
 
-    public PrivateData readPrivateData( )
-        throws AppException
+    private void readBlockIndexData( RandomAccessFile raFile,
+                                     long             size )
+        throws AppException, IOException
     {
-        ChunkReader reader = new ChunkReader( READ_PRIVATE_DATA, null );
-        new IffFormFile( file ).read( reader );
-        return ( (privateData == null) ? null : new PrivateData( privateData ) );
+        if ( size > OndaFile.BlockIndex.HEADER_SIZE +
+                                    OndaFile.BlockIndex.MAX_NUM_ENTRIES * OndaFile.BlockIndex.OFFSET_SIZE )
+            throw new FileException( ErrorId.INVALID_BLOCK_INDEX_CHUNK, file );
+
+        blockIndexData = new byte[(int)size];
+        raFile.readFully( blockIndexData );
     }
 
     //------------------------------------------------------------------
 
-    public OndaFile.Attributes readAttributesAndPrivateData( )
+    private void readPrivateDataChunk( )
         throws AppException
     {
-        ChunkReader reader = new ChunkReader( READ_ATTRIBUTES | READ_PRIVATE_DATA, null );
-        new IffFormFile( file ).read( reader );
-        return attributes;
+        // Test whether private data have been read
+        testOpen( );
+        if ( (privateData != null) || (privateDataOffset < 0) )
+            return;
+
+        // Test size of private data
+        if ( privateDataSize > Integer.MAX_VALUE )
+            throw new FileException( ErrorId.NOT_ENOUGH_MEMORY, file );
+
+        // Read private data
+        try
+        {
+            byte[] buffer = new byte[(int)privateDataSize];
+            raFile.seek( privateDataOffset );
+            raFile.readFully( buffer );
+            privateData = buffer;
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
+        }
+        catch ( OutOfMemoryError e )
+        {
+            throw new FileException( ErrorId.NOT_ENOUGH_MEMORY, file );
+        }
     }
 
     //------------------------------------------------------------------
 
-    public OndaFile.Attributes readData( ByteDataOutputStream outStream )
+    /**
+     * Decodes sample data from the data chunk of the open file and writes them to the specified stream.
+     *
+     * @param numFrames  the number of sample frames that are to be read from the data chunk, or -1 to read
+     *                   all the sample frames from {@code startFrameIndex} to the end of the data.
+     */
+
+    private void readDataChunk( ByteDataOutputStream outStream,
+                                ExecutorService      executor,
+                                int                  numThreads,
+                                long                 startFrameIndex,
+                                long                 numFrames )
         throws AppException
     {
-        ChunkReader reader = new ChunkReader( READ_ATTRIBUTES | READ_DATA, outStream );
-        new IffFormFile( file ).read( reader );
-        return attributes;
+        // Parse block index
+        testOpen( );
+        OndaFile.BlockIndex blockIndex = null;
+        if ( blockIndexData != null )
+        {
+            try
+            {
+                blockIndex = new OndaFile.BlockIndex( blockIndexData, 0, blockIndexData.length, attributes,
+                                                      dataSize );
+            }
+            catch ( AppException e )
+            {
+                throw new FileException( e, file );
+            }
+        }
+
+        // Decode compressed data from memory-mapped windows of the file and write them to output stream
+        if ( numFrames < 0 )
+            numFrames = attributes.numSampleFrames - startFrameIndex;
+        try
+        {
+            new OndaDataDecoder( attributes, blockIndex ).decode( raFile.getChannel( ), dataOffset, dataSize,
+                                                                  outStream, executor, numThreads,
+                                                                  startFrameIndex, numFrames );
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.MALFORMED_FILE, file );
+        }
     }
 
     //------------------------------------------------------------------
@@ -533,8 +718,14 @@ class OndaFileIff
 ////////////////////////////////////////////////////////////////////////
 
     private File                file;
+    private RandomAccessFile    raFile;
     private OndaFile.Attributes attributes;
     private byte[]              privateData;
+    private long                privateDataOffset;
+    private long                privateDataSize;
+    private byte[]              blockIndexData;
+    private long                dataOffset;
+    private long                dataSize;
 
 }
 
@@ -12,6 +12,8 @@ Onda file reader interface.
 
 import java.io.File;
 
+import java.util.concurrent.ExecutorService;
+
 import uk.org.blankaspect.exception.AppException;
 
 import uk.org.blankaspect.util.ByteDataOutputStream;
@@ -84,6 +86,40 @@ interface OndaFileReader
 //  Methods
 ////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Opens the file, reads the structure of its chunks and its attributes, and keeps the file open so that
+     * the other read methods can be served without reopening it.  The read methods may be called only while
+     * the file is open.
+     *
+     * @throws AppException
+     *           if the file could not be opened or its structure is not valid.
+     */
+
+    void open( )
+        throws AppException;
+
+    //------------------------------------------------------------------
+
+    /**
+     * Closes the file if it is open.
+     *
+     * @throws AppException
+     *           if an error occurred when closing the file.
+     */
+
+    void close( )
+        throws AppException;
+
+    //------------------------------------------------------------------
+
+    /**
+     * Closes the file if it is open, ignoring any error.
+     */
+
+    void closeIgnoreException( );
+
+    //------------------------------------------------------------------
+
     byte[] getPrivateData( );
 
     //------------------------------------------------------------------
@@ -103,7 +139,16 @@ interface OndaFileReader
 
     //------------------------------------------------------------------
 
-    OndaFile.Attributes readData( ByteDataOutputStream outStream )
+    OndaFile.Attributes readData( ByteDataOutputStream outStream,
+                                  ExecutorService      executor,
+                                  int                  numThreads )
+        throws AppException;
+
+    //------------------------------------------------------------------
+
+    OndaFile.Attributes readData( ByteDataOutputStream outStream,
+                                  long                 startFrameIndex,
+                                  long                 numFrames )
         throws AppException;
 
     //------------------------------------------------------------------
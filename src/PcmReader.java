@@ -0,0 +1,359 @@
+/*====================================================================*\
+
+PcmReader.java
+
+PCM sample data reader class.
+
+\*====================================================================*/
+
+
+// IMPORTS
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.channels.FileChannel;
+
+import uk.org.blankaspect.exception.AppException;
+import uk.org.blankaspect.exception.FileException;
+
+//----------------------------------------------------------------------
+
+
+// PCM SAMPLE DATA READER CLASS
+
+
+/**
+ * This class reads the PCM sample data of a WAVE or AIFF file through a file channel.  The data are read
+ * from the channel in large blocks into a direct buffer, from which they are transferred to the buffers of
+ * the caller.  If the sample values in the file are big-endian, they are converted to little-endian as they
+ * are transferred, so that the caller always receives little-endian sample data.
+ * <p>
+ * A reader may be used for successive files: the direct buffer is allocated when the reader is first
+ * opened, and it is kept when the reader is closed.
+ * </p>
+ */
+
+class PcmReader
+{
+
+////////////////////////////////////////////////////////////////////////
+//  Constants
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The capacity of the direct buffer into which sample data are read from the file.
+     */
+    public static final     int READ_BUFFER_LENGTH  = 1 << 20;  // 1 MiB
+
+////////////////////////////////////////////////////////////////////////
+//  Enumerated types
+////////////////////////////////////////////////////////////////////////
+
+
+    // ERROR IDENTIFIERS
+
+
+    private enum ErrorId
+        implements AppException.Id
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constants
+    ////////////////////////////////////////////////////////////////////
+
+        FAILED_TO_OPEN_FILE
+        ( "Failed to open the file." ),
+
+        FAILED_TO_CLOSE_FILE
+        ( "Failed to close the file." ),
+
+        ERROR_READING_FILE
+        ( "An error occurred when reading the file." ),
+
+        FILE_ACCESS_NOT_PERMITTED
+        ( "Access to the file was not permitted." ),
+
+        PREMATURE_END_OF_SAMPLE_DATA
+        ( "The file ended before the end of its sample data." );
+
+    ////////////////////////////////////////////////////////////////////
+    //  Constructors
+    ////////////////////////////////////////////////////////////////////
+
+        private ErrorId( String message )
+        {
+            this.message = message;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance methods : AppException.Id interface
+    ////////////////////////////////////////////////////////////////////
+
+        public String getMessage( )
+        {
+            return message;
+        }
+
+        //--------------------------------------------------------------
+
+    ////////////////////////////////////////////////////////////////////
+    //  Instance variables
+    ////////////////////////////////////////////////////////////////////
+
+        private String  message;
+
+    }
+
+    //==================================================================
+
+////////////////////////////////////////////////////////////////////////
+//  Constructors
+////////////////////////////////////////////////////////////////////////
+
+    public PcmReader( )
+    {
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens a file for reading its sample data.
+     *
+     * @param file                 the file.
+     * @param offset               the offset of the first sample frame in the file.
+     * @param length               the length of the sample data in bytes.
+     * @param bytesPerSample       the number of bytes in a sample value.
+     * @param bytesPerSampleFrame  the number of bytes in a sample frame.
+     * @param bigEndian            {@code true} if the sample values in the file are big-endian.
+     * @throws AppException
+     *           if the file could not be opened.
+     */
+
+    public void open( File    file,
+                      long    offset,
+                      long    length,
+                      int     bytesPerSample,
+                      int     bytesPerSampleFrame,
+                      boolean bigEndian )
+        throws AppException
+    {
+        // Open file
+        try
+        {
+            raFile = new RandomAccessFile( file, "r" );
+        }
+        catch ( FileNotFoundException e )
+        {
+            throw new FileException( ErrorId.FAILED_TO_OPEN_FILE, file, e );
+        }
+        catch ( SecurityException e )
+        {
+            throw new FileException( ErrorId.FILE_ACCESS_NOT_PERMITTED, file, e );
+        }
+        channel = raFile.getChannel( );
+
+        // Set position of channel to start of sample data
+        try
+        {
+            if ( length > 0 )
+                channel.position( offset );
+        }
+        catch ( IOException e )
+        {
+            closeIgnoreException( );
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
+        }
+
+        // Allocate read buffer
+        if ( readBuffer == null )
+            readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_LENGTH );
+        readBuffer.order( bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN );
+        readBuffer.clear( ).limit( 0 );
+
+        // Initialise remaining instance variables
+        this.file = file;
+        this.bytesPerSample = bytesPerSample;
+        this.bigEndian = bigEndian;
+        fillLength = Math.max( 1, READ_BUFFER_LENGTH / bytesPerSampleFrame ) * bytesPerSampleFrame;
+        remainingLength = length;
+    }
+
+    //------------------------------------------------------------------
+
+    public void close( )
+        throws AppException
+    {
+        if ( raFile != null )
+        {
+            try
+            {
+                raFile.close( );
+            }
+            catch ( IOException e )
+            {
+                throw new FileException( ErrorId.FAILED_TO_CLOSE_FILE, file, e );
+            }
+            finally
+            {
+                raFile = null;
+                channel = null;
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    public void closeIgnoreException( )
+    {
+        try
+        {
+            close( );
+        }
+        catch ( AppException e )
+        {
+            // ignore
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Reads the next sample data from the file into the specified buffer as little-endian sample values.
+     *
+     * @param buffer  the buffer into which the sample data will be read.
+     * @param offset  the offset in the buffer at which the first byte will be stored.
+     * @param length  the number of bytes to read, which must be a multiple of the length of a sample frame.
+     * @throws AppException
+     *           if an error occurred when reading the file, or if the file ended before the end of the
+     *           sample data.
+     */
+
+    public void read( byte[] buffer,
+                      int    offset,
+                      int    length )
+        throws AppException
+    {
+        while ( length > 0 )
+        {
+            // Fill read buffer from file
+            if ( !readBuffer.hasRemaining( ) )
+                fillReadBuffer( );
+
+            // Transfer sample data to caller's buffer, converting them to little-endian if necessary
+            int transferLength = Math.min( length, readBuffer.remaining( ) );
+            if ( bigEndian )
+                getReversed( buffer, offset, transferLength );
+            else
+                readBuffer.get( buffer, offset, transferLength );
+
+            // Update offset and length
+            offset += transferLength;
+            length -= transferLength;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Fills the read buffer with the next sample data from the file.  The length of the data in the buffer
+     * is a multiple of the length of a sample frame, so a sample value never straddles two fills.
+     */
+
+    private void fillReadBuffer( )
+        throws AppException
+    {
+        if ( remainingLength <= 0 )
+            throw new FileException( ErrorId.PREMATURE_END_OF_SAMPLE_DATA, file );
+
+        readBuffer.clear( ).limit( (int)Math.min( remainingLength, fillLength ) );
+        try
+        {
+            while ( readBuffer.hasRemaining( ) )
+            {
+                if ( channel.read( readBuffer ) < 0 )
+                    throw new FileException( ErrorId.PREMATURE_END_OF_SAMPLE_DATA, file );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new FileException( ErrorId.ERROR_READING_FILE, file, e );
+        }
+        readBuffer.flip( );
+        remainingLength -= readBuffer.remaining( );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Transfers big-endian sample values from the read buffer to the specified buffer, reversing the order
+     * of the bytes of each value.
+     */
+
+    private void getReversed( byte[] buffer,
+                              int    offset,
+                              int    length )
+    {
+        int endOffset = offset + length;
+        switch ( bytesPerSample )
+        {
+            case 2:
+                while ( offset < endOffset )
+                {
+                    short value = readBuffer.getShort( );
+                    buffer[offset++] = (byte)value;
+                    buffer[offset++] = (byte)(value >> 8);
+                }
+                break;
+
+            case 3:
+                while ( offset < endOffset )
+                {
+                    int value = (readBuffer.getShort( ) << 8) | (readBuffer.get( ) & 0xFF);
+                    buffer[offset++] = (byte)value;
+                    buffer[offset++] = (byte)(value >> 8);
+                    buffer[offset++] = (byte)(value >> 16);
+                }
+                break;
+
+            default:
+                while ( offset < endOffset )
+                {
+                    for ( int i = offset + bytesPerSample - 1; i >= offset; --i )
+                        buffer[i] = readBuffer.get( );
+                    offset += bytesPerSample;
+                }
+                break;
+        }
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private File                file;
+    private RandomAccessFile    raFile;
+    private FileChannel         channel;
+    private ByteBuffer          readBuffer;
+    private int                 bytesPerSample;
+    private boolean             bigEndian;
+    private int                 fillLength;
+    private long                remainingLength;
+
+}
+
+//----------------------------------------------------------------------
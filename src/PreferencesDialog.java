@@ -113,9 +113,18 @@ class PreferencesDialog
     private static final    String  NO_LOOK_AND_FEELS_STR       = "<no look-and-feels>";
 
     // Compression panel
-    private static final    int     BLOCK_LENGTH_FIELD_LENGTH   = 5;
-
-    private static final    String  BLOCK_LENGTH_STR    = "Block length:";
+    private static final    int     BLOCK_LENGTH_FIELD_LENGTH           = 5;
+    private static final    int     NUM_ENCODER_THREADS_FIELD_LENGTH    = 2;
+    private static final    int     NUM_DECODER_THREADS_FIELD_LENGTH    = 2;
+    private static final    int     NUM_BLOCK_BUFFERS_FIELD_LENGTH      = 3;
+    private static final    int     NUM_CONCURRENT_FILES_FIELD_LENGTH   = 2;
+
+    private static final    String  BLOCK_LENGTH_STR        = "Block length:";
+    private static final    String  HIGH_RATIO_STR          = "High ratio:";
+    private static final    String  NUM_ENCODER_THREADS_STR = "Number of encoder threads:";
+    private static final    String  NUM_DECODER_THREADS_STR = "Number of decoder threads:";
+    private static final    String  NUM_BLOCK_BUFFERS_STR   = "Number of block buffers:";
+    private static final    String  NUM_CONCURRENT_FILES_STR    = "Number of concurrent files:";
 
     // Chunk filters panel
     private static final    Insets  EDIT_BUTTON_MARGINS = new Insets( 2, 4, 2, 4 );
@@ -1294,6 +1303,167 @@ class PreferencesDialog
         gridBag.setConstraints( blockLengthSpinner, gbc );
         controlPanel.add( blockLengthSpinner );
 
+        // Label: high ratio
+        JLabel highRatioLabel = new FLabel( HIGH_RATIO_STR );
+
+        gbc.gridx = 0;
+        gbc.gridy = gridY;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_END;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( highRatioLabel, gbc );
+        controlPanel.add( highRatioLabel );
+
+        // Combo box: high ratio
+        highRatioComboBox = new BooleanComboBox( config.isHighRatio( ) );
+
+        gbc.gridx = 1;
+        gbc.gridy = gridY++;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( highRatioComboBox, gbc );
+        controlPanel.add( highRatioComboBox );
+
+        // Label: number of encoder threads
+        JLabel numEncoderThreadsLabel = new FLabel( NUM_ENCODER_THREADS_STR );
+
+        gbc.gridx = 0;
+        gbc.gridy = gridY;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_END;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numEncoderThreadsLabel, gbc );
+        controlPanel.add( numEncoderThreadsLabel );
+
+        // Spinner: number of encoder threads
+        numEncoderThreadsSpinner = new FIntegerSpinner( config.getNumEncoderThreads( ),
+                                                        OndaFile.MIN_NUM_ENCODER_THREADS,
+                                                        OndaFile.MAX_NUM_ENCODER_THREADS,
+                                                        NUM_ENCODER_THREADS_FIELD_LENGTH );
+
+        gbc.gridx = 1;
+        gbc.gridy = gridY++;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numEncoderThreadsSpinner, gbc );
+        controlPanel.add( numEncoderThreadsSpinner );
+
+        // Label: number of decoder threads
+        JLabel numDecoderThreadsLabel = new FLabel( NUM_DECODER_THREADS_STR );
+
+        gbc.gridx = 0;
+        gbc.gridy = gridY;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_END;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numDecoderThreadsLabel, gbc );
+        controlPanel.add( numDecoderThreadsLabel );
+
+        // Spinner: number of decoder threads
+        numDecoderThreadsSpinner = new FIntegerSpinner( config.getNumDecoderThreads( ),
+                                                        OndaFile.MIN_NUM_DECODER_THREADS,
+                                                        OndaFile.MAX_NUM_DECODER_THREADS,
+                                                        NUM_DECODER_THREADS_FIELD_LENGTH );
+
+        gbc.gridx = 1;
+        gbc.gridy = gridY++;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numDecoderThreadsSpinner, gbc );
+        controlPanel.add( numDecoderThreadsSpinner );
+
+        // Label: number of block buffers
+        JLabel numBlockBuffersLabel = new FLabel( NUM_BLOCK_BUFFERS_STR );
+
+        gbc.gridx = 0;
+        gbc.gridy = gridY;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_END;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numBlockBuffersLabel, gbc );
+        controlPanel.add( numBlockBuffersLabel );
+
+        // Spinner: number of block buffers
+        numBlockBuffersSpinner = new FIntegerSpinner( config.getNumBlockBuffers( ),
+                                                      BlockRing.MIN_NUM_SLOTS, BlockRing.MAX_NUM_SLOTS,
+                                                      NUM_BLOCK_BUFFERS_FIELD_LENGTH );
+
+        gbc.gridx = 1;
+        gbc.gridy = gridY++;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numBlockBuffersSpinner, gbc );
+        controlPanel.add( numBlockBuffersSpinner );
+
+        // Label: number of concurrent files
+        JLabel numConcurrentFilesLabel = new FLabel( NUM_CONCURRENT_FILES_STR );
+
+        gbc.gridx = 0;
+        gbc.gridy = gridY;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_END;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numConcurrentFilesLabel, gbc );
+        controlPanel.add( numConcurrentFilesLabel );
+
+        // Spinner: number of concurrent files
+        numConcurrentFilesSpinner = new FIntegerSpinner( config.getNumConcurrentFiles( ),
+                                                         App.MIN_NUM_CONCURRENT_FILES,
+                                                         App.MAX_NUM_CONCURRENT_FILES,
+                                                         NUM_CONCURRENT_FILES_FIELD_LENGTH );
+
+        gbc.gridx = 1;
+        gbc.gridy = gridY++;
+        gbc.gridwidth = 1;
+        gbc.gridheight = 1;
+        gbc.weightx = 0.0;
+        gbc.weighty = 0.0;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.insets = AppConstants.COMPONENT_INSETS;
+        gridBag.setConstraints( numConcurrentFilesSpinner, gbc );
+        controlPanel.add( numConcurrentFilesSpinner );
+
 
         //----  Outer panel
 
@@ -1614,6 +1784,11 @@ class PreferencesDialog
     {
         AppConfig config = AppConfig.getInstance( );
         config.setBlockLength( blockLengthSpinner.getIntValue( ) );
+        config.setHighRatio( highRatioComboBox.getSelectedValue( ) );
+        config.setNumEncoderThreads( numEncoderThreadsSpinner.getIntValue( ) );
+        config.setNumDecoderThreads( numDecoderThreadsSpinner.getIntValue( ) );
+        config.setNumBlockBuffers( numBlockBuffersSpinner.getIntValue( ) );
+        config.setNumConcurrentFiles( numConcurrentFilesSpinner.getIntValue( ) );
     }
 
     //------------------------------------------------------------------
@@ -1678,6 +1853,11 @@ class PreferencesDialog
 
     // Compression panel
     private FIntegerSpinner                             blockLengthSpinner;
+    private BooleanComboBox                             highRatioComboBox;
+    private FIntegerSpinner                             numEncoderThreadsSpinner;
+    private FIntegerSpinner                             numDecoderThreadsSpinner;
+    private FIntegerSpinner                             numBlockBuffersSpinner;
+    private FIntegerSpinner                             numConcurrentFilesSpinner;
 
     // Chunk filters panel
     private Map<AudioFileKind, JComboBox<ChunkFilter>>  chunkFilterComboBoxes;
@@ -13,6 +13,8 @@ Private data class.
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -363,13 +365,30 @@ class PrivateData
 
     //------------------------------------------------------------------
 
-    public void setChunk( int   index,
-                          Chunk chunk )
+    public Id getChunkId( int index )
+    {
+        return sourceChunks.get( index ).id;
+    }
+
+    //------------------------------------------------------------------
+
+    public int getChunkSize( int index )
+    {
+        return sourceChunks.get( index ).size;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Returns a read-only buffer that contains the expanded data of the chunk at the specified index.
+     */
+
+    public ByteBuffer getChunkData( int index )
     {
         int offset = 0;
         for ( int i = 0; i < index; ++i )
             offset += sourceChunks.get( i ).size;
-        chunk.set( sourceChunks.get( index ).id, expandedData, offset, sourceChunks.get( index ).size );
+        return ByteBuffer.wrap( expandedData, offset, sourceChunks.get( index ).size ).asReadOnlyBuffer( );
     }
 
     //------------------------------------------------------------------
@@ -14,12 +14,15 @@ import java.io.File;
 
 import java.util.List;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
 import uk.org.blankaspect.exception.AppException;
 import uk.org.blankaspect.exception.TaskCancelledException;
 
 import uk.org.blankaspect.gui.ProgressView;
 
-import uk.org.blankaspect.iff.Chunk;
 import uk.org.blankaspect.iff.ChunkFilter;
 
 //----------------------------------------------------------------------
@@ -32,6 +35,34 @@ abstract class Task
     extends uk.org.blankaspect.util.Task
 {
 
+////////////////////////////////////////////////////////////////////////
+//  Member interfaces
+////////////////////////////////////////////////////////////////////////
+
+
+    // CANCELLATION LISTENER INTERFACE
+
+
+    interface CancellationListener
+    {
+
+    ////////////////////////////////////////////////////////////////////
+    //  Methods
+    ////////////////////////////////////////////////////////////////////
+
+        /**
+         * Called in the thread that cancelled the task.  The listener should wake any thread that it has
+         * blocked, so that the thread can detect the cancellation.
+         */
+
+        void taskCancelled( );
+
+        //--------------------------------------------------------------
+
+    }
+
+    //==================================================================
+
 ////////////////////////////////////////////////////////////////////////
 //  Member classes : non-inner classes
 ////////////////////////////////////////////////////////////////////////
@@ -78,8 +109,8 @@ abstract class Task
             // Terminate other task threads
             setCancelled( true );
 
-            // Remove thread
-            removeThread( );
+            // Remove thread and signal completion
+            complete( null );
         }
 
         //--------------------------------------------------------------
@@ -136,8 +167,8 @@ abstract class Task
             // Terminate other task threads
             setCancelled( true );
 
-            // Remove thread
-            removeThread( );
+            // Remove thread and signal completion
+            complete( null );
         }
 
         //--------------------------------------------------------------
@@ -186,8 +217,8 @@ abstract class Task
             // Terminate other task threads
             setCancelled( true );
 
-            // Remove thread
-            removeThread( );
+            // Remove thread and signal completion
+            complete( null );
         }
 
         //--------------------------------------------------------------
@@ -233,6 +264,7 @@ abstract class Task
         public void run( )
         {
             // Perform task
+            AppException exception = null;
             try
             {
                 fileProcessor.writeCompressedFile( file, privateData );
@@ -243,11 +275,25 @@ abstract class Task
             }
             catch ( AppException e )
             {
-                setException( e, false );
+                // Abort transfer of sample data; the exception belongs to the file, not to the task
+                exception = e;
+                fileProcessor.writerFailed( e );
+            }
+            catch ( RuntimeException e )
+            {
+                // Abort transfer of sample data so that the primary thread does not wait for it indefinitely
+                exception = fileProcessor.writerFailed( file, e );
+            }
+            catch ( Error e )
+            {
+                // Abort transfer of sample data so that the primary thread does not wait for it indefinitely
+                exception = fileProcessor.writerFailed( file, e );
+            }
+            finally
+            {
+                // Remove thread and signal completion to file processor
+                complete( exception );
             }
-
-            // Remove thread
-            removeThread( );
         }
 
         //--------------------------------------------------------------
@@ -279,12 +325,12 @@ abstract class Task
         public WriteExpanded( FileProcessor  fileProcessor,
                               File           file,
                               AudioFileKind  fileKind,
-                              List<Chunk>    chunks )
+                              PrivateData    privateData )
         {
             this.fileProcessor = fileProcessor;
             this.file = file;
             this.fileKind = fileKind;
-            this.chunks = chunks;
+            this.privateData = privateData;
         }
 
         //--------------------------------------------------------------
@@ -296,9 +342,10 @@ abstract class Task
         public void run( )
         {
             // Perform task
+            AppException exception = null;
             try
             {
-                fileProcessor.writeExpandedFile( file, fileKind, chunks );
+                fileProcessor.writeExpandedFile( file, fileKind, privateData );
             }
             catch ( TaskCancelledException e )
             {
@@ -306,11 +353,25 @@ abstract class Task
             }
             catch ( AppException e )
             {
-                setException( e, false );
+                // Abort transfer of sample data; the exception belongs to the file, not to the task
+                exception = e;
+                fileProcessor.writerFailed( e );
+            }
+            catch ( RuntimeException e )
+            {
+                // Abort transfer of sample data so that the primary thread does not wait for it indefinitely
+                exception = fileProcessor.writerFailed( file, e );
+            }
+            catch ( Error e )
+            {
+                // Abort transfer of sample data so that the primary thread does not wait for it indefinitely
+                exception = fileProcessor.writerFailed( file, e );
+            }
+            finally
+            {
+                // Remove thread and signal completion to file processor
+                complete( exception );
             }
-
-            // Remove thread
-            removeThread( );
         }
 
         //--------------------------------------------------------------
@@ -322,7 +383,7 @@ abstract class Task
         private FileProcessor   fileProcessor;
         private File            file;
         private AudioFileKind   fileKind;
-        private List<Chunk>     chunks;
+        private PrivateData     privateData;
 
     }
 
@@ -367,8 +428,8 @@ abstract class Task
                 setException( e, false );
             }
 
-            // Remove thread
-            removeThread( );
+            // Remove thread and signal completion
+            complete( null );
         }
 
         //--------------------------------------------------------------
@@ -389,6 +450,7 @@ abstract class Task
 
     private Task( )
     {
+        completion = new CountDownLatch( 1 );
     }
 
     //------------------------------------------------------------------
@@ -397,6 +459,48 @@ abstract class Task
 //  Class methods
 ////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Sets or clears the cancelled state of the task.  When the task is cancelled, the cancellation
+     * listeners are notified so that every thread that is blocked in the task pipeline wakes immediately,
+     * rather than detecting the cancellation the next time that it polls the cancelled state.
+     *
+     * @param cancelled  {@code true} if the task is cancelled.
+     */
+
+    public static void setCancelled( boolean cancelled )
+    {
+        uk.org.blankaspect.util.Task.setCancelled( cancelled );
+        if ( cancelled )
+        {
+            for ( CancellationListener listener : cancellationListeners )
+                listener.taskCancelled( );
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Adds a listener that is notified when the task is cancelled.  A listener that is added after the task
+     * has been cancelled is not notified, so a thread that registers a listener before it blocks must test
+     * the cancelled state after registering the listener.
+     *
+     * @param listener  the listener that will be added.
+     */
+
+    public static void addCancellationListener( CancellationListener listener )
+    {
+        cancellationListeners.add( listener );
+    }
+
+    //------------------------------------------------------------------
+
+    public static void removeCancellationListener( CancellationListener listener )
+    {
+        cancellationListeners.remove( listener );
+    }
+
+    //------------------------------------------------------------------
+
     public static void setInfo( String str )
     {
         ProgressView progressView = getProgressView( );
@@ -425,6 +529,88 @@ abstract class Task
 
     //------------------------------------------------------------------
 
+////////////////////////////////////////////////////////////////////////
+//  Class variables
+////////////////////////////////////////////////////////////////////////
+
+    private static  List<CancellationListener>  cancellationListeners   = new CopyOnWriteArrayList<>( );
+
+////////////////////////////////////////////////////////////////////////
+//  Instance methods
+////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs this task on a thread of the specified executor, rather than on a new thread.  The thread is not
+     * registered with the task framework, so the task does not count towards the number of task threads;
+     * the thread that submits the task should wait for it with {@link #awaitCompletion()}.
+     *
+     * @param executor  the executor on which the task will be run.
+     */
+
+    public void execute( Executor executor )
+    {
+        pooled = true;
+        executor.execute( this );
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Waits for the thread of this task to finish, and throws the exception that caused it to fail, if
+     * there was one.  The exception of a write task belongs to the file that it was writing; it is not
+     * the exception of the task framework, which is thrown by {@link #throwIfException()}.
+     *
+     * @throws AppException
+     *           if the thread of this task failed.
+     */
+
+    public void awaitCompletion( )
+        throws AppException
+    {
+        while ( true )
+        {
+            try
+            {
+                completion.await( );
+                break;
+            }
+            catch ( InterruptedException e )
+            {
+                // ignore
+            }
+        }
+        if ( completionException != null )
+            throw completionException;
+    }
+
+    //------------------------------------------------------------------
+
+    /**
+     * Runs in the thread of this task when the thread finishes.  Removes the thread from the task
+     * framework, unless it is a thread of an executor, and wakes the threads that are waiting for this task
+     * to complete.
+     *
+     * @param exception  the exception that caused the thread to fail, or {@code null} if it did not fail.
+     */
+
+    protected void complete( AppException exception )
+    {
+        if ( !pooled )
+            removeThread( );
+        completionException = exception;
+        completion.countDown( );
+    }
+
+    //------------------------------------------------------------------
+
+////////////////////////////////////////////////////////////////////////
+//  Instance variables
+////////////////////////////////////////////////////////////////////////
+
+    private boolean                 pooled;
+    private CountDownLatch          completion;
+    private volatile AppException  completionException;
+
 }
 
 //----------------------------------------------------------------------
@@ -43,6 +43,7 @@ import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import uk.org.blankaspect.exception.AppException;
 
@@ -78,13 +79,17 @@ class TaskProgressDialog
     private static final    int PROGRESS_BAR_HEIGHT     = 15;
     private static final    int PROGRESS_BAR_MAX_VALUE  = 10000;
 
+    private static final    int PROGRESS_UPDATE_INTERVAL    = 50;   // 20 Hz
+    private static final    int TIME_UPDATE_INTERVAL        = 500;
+
     private static final    String  TIME_ELAPSED_STR    = "Time elapsed:";
     private static final    String  TIME_REMAINING_STR  = "Estimated time remaining:";
 
     // Commands
     private interface Command
     {
-        String  CLOSE   = "close";
+        String  CLOSE           = "close";
+        String  UPDATE_PROGRESS = "updateProgress";
     }
 
 ////////////////////////////////////////////////////////////////////////
@@ -344,12 +349,6 @@ class TaskProgressDialog
         implements Runnable
     {
 
-    ////////////////////////////////////////////////////////////////////
-    //  Constants
-    ////////////////////////////////////////////////////////////////////
-
-        private static final    int UPDATE_INTERVAL = 500;
-
     ////////////////////////////////////////////////////////////////////
     //  Constructors
     ////////////////////////////////////////////////////////////////////
@@ -367,47 +366,7 @@ class TaskProgressDialog
 
         public void run( )
         {
-            if ( value < 0.0 )
-            {
-                fileProgressBar.setIndeterminate( true );
-
-                timeElapsedField.setText( null );
-                timeRemainingField.setText( null );
-            }
-            else
-            {
-                if ( fileProgressBar.isIndeterminate( ) )
-                    fileProgressBar.setIndeterminate( false );
-                fileProgressBar.setValue( (int)Math.round( value * (double)PROGRESS_BAR_MAX_VALUE ) );
-
-                boolean reset = (value == 0.0);
-                if ( overallProgressBar != null )
-                {
-                    reset = reset && (fileLengthOffset == 0);
-                    value = (value * (double)fileLength + (double)fileLengthOffset) * fileLengthFactor;
-                    overallProgressBar.
-                                    setValue( (int)Math.round( value * (double)PROGRESS_BAR_MAX_VALUE ) );
-                }
-
-                if ( reset )
-                {
-                    startTime = System.currentTimeMillis( );
-                    timeElapsedField.setTime( 0 );
-                    timeRemainingField.setText( null );
-                }
-                else
-                {
-                    long currentTime = System.currentTimeMillis( );
-                    if ( currentTime >= updateTime )
-                    {
-                        long timeElapsed = currentTime - startTime;
-                        timeElapsedField.setTime( (int)timeElapsed );
-                        timeRemainingField.setTime( (int)Math.round( (1.0 / value - 1.0) *
-                                                                            (double)timeElapsed ) + 500 );
-                        updateTime = currentTime + UPDATE_INTERVAL;
-                    }
-                }
-            }
+            updateProgress( value );
         }
 
         //--------------------------------------------------------------
@@ -450,6 +409,7 @@ class TaskProgressDialog
             Task.setProgressView( (TaskProgressDialog)event.getWindow( ) );
             Task.setException( null, true );
             Task.setCancelled( false );
+            progressTimer.start( );
             task.start( );
         }
 
@@ -467,6 +427,14 @@ class TaskProgressDialog
 
         //--------------------------------------------------------------
 
+        @Override
+        public void windowClosed( WindowEvent event )
+        {
+            progressTimer.stop( );
+        }
+
+        //--------------------------------------------------------------
+
     }
 
     //==================================================================
@@ -491,6 +459,8 @@ class TaskProgressDialog
 
         // Initialise instance variables
         this.task = task;
+        progressTimer = new Timer( PROGRESS_UPDATE_INTERVAL, this );
+        progressTimer.setActionCommand( Command.UPDATE_PROGRESS );
 
 
         //----  Info field
@@ -750,8 +720,13 @@ class TaskProgressDialog
 
     public void actionPerformed( ActionEvent event )
     {
-        if ( event.getActionCommand( ).equals( Command.CLOSE ) )
+        String command = event.getActionCommand( );
+
+        if ( command.equals( Command.CLOSE ) )
             onClose( );
+
+        else if ( command.equals( Command.UPDATE_PROGRESS ) )
+            onUpdateProgress( );
     }
 
     //------------------------------------------------------------------
@@ -775,10 +750,19 @@ class TaskProgressDialog
 
     //------------------------------------------------------------------
 
+    /**
+     * Records the progress of the task.  This method may be called for every block of a file, so a positive
+     * value is only stored, and the progress timer displays the latest value at regular intervals.  A value
+     * of zero (the start of a file) or a negative value (indeterminate progress) is displayed immediately,
+     * so that it cannot be overwritten before it has been displayed.
+     */
+
     public void setProgress( int    index,
                              double value )
     {
-        SwingUtilities.invokeLater( new DoSetProgress( value ) );
+        progress = value;
+        if ( value <= 0.0 )
+            SwingUtilities.invokeLater( new DoSetProgress( value ) );
     }
 
     //------------------------------------------------------------------
@@ -829,6 +813,63 @@ class TaskProgressDialog
 
     //------------------------------------------------------------------
 
+    private void updateProgress( double value )
+    {
+        displayedProgress = value;
+
+        if ( value < 0.0 )
+        {
+            fileProgressBar.setIndeterminate( true );
+
+            timeElapsedField.setText( null );
+            timeRemainingField.setText( null );
+        }
+        else
+        {
+            if ( fileProgressBar.isIndeterminate( ) )
+                fileProgressBar.setIndeterminate( false );
+            fileProgressBar.setValue( (int)Math.round( value * (double)PROGRESS_BAR_MAX_VALUE ) );
+
+            boolean reset = (value == 0.0);
+            if ( overallProgressBar != null )
+            {
+                reset = reset && (fileLengthOffset == 0);
+                value = (value * (double)fileLength + (double)fileLengthOffset) * fileLengthFactor;
+                overallProgressBar.setValue( (int)Math.round( value * (double)PROGRESS_BAR_MAX_VALUE ) );
+            }
+
+            if ( reset )
+            {
+                startTime = System.currentTimeMillis( );
+                timeElapsedField.setTime( 0 );
+                timeRemainingField.setText( null );
+            }
+            else
+            {
+                long currentTime = System.currentTimeMillis( );
+                if ( currentTime >= updateTime )
+                {
+                    long timeElapsed = currentTime - startTime;
+                    timeElapsedField.setTime( (int)timeElapsed );
+                    timeRemainingField.setTime( (int)Math.round( (1.0 / value - 1.0) *
+                                                                        (double)timeElapsed ) + 500 );
+                    updateTime = currentTime + TIME_UPDATE_INTERVAL;
+                }
+            }
+        }
+    }
+
+    //------------------------------------------------------------------
+
+    private void onUpdateProgress( )
+    {
+        double value = progress;
+        if ( (value > 0.0) && (value != displayedProgress) )
+            updateProgress( value );
+    }
+
+    //------------------------------------------------------------------
+
     private void onClose( )
     {
         cancelButton.setEnabled( false );
@@ -854,6 +895,9 @@ class TaskProgressDialog
     private boolean         stopped;
     private long            startTime;
     private long            updateTime;
+    private volatile double progress;
+    private double          displayedProgress;
+    private Timer           progressTimer;
     private InfoField       infoField;
     private JProgressBar    fileProgressBar;
     private JProgressBar    overallProgressBar;